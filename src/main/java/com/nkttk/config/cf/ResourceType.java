@@ -21,7 +21,7 @@ public enum ResourceType {
   public static ResourceType fromName(String name){
     ResourceType [] types = ResourceType.values();
     for(int i = 0; i < types.length; i++){
-      if(name.equals(types[i]))return types[i];
+      if(types[i].name.equals(name))return types[i];
     }
     throw new RuntimeException("Unknown resource type " + name);
   }
@@ -9,7 +9,8 @@ import com.nkttk.config.cf.ResourceType;
 @JsonTypeInfo(
     use = JsonTypeInfo.Id.NAME,
     include = JsonTypeInfo.As.PROPERTY,
-    property = "Type")
+    property = "Type",
+    visible = true)
 @JsonSubTypes({
                   @JsonSubTypes.Type(value = BucketResource.class, name = "AWS::S3::Bucket"),
                   @JsonSubTypes.Type(value = LambdaResource.class, name = "AWS::Lambda::Function"),
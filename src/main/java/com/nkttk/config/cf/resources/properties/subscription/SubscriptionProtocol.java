@@ -6,7 +6,8 @@ import com.fasterxml.jackson.annotation.JsonValue;
 /**
  */
 public enum SubscriptionProtocol {
-  SQS("sqs");
+  SQS("sqs"),
+  LAMBDA("lambda");
   private String name;
 
   SubscriptionProtocol(String name){
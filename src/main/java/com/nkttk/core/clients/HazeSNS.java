@@ -5,14 +5,32 @@ import com.amazonaws.ResponseMetadata;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.sns.AmazonSNS;
 import com.amazonaws.services.sns.model.*;
+import com.nkttk.core.components.sns.DeliveryPolicy;
+import com.nkttk.core.components.sns.FilterPolicy;
+import com.nkttk.core.components.sns.InvalidSubscriptionException;
+import com.nkttk.core.components.sns.Subscription;
+import com.nkttk.core.components.sns.SubscriptionNotFoundException;
+import com.nkttk.core.components.sns.TopicNotFoundException;
+import com.nkttk.core.components.sns.entities.SNSMessage;
+import com.nkttk.core.components.sqs.RedrivePolicy;
 import com.nkttk.core.engine.AWSEngine;
+import com.nkttk.core.engine.factories.SNSMessageFactory;
+import com.nkttk.json.JsonMaster;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  *
  */
 public class HazeSNS implements AmazonSNS {
+  static final int SUBSCRIPTIONS_PAGE_SIZE = 100;
+  static final int MAX_BATCH_ENTRIES = 10;
+  static final String OWNER = "000000000000";
+  static final String SUBSCRIPTION_ARN = "SubscriptionArn";
+  static final String TOPIC_ARN = "TopicArn";
+
   private AWSEngine engine;
 
   public HazeSNS(AWSEngine engine){
@@ -122,12 +140,29 @@ public class HazeSNS implements AmazonSNS {
 
   @Override
   public GetSubscriptionAttributesResult getSubscriptionAttributes(GetSubscriptionAttributesRequest getSubscriptionAttributesRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return getSubscriptionAttributes(getSubscriptionAttributesRequest.getSubscriptionArn());
   }
 
   @Override
   public GetSubscriptionAttributesResult getSubscriptionAttributes(String subscriptionArn) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    Subscription subscription = findSubscription(subscriptionArn);
+    GetSubscriptionAttributesResult result = new GetSubscriptionAttributesResult()
+        .addAttributesEntry(SUBSCRIPTION_ARN, subscription.getArn())
+        .addAttributesEntry(TOPIC_ARN, subscriptionArn.substring(0, subscriptionArn.lastIndexOf(':')))
+        .addAttributesEntry(AWSEngine.SNS_RAW_MESSAGE_DELIVERY, Boolean.toString(subscription.isRawMessageDelivery()));
+    FilterPolicy filterPolicy = subscription.getFilterPolicy();
+    if (filterPolicy != null) {
+      result.addAttributesEntry(AWSEngine.SNS_FILTER_POLICY, filterPolicy.getJson());
+    }
+    DeliveryPolicy deliveryPolicy = subscription.getDeliveryPolicy();
+    if (deliveryPolicy != null && deliveryPolicy.getJson() != null) {
+      result.addAttributesEntry(AWSEngine.SNS_DELIVERY_POLICY, deliveryPolicy.getJson());
+    }
+    if (subscription.getDeadLetterQueue() != null) {
+      result.addAttributesEntry(AWSEngine.SNS_REDRIVE_POLICY, JsonMaster.toString(
+          Collections.singletonMap(RedrivePolicy.DEAD_LETTER_TARGET_ARN, subscription.getDeadLetterQueue().getArn())));
+    }
+    return result;
   }
 
   @Override
@@ -178,17 +213,45 @@ public class HazeSNS implements AmazonSNS {
 
   @Override
   public ListSubscriptionsByTopicResult listSubscriptionsByTopic(ListSubscriptionsByTopicRequest listSubscriptionsByTopicRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return listSubscriptionsByTopic(listSubscriptionsByTopicRequest.getTopicArn(), listSubscriptionsByTopicRequest.getNextToken());
   }
 
   @Override
   public ListSubscriptionsByTopicResult listSubscriptionsByTopic(String topicArn) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return listSubscriptionsByTopic(topicArn, null);
   }
 
+  /**
+   * The token is the sequence of the next subscription, so pages stay consistent while subscriptions change
+   */
   @Override
   public ListSubscriptionsByTopicResult listSubscriptionsByTopic(String topicArn, String nextToken) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    long fromSequence;
+    try {
+      fromSequence = nextToken == null ? 0 : Long.parseLong(nextToken);
+    } catch (NumberFormatException e) {
+      throw new InvalidParameterException("Invalid NextToken: " + nextToken);
+    }
+    List<Subscription> page;
+    try {
+      page = engine.listSNSSubscriptions(topicArn, fromSequence, SUBSCRIPTIONS_PAGE_SIZE + 1);
+    } catch (TopicNotFoundException e) {
+      throw new NotFoundException("Topic does not exist: " + topicArn);
+    }
+    ListSubscriptionsByTopicResult result = new ListSubscriptionsByTopicResult();
+    if (page.size() > SUBSCRIPTIONS_PAGE_SIZE) {
+      result.setNextToken(Long.toString(page.remove(SUBSCRIPTIONS_PAGE_SIZE).getSequence()));
+    }
+    List<com.amazonaws.services.sns.model.Subscription> subscriptions = new ArrayList<>(page.size());
+    for (Subscription subscription : page) {
+      subscriptions.add(new com.amazonaws.services.sns.model.Subscription()
+          .withSubscriptionArn(subscription.getArn())
+          .withTopicArn(topicArn)
+          .withProtocol(subscription.getProtocol())
+          .withEndpoint(subscription.getEndpoint())
+          .withOwner(OWNER));
+    }
+    return result.withSubscriptions(subscriptions);
   }
 
   @Override
@@ -213,20 +276,53 @@ public class HazeSNS implements AmazonSNS {
 
   @Override
   public PublishResult publish(PublishRequest publishRequest) {
-    engine.publishSNSMessage(publishRequest.getTopicArn(), publishRequest.getMessage());
-    return new PublishResult();
+    String messageId;
+    try {
+      messageId = engine.publishSNSMessage(publishRequest.getTopicArn(), publishRequest.getMessage(),
+          publishRequest.getMessageAttributes());
+    } catch (TopicNotFoundException e) {
+      throw new NotFoundException("Topic does not exist: " + publishRequest.getTopicArn());
+    }
+    return new PublishResult().withMessageId(messageId);
+  }
+
+  /**
+   * PublishBatch, which this SDK version doesn't have yet: publishes up to 10 messages to one topic at once. Topic ARNs
+   * of the entries are ignored.
+   * @return results in the order of the entries
+   */
+  public List<PublishResult> publishBatch(String topicArn, List<PublishRequest> entries) {
+    if (entries == null || entries.isEmpty()) {
+      throw batchError("EmptyBatchRequest", "Batch request contains no entries");
+    }
+    if (entries.size() > MAX_BATCH_ENTRIES) {
+      throw batchError("TooManyEntriesInBatchRequest", "Batch request contains more than " + MAX_BATCH_ENTRIES + " entries");
+    }
+    List<SNSMessage> messages = new ArrayList<>(entries.size());
+    for (PublishRequest entry : entries) {
+      messages.add(new SNSMessage(entry.getMessage(), SNSMessageFactory.toMessageAttributes(entry.getMessageAttributes())));
+    }
+    List<String> messageIds;
+    try {
+      messageIds = engine.publishSNSMessages(topicArn, messages);
+    } catch (TopicNotFoundException e) {
+      throw new NotFoundException("Topic does not exist: " + topicArn);
+    }
+    List<PublishResult> results = new ArrayList<>(entries.size());
+    for (String messageId : messageIds) {
+      results.add(new PublishResult().withMessageId(messageId));
+    }
+    return results;
   }
 
   @Override
   public PublishResult publish(String topicArn, String message) {
-    engine.publishSNSMessage(topicArn, message);
-    return new PublishResult();
+    return publish(new PublishRequest(topicArn, message));
   }
 
   @Override
   public PublishResult publish(String topicArn, String message, String subject) {
-    engine.publishSNSMessage(topicArn, message);
-    return new PublishResult();
+    return publish(new PublishRequest(topicArn, message, subject));
   }
 
   @Override
@@ -257,13 +353,22 @@ public class HazeSNS implements AmazonSNS {
 
   @Override
   public SetSubscriptionAttributesResult setSubscriptionAttributes(SetSubscriptionAttributesRequest setSubscriptionAttributesRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return setSubscriptionAttributes(setSubscriptionAttributesRequest.getSubscriptionArn(),
+        setSubscriptionAttributesRequest.getAttributeName(), setSubscriptionAttributesRequest.getAttributeValue());
   }
 
   @Override
   public SetSubscriptionAttributesResult setSubscriptionAttributes(String subscriptionArn, String attributeName,
                                                                    String attributeValue) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    findSubscription(subscriptionArn);
+    try {
+      engine.setSNSSubscriptionAttribute(subscriptionArn, attributeName, attributeValue);
+    } catch (SubscriptionNotFoundException e) {
+      throw new NotFoundException("Subscription does not exist: " + subscriptionArn);
+    } catch (RuntimeException e) {
+      throw new InvalidParameterException("Invalid " + attributeName + ": " + e.getMessage());
+    }
+    return new SetSubscriptionAttributesResult();
   }
 
   @Override
@@ -278,22 +383,51 @@ public class HazeSNS implements AmazonSNS {
 
   @Override
   public SubscribeResult subscribe(SubscribeRequest subscribeRequest) {
-     throw new RuntimeException("NOT IMPLEMENTED");
- }
+    return subscribe(subscribeRequest.getTopicArn(), subscribeRequest.getProtocol(), subscribeRequest.getEndpoint());
+  }
 
   @Override
   public SubscribeResult subscribe(String topicArn, String protocol, String endpoint) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    if (protocol == null || endpoint == null) {
+      throw new InvalidParameterException("Protocol and Endpoint are required");
+    }
+    try {
+      return new SubscribeResult().withSubscriptionArn(engine.subscribeSNS(topicArn, protocol, endpoint).getArn());
+    } catch (TopicNotFoundException e) {
+      throw new NotFoundException("Topic does not exist: " + topicArn);
+    } catch (InvalidSubscriptionException e) {
+      throw new InvalidParameterException(e.getMessage());
+    }
   }
 
   @Override
   public UnsubscribeResult unsubscribe(UnsubscribeRequest unsubscribeRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return unsubscribe(unsubscribeRequest.getSubscriptionArn());
   }
 
   @Override
   public UnsubscribeResult unsubscribe(String subscriptionArn) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    try {
+      engine.unsubscribeSNS(subscriptionArn);
+    } catch (SubscriptionNotFoundException e) {
+      throw new NotFoundException("Subscription does not exist: " + subscriptionArn);
+    }
+    return new UnsubscribeResult();
+  }
+
+  private static AmazonSNSException batchError(String errorCode, String message) {
+    AmazonSNSException exception = new AmazonSNSException(message);
+    exception.setErrorCode(errorCode);
+    exception.setStatusCode(400);
+    return exception;
+  }
+
+  private Subscription findSubscription(String subscriptionArn) {
+    try {
+      return engine.getSNSSubscription(subscriptionArn);
+    } catch (SubscriptionNotFoundException e) {
+      throw new NotFoundException("Subscription does not exist: " + subscriptionArn);
+    }
   }
 
   @Override
@@ -6,17 +6,41 @@ import com.amazonaws.ResponseMetadata;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.model.*;
+import com.nkttk.core.components.sqs.InvalidAttributeValueException;
+import com.nkttk.core.components.sqs.InvalidMessageException;
+import com.nkttk.core.components.sqs.QueueAlreadyExistsException;
+import com.nkttk.core.components.sqs.QueueFullException;
 import com.nkttk.core.components.sqs.SQSInstance;
+import com.nkttk.core.components.sqs.entities.BatchResult;
+import com.nkttk.core.components.sqs.entities.SQSMessage;
+import com.nkttk.core.components.sqs.entities.VisibilityChange;
 import com.nkttk.core.engine.AWSEngine;
+import com.nkttk.core.engine.factories.SQSMessageFactory;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  *
  */
 public class HazeSQS implements AmazonSQS {
+  private static final int MAX_RECEIVE_MESSAGES = 10;
+  private static final int MAX_WAIT_TIME_SECONDS = 20;
+  private static final int MAX_BATCH_ENTRIES = 10;
+  private static final int MAX_VISIBILITY_TIMEOUT_SECONDS = 12 * 60 * 60;
+  private static final int MAX_DELAY_SECONDS = 15 * 60;
+  private static final String REQUEST_THROTTLED = "RequestThrottled";
+  private static final String QUEUE_ALREADY_EXISTS = "QueueAlreadyExists";
+  private static final String MISSING_PARAMETER = "MissingParameter";
+  private static final String INVALID_PARAMETER_VALUE = "InvalidParameterValue";
+  private static final String INVALID_ATTRIBUTE_VALUE = "InvalidAttributeValue";
   private AWSEngine engine;
   private String endpoint;
 
@@ -46,28 +70,58 @@ public class HazeSQS implements AmazonSQS {
 
   @Override
   public ChangeMessageVisibilityResult changeMessageVisibility(ChangeMessageVisibilityRequest changeMessageVisibilityRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return changeMessageVisibility(changeMessageVisibilityRequest.getQueueUrl(), changeMessageVisibilityRequest.getReceiptHandle(),
+        changeMessageVisibilityRequest.getVisibilityTimeout());
   }
 
   @Override
   public ChangeMessageVisibilityResult changeMessageVisibility(String queueUrl, String receiptHandle, Integer visibilityTimeout) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    validateVisibilityTimeout(visibilityTimeout);
+    if (!engine.changeSQSMessageVisibility(queueUrl, receiptHandle, TimeUnit.SECONDS.toMillis(visibilityTimeout))) {
+      throw new ReceiptHandleIsInvalidException("Receipt handle is invalid: " + receiptHandle);
+    }
+    return new ChangeMessageVisibilityResult();
   }
 
   @Override
   public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest changeMessageVisibilityBatchRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return changeMessageVisibilityBatch(changeMessageVisibilityBatchRequest.getQueueUrl(), changeMessageVisibilityBatchRequest.getEntries());
   }
 
   @Override
   public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(String queueUrl, List<ChangeMessageVisibilityBatchRequestEntry> entries) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    validateBatch(entries, ChangeMessageVisibilityBatchRequestEntry::getId);
+    ChangeMessageVisibilityBatchResult result = new ChangeMessageVisibilityBatchResult();
+    List<VisibilityChange> changes = new ArrayList<>(entries.size());
+    for (ChangeMessageVisibilityBatchRequestEntry entry : entries) {
+      try {
+        validateVisibilityTimeout(entry.getVisibilityTimeout());
+      } catch (AmazonSQSException e) {
+        result.withFailed(toErrorEntry(entry.getId(), e));
+        continue;
+      }
+      changes.add(new VisibilityChange(entry.getId(), entry.getReceiptHandle(), TimeUnit.SECONDS.toMillis(entry.getVisibilityTimeout())));
+    }
+    BatchResult batchResult = engine.changeSQSMessagesVisibility(queueUrl, changes);
+    batchResult.getSuccessful().forEach(id -> result.withSuccessful(new ChangeMessageVisibilityBatchResultEntry().withId(id)));
+    result.getFailed().addAll(toErrorEntries(batchResult));
+    return result;
   }
 
   @Override
   public CreateQueueResult createQueue(CreateQueueRequest createQueueRequest) {
     CreateQueueResult result = new CreateQueueResult();
-    SQSInstance instance = engine.addSQS(createQueueRequest.getQueueName());
+    SQSInstance instance;
+    try {
+      instance = engine.addSQS(createQueueRequest.getQueueName(), createQueueRequest.getAttributes());
+    } catch (QueueAlreadyExistsException e) {
+      QueueNameExistsException exception = new QueueNameExistsException(e.getMessage());
+      exception.setErrorCode(QUEUE_ALREADY_EXISTS);
+      exception.setStatusCode(400);
+      throw exception;
+    } catch (InvalidAttributeValueException e) {
+      throw badRequest(INVALID_ATTRIBUTE_VALUE, e.getMessage());
+    }
     result.setQueueUrl(instance.getEndpointURL());
     return result;
   }
@@ -93,32 +147,40 @@ public class HazeSQS implements AmazonSQS {
 
   @Override
   public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest deleteMessageBatchRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return deleteMessageBatch(deleteMessageBatchRequest.getQueueUrl(), deleteMessageBatchRequest.getEntries());
   }
 
   @Override
   public DeleteMessageBatchResult deleteMessageBatch(String queueUrl, List<DeleteMessageBatchRequestEntry> entries) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    validateBatch(entries, DeleteMessageBatchRequestEntry::getId);
+    Map<String, String> handlesById = new LinkedHashMap<>();
+    entries.forEach(entry -> handlesById.put(entry.getId(), entry.getReceiptHandle()));
+    BatchResult batchResult = engine.deleteSQSMessages(queueUrl, handlesById);
+    DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+    batchResult.getSuccessful().forEach(id -> result.withSuccessful(new DeleteMessageBatchResultEntry().withId(id)));
+    result.setFailed(toErrorEntries(batchResult));
+    return result;
   }
 
   @Override
   public DeleteQueueResult deleteQueue(DeleteQueueRequest deleteQueueRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return deleteQueue(deleteQueueRequest.getQueueUrl());
   }
 
   @Override
   public DeleteQueueResult deleteQueue(String queueUrl) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    engine.deleteSQS(queueUrl);
+    return new DeleteQueueResult();
   }
 
   @Override
   public GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest getQueueAttributesRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return getQueueAttributes(getQueueAttributesRequest.getQueueUrl(), getQueueAttributesRequest.getAttributeNames());
   }
 
   @Override
   public GetQueueAttributesResult getQueueAttributes(String queueUrl, List<String> attributeNames) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return new GetQueueAttributesResult().withAttributes(engine.getSQSAttributes(queueUrl, attributeNames));
   }
 
   @Override
@@ -136,7 +198,9 @@ public class HazeSQS implements AmazonSQS {
 
   @Override
   public ListDeadLetterSourceQueuesResult listDeadLetterSourceQueues(ListDeadLetterSourceQueuesRequest listDeadLetterSourceQueuesRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    ListDeadLetterSourceQueuesResult result = new ListDeadLetterSourceQueuesResult();
+    result.setQueueUrls(engine.getSQSDeadLetterSourceQueues(listDeadLetterSourceQueuesRequest.getQueueUrl()));
+    return result;
   }
 
   @Override
@@ -156,29 +220,32 @@ public class HazeSQS implements AmazonSQS {
 
   @Override
   public PurgeQueueResult purgeQueue(PurgeQueueRequest purgeQueueRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    engine.purgeSQS(purgeQueueRequest.getQueueUrl());
+    return new PurgeQueueResult();
   }
 
   @Override
   public ReceiveMessageResult receiveMessage(ReceiveMessageRequest receiveMessageRequest) throws AmazonClientException {
-      throw new RuntimeException("Not implemented");
-      //    String queueUrl = receiveMessageRequest.getQueueUrl();
-//    List<Message> resultMessages = new LinkedList<>();
-//    ReceiveMessageResult result = new ReceiveMessageResult();
-//    for(int i = 0; i < receiveMessageRequest.getMaxNumberOfMessages(); i++){
-//      Message message = engine.getSQSMessageByUrl(queueUrl);
-//      if(message != null)
-//        resultMessages.add(message);
-//      else
-//        break;
-//    }
-//    result.setMessages(resultMessages);
-//    return null;
+    int maxMessages = receiveMessageRequest.getMaxNumberOfMessages() == null ? 1 : receiveMessageRequest.getMaxNumberOfMessages();
+    int waitSeconds = receiveMessageRequest.getWaitTimeSeconds() == null ? 0 : receiveMessageRequest.getWaitTimeSeconds();
+    if (maxMessages < 1 || maxMessages > MAX_RECEIVE_MESSAGES) {
+      throw badRequest(INVALID_PARAMETER_VALUE, "MaxNumberOfMessages must be between 1 and " + MAX_RECEIVE_MESSAGES);
+    }
+    if (waitSeconds < 0 || waitSeconds > MAX_WAIT_TIME_SECONDS) {
+      throw badRequest(INVALID_PARAMETER_VALUE, "WaitTimeSeconds must be between 0 and " + MAX_WAIT_TIME_SECONDS);
+    }
+    Integer visibilityTimeout = receiveMessageRequest.getVisibilityTimeout();
+    List<Message> messages = engine.receiveSQSMessages(receiveMessageRequest.getQueueUrl(), maxMessages,
+        TimeUnit.SECONDS.toMillis(waitSeconds), visibilityTimeout == null ? null : TimeUnit.SECONDS.toMillis(visibilityTimeout),
+        receiveMessageRequest.getAttributeNames(), receiveMessageRequest.getMessageAttributeNames());
+    ReceiveMessageResult result = new ReceiveMessageResult();
+    result.setMessages(messages);
+    return result;
   }
 
   @Override
   public ReceiveMessageResult receiveMessage(String queueUrl) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return receiveMessage(new ReceiveMessageRequest(queueUrl));
   }
 
   @Override
@@ -193,33 +260,113 @@ public class HazeSQS implements AmazonSQS {
 
   @Override
   public SendMessageResult sendMessage(SendMessageRequest sendMessageRequest) {
-    engine.publishSQSMessage(sendMessageRequest.getQueueUrl(), sendMessageRequest.getMessageBody());
-    return new SendMessageResult();
+    validateMessage(sendMessageRequest.getMessageBody(), sendMessageRequest.getDelaySeconds());
+    SQSMessage message = SQSMessageFactory.buildMessage(sendMessageRequest.getMessageBody(), sendMessageRequest.getMessageAttributes(),
+        customParameter(sendMessageRequest, SQSMessageFactory.MESSAGE_GROUP_ID),
+        customParameter(sendMessageRequest, SQSMessageFactory.MESSAGE_DEDUPLICATION_ID));
+    message.setDelay(toMillis(sendMessageRequest.getDelaySeconds()));
+    String messageId;
+    try {
+      messageId = engine.publishSQSMessage(sendMessageRequest.getQueueUrl(), message);
+    } catch (QueueFullException e) {
+      throw throttled(e);
+    } catch (InvalidMessageException e) {
+      throw invalid(e);
+    }
+    return new SendMessageResult().withMessageId(messageId).withMD5OfMessageBody(message.getMd5OfBody())
+        .withMD5OfMessageAttributes(message.getMd5OfAttributes());
   }
 
   @Override
   public SendMessageResult sendMessage(String queueUrl, String messageBody) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return sendMessage(new SendMessageRequest(queueUrl, messageBody));
   }
 
   @Override
   public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest sendMessageBatchRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return sendMessageBatch(sendMessageBatchRequest.getQueueUrl(), sendMessageBatchRequest.getEntries(), sendMessageBatchRequest);
   }
 
   @Override
   public SendMessageBatchResult sendMessageBatch(String queueUrl, List<SendMessageBatchRequestEntry> entries) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return sendMessageBatch(queueUrl, entries, null);
+  }
+
+  /**
+   * FIFO attributes of the entries are read from the request's "SendMessageBatchRequestEntry.N.MessageGroupId" and
+   * "SendMessageBatchRequestEntry.N.MessageDeduplicationId" custom query parameters, N starting at 1.
+   * <p>
+   * Invalid entries fail on their own. The valid ones are sent as one batch, if the queue has no room for all of them
+   * they are sent one by one in order until one doesn't fit, that one and the rest fail as throttled.
+   */
+  private SendMessageBatchResult sendMessageBatch(String queueUrl, List<SendMessageBatchRequestEntry> entries, AmazonWebServiceRequest request) {
+    validateBatch(entries, SendMessageBatchRequestEntry::getId);
+    SendMessageBatchResult result = new SendMessageBatchResult();
+    Map<String, SQSMessage> messagesById = new LinkedHashMap<>();
+    for (int i = 0; i < entries.size(); i++) {
+      SendMessageBatchRequestEntry entry = entries.get(i);
+      String prefix = "SendMessageBatchRequestEntry." + (i + 1) + ".";
+      try {
+        validateMessage(entry.getMessageBody(), entry.getDelaySeconds());
+        SQSMessage message = SQSMessageFactory.buildMessage(entry.getMessageBody(), entry.getMessageAttributes(),
+            customParameter(request, prefix + SQSMessageFactory.MESSAGE_GROUP_ID),
+            customParameter(request, prefix + SQSMessageFactory.MESSAGE_DEDUPLICATION_ID));
+        message.setDelay(toMillis(entry.getDelaySeconds()));
+        engine.validateSQSMessage(queueUrl, message);
+        messagesById.put(entry.getId(), message);
+      } catch (AmazonSQSException e) {
+        result.withFailed(toErrorEntry(entry.getId(), e));
+      } catch (InvalidMessageException e) {
+        result.withFailed(toErrorEntry(entry.getId(), invalid(e)));
+      }
+    }
+    if (messagesById.isEmpty()) {
+      return result;
+    }
+    List<SQSMessage> messages = new ArrayList<>(messagesById.values());
+    List<String> messageIds;
+    String throttledReason = null;
+    try {
+      messageIds = engine.publishSQSMessages(queueUrl, messages);
+    } catch (QueueFullException e) {
+      messageIds = new ArrayList<>(messages.size());
+      for (SQSMessage message : messages) {
+        try {
+          messageIds.add(engine.publishSQSMessage(queueUrl, message));
+        } catch (QueueFullException throttled) {
+          throttledReason = throttled.getMessage();
+          break;
+        }
+      }
+    }
+    int i = 0;
+    for (Map.Entry<String, SQSMessage> entry : messagesById.entrySet()) {
+      SQSMessage message = entry.getValue();
+      if (i < messageIds.size()) {
+        result.withSuccessful(new SendMessageBatchResultEntry().withId(entry.getKey()).withMessageId(messageIds.get(i))
+            .withMD5OfMessageBody(message.getMd5OfBody()).withMD5OfMessageAttributes(message.getMd5OfAttributes()));
+      } else {
+        result.withFailed(new BatchResultErrorEntry().withId(entry.getKey()).withCode(REQUEST_THROTTLED)
+            .withMessage(throttledReason).withSenderFault(false));
+      }
+      i++;
+    }
+    return result;
   }
 
   @Override
   public SetQueueAttributesResult setQueueAttributes(SetQueueAttributesRequest setQueueAttributesRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return setQueueAttributes(setQueueAttributesRequest.getQueueUrl(), setQueueAttributesRequest.getAttributes());
   }
 
   @Override
   public SetQueueAttributesResult setQueueAttributes(String queueUrl, Map<String, String> attributes) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    try {
+      engine.setSQSAttributes(queueUrl, attributes);
+    } catch (InvalidAttributeValueException e) {
+      throw badRequest(INVALID_ATTRIBUTE_VALUE, e.getMessage());
+    }
+    return new SetQueueAttributesResult();
   }
 
   @Override
@@ -231,4 +378,79 @@ public class HazeSQS implements AmazonSQS {
   public ResponseMetadata getCachedResponseMetadata(AmazonWebServiceRequest request) {
     throw new RuntimeException("NOT IMPLEMENTED");
   }
+
+  private static Long toMillis(Integer seconds) {
+    return seconds == null ? null : TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  /**
+   * This SDK version predates FIFO queues, FIFO request fields are passed as custom query parameters
+   */
+  private static String customParameter(AmazonWebServiceRequest request, String name) {
+    Map<String, List<String>> parameters = request == null ? null : request.getCustomQueryParameters();
+    List<String> values = parameters == null ? null : parameters.get(name);
+    return values == null || values.isEmpty() ? null : values.get(0);
+  }
+
+  private static AmazonSQSException throttled(QueueFullException cause) {
+    AmazonSQSException exception = new AmazonSQSException(cause.getMessage());
+    exception.setErrorCode(REQUEST_THROTTLED);
+    exception.setStatusCode(403);
+    return exception;
+  }
+
+  private static AmazonSQSException invalid(InvalidMessageException cause) {
+    return badRequest(cause.isMissingParameter() ? MISSING_PARAMETER : INVALID_PARAMETER_VALUE, cause.getMessage());
+  }
+
+  private static void validateMessage(String body, Integer delaySeconds) {
+    if (body == null || body.isEmpty()) {
+      throw badRequest(MISSING_PARAMETER, "The request must contain the parameter MessageBody.");
+    }
+    if (delaySeconds != null && (delaySeconds < 0 || delaySeconds > MAX_DELAY_SECONDS)) {
+      throw badRequest(INVALID_PARAMETER_VALUE, "DelaySeconds must be between 0 and " + MAX_DELAY_SECONDS);
+    }
+  }
+
+  private static void validateVisibilityTimeout(Integer visibilityTimeout) {
+    if (visibilityTimeout == null) {
+      throw badRequest(MISSING_PARAMETER, "The request must contain the parameter VisibilityTimeout.");
+    }
+    if (visibilityTimeout < 0 || visibilityTimeout > MAX_VISIBILITY_TIMEOUT_SECONDS) {
+      throw badRequest(INVALID_PARAMETER_VALUE, "VisibilityTimeout must be between 0 and " + MAX_VISIBILITY_TIMEOUT_SECONDS);
+    }
+  }
+
+  private static AmazonSQSException badRequest(String errorCode, String message) {
+    AmazonSQSException exception = new AmazonSQSException(message);
+    exception.setErrorCode(errorCode);
+    exception.setStatusCode(400);
+    return exception;
+  }
+
+  private static <T> void validateBatch(List<T> entries, Function<T, String> idGetter) {
+    if (entries == null || entries.isEmpty()) {
+      throw new EmptyBatchRequestException("Batch request contains no entries");
+    }
+    if (entries.size() > MAX_BATCH_ENTRIES) {
+      throw new TooManyEntriesInBatchRequestException("Batch request contains more than " + MAX_BATCH_ENTRIES + " entries");
+    }
+    Set<String> ids = new HashSet<>();
+    for (T entry : entries) {
+      if (!ids.add(idGetter.apply(entry))) {
+        throw new BatchEntryIdsNotDistinctException("Batch entry id is not distinct: " + idGetter.apply(entry));
+      }
+    }
+  }
+
+  private static BatchResultErrorEntry toErrorEntry(String id, AmazonSQSException error) {
+    return new BatchResultErrorEntry().withId(id).withCode(error.getErrorCode()).withMessage(error.getErrorMessage())
+        .withSenderFault(true);
+  }
+
+  private static List<BatchResultErrorEntry> toErrorEntries(BatchResult batchResult) {
+    List<BatchResultErrorEntry> errors = new ArrayList<>(batchResult.getFailed().size());
+    batchResult.getFailed().forEach((id, code) -> errors.add(new BatchResultErrorEntry().withId(id).withCode(code).withSenderFault(true)));
+    return errors;
+  }
 }
@@ -5,13 +5,27 @@ import com.amazonaws.ResponseMetadata;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.lambda.AWSLambda;
 import com.amazonaws.services.lambda.model.*;
+import com.nkttk.core.components.lambda.EventSourceMapping;
 import com.nkttk.core.components.lambda.LambdaContext;
+import com.nkttk.core.components.lambda.LambdaEngine;
 import com.nkttk.core.engine.AWSEngine;
 import org.apache.http.HttpStatus;
 
 import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 public class LambdaClient<I,O> implements AWSLambda {
+  private static final int MAX_BATCH_SIZE = 10;
+  private static final long MAX_BATCHING_WINDOW_SECONDS = 300;
+  private static final int DEFAULT_MAX_ITEMS = 100;
+  /**
+   * This SDK version predates batching windows, the window is passed as a custom query parameter
+   */
+  public static final String MAXIMUM_BATCHING_WINDOW_IN_SECONDS = "MaximumBatchingWindowInSeconds";
   private LambdaContext context;
   private AWSEngine awsEngine;
 
@@ -43,7 +57,27 @@ public class LambdaClient<I,O> implements AWSLambda {
   @Override
   public CreateEventSourceMappingResult createEventSourceMapping(CreateEventSourceMappingRequest
                                                                        createEventSourceMappingRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    Integer batchSize = createEventSourceMappingRequest.getBatchSize();
+    if (batchSize == null) {
+      batchSize = EventSourceMapping.DEFAULT_BATCH_SIZE;
+    } else if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+      throw invalidParameter("BatchSize must be between 1 and " + MAX_BATCH_SIZE);
+    }
+    long batchingWindow = 0;
+    Map<String, List<String>> parameters = createEventSourceMappingRequest.getCustomQueryParameters();
+    if (parameters != null && parameters.containsKey(MAXIMUM_BATCHING_WINDOW_IN_SECONDS)) {
+      batchingWindow = batchingWindowSeconds(parameters.get(MAXIMUM_BATCHING_WINDOW_IN_SECONDS)) * 1000;
+    }
+    EventSourceMapping mapping = awsEngine.createEventSourceMapping(createEventSourceMappingRequest.getFunctionName(),
+        createEventSourceMappingRequest.getEventSourceArn(), batchSize, batchingWindow);
+    EventSourceMappingConfiguration configuration = toConfiguration(mapping);
+    return new CreateEventSourceMappingResult()
+        .withUUID(configuration.getUUID())
+        .withBatchSize(configuration.getBatchSize())
+        .withEventSourceArn(configuration.getEventSourceArn())
+        .withFunctionArn(configuration.getFunctionArn())
+        .withLastModified(configuration.getLastModified())
+        .withState(configuration.getState());
   }
 
   @Override
@@ -59,7 +93,17 @@ public class LambdaClient<I,O> implements AWSLambda {
   @Override
   public DeleteEventSourceMappingResult deleteEventSourceMapping(DeleteEventSourceMappingRequest
                                                                        deleteEventSourceMappingRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    String uuid = deleteEventSourceMappingRequest.getUUID();
+    EventSourceMappingConfiguration configuration = awsEngine.deleteEventSourceMapping(uuid)
+        .map(LambdaClient::toConfiguration)
+        .orElseThrow(() -> new ResourceNotFoundException("Event source mapping not found: " + uuid));
+    return new DeleteEventSourceMappingResult()
+        .withUUID(configuration.getUUID())
+        .withBatchSize(configuration.getBatchSize())
+        .withEventSourceArn(configuration.getEventSourceArn())
+        .withFunctionArn(configuration.getFunctionArn())
+        .withLastModified(configuration.getLastModified())
+        .withState("Deleting");
   }
 
   @Override
@@ -74,7 +118,17 @@ public class LambdaClient<I,O> implements AWSLambda {
 
   @Override
   public GetEventSourceMappingResult getEventSourceMapping(GetEventSourceMappingRequest getEventSourceMappingRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    String uuid = getEventSourceMappingRequest.getUUID();
+    EventSourceMappingConfiguration configuration = awsEngine.getEventSourceMapping(uuid)
+        .map(LambdaClient::toConfiguration)
+        .orElseThrow(() -> new ResourceNotFoundException("Event source mapping not found: " + uuid));
+    return new GetEventSourceMappingResult()
+        .withUUID(configuration.getUUID())
+        .withBatchSize(configuration.getBatchSize())
+        .withEventSourceArn(configuration.getEventSourceArn())
+        .withFunctionArn(configuration.getFunctionArn())
+        .withLastModified(configuration.getLastModified())
+        .withState(configuration.getState());
   }
 
   @Override
@@ -122,12 +176,28 @@ public class LambdaClient<I,O> implements AWSLambda {
 
   @Override
   public ListEventSourceMappingsResult listEventSourceMappings(ListEventSourceMappingsRequest listEventSourceMappingsRequest) {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    String eventSourceArn = listEventSourceMappingsRequest.getEventSourceArn();
+    String functionName = functionName(listEventSourceMappingsRequest.getFunctionName());
+    List<EventSourceMappingConfiguration> configurations = awsEngine.getEventSourceMappings().stream()
+        .filter(mapping -> eventSourceArn == null || eventSourceArn.equals(mapping.getQueue().getArn()))
+        .filter(mapping -> functionName == null || functionName.equals(mapping.getFunctionName()))
+        .sorted(Comparator.comparing(EventSourceMapping::getUUID))
+        .map(LambdaClient::toConfiguration)
+        .collect(Collectors.toList());
+    int from = marker(listEventSourceMappingsRequest.getMarker());
+    int maxItems = listEventSourceMappingsRequest.getMaxItems() == null ? DEFAULT_MAX_ITEMS : listEventSourceMappingsRequest.getMaxItems();
+    int to = Math.min(configurations.size(), from + maxItems);
+    ListEventSourceMappingsResult result = new ListEventSourceMappingsResult()
+        .withEventSourceMappings(configurations.subList(Math.min(from, to), to));
+    if (to < configurations.size()) {
+      result.setNextMarker(Integer.toString(to));
+    }
+    return result;
   }
 
   @Override
   public ListEventSourceMappingsResult listEventSourceMappings() {
-    throw new RuntimeException("NOT IMPLEMENTED");
+    return listEventSourceMappings(new ListEventSourceMappingsRequest());
   }
 
   @Override
@@ -185,4 +255,58 @@ public class LambdaClient<I,O> implements AWSLambda {
   public ResponseMetadata getCachedResponseMetadata(AmazonWebServiceRequest request) {
     throw new RuntimeException("NOT IMPLEMENTED");
   }
+
+  /**
+   * Markers are the index of the first mapping of the page
+   */
+  private static int marker(String value) {
+    if (value == null) {
+      return 0;
+    }
+    try {
+      int from = Integer.parseInt(value);
+      if (from >= 0) {
+        return from;
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw invalidParameter("Invalid marker : " + value);
+  }
+
+  private static InvalidParameterValueException invalidParameter(String message) {
+    InvalidParameterValueException exception = new InvalidParameterValueException(message);
+    exception.setErrorCode("InvalidParameterValueException");
+    exception.setStatusCode(400);
+    return exception;
+  }
+
+  private static long batchingWindowSeconds(List<String> values) {
+    String value = values.isEmpty() ? null : values.get(0);
+    try {
+      long seconds = Long.parseLong(value);
+      if (seconds >= 0 && seconds <= MAX_BATCHING_WINDOW_SECONDS) {
+        return seconds;
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw invalidParameter(MAXIMUM_BATCHING_WINDOW_IN_SECONDS + " must be between 0 and "
+        + MAX_BATCHING_WINDOW_SECONDS + " : " + value);
+  }
+
+  private static EventSourceMappingConfiguration toConfiguration(EventSourceMapping mapping) {
+    return new EventSourceMappingConfiguration()
+        .withUUID(mapping.getUUID())
+        .withBatchSize(mapping.getBatchSize())
+        .withEventSourceArn(mapping.getQueue().getArn())
+        .withFunctionArn(LambdaEngine.FUNCTION_ARN_PREFIX + mapping.getFunctionName())
+        .withLastModified(new Date(mapping.getLastModified()))
+        .withState(mapping.isRunning() ? "Enabled" : "Disabled");
+  }
+
+  private static String functionName(String nameOrArn) {
+    return nameOrArn != null && nameOrArn.startsWith(LambdaEngine.FUNCTION_ARN_PREFIX)
+        ? nameOrArn.substring(LambdaEngine.FUNCTION_ARN_PREFIX.length()) : nameOrArn;
+  }
 }
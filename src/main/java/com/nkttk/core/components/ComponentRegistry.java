@@ -0,0 +1,129 @@
+package com.nkttk.core.components;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Components indexed by name, URL and ARN. Lookups are lock-free hash lookups, registration is serialized and
+ * publishes immutable snapshots of the components and their identifiers.
+ *
+ * @param <T> component type
+ */
+public class ComponentRegistry<T> {
+  private final Function<T, String> nameGetter;
+  private final Function<T, String> urlGetter;
+  private final Function<T, String> arnGetter;
+  private final Map<String, T> byName = new ConcurrentHashMap<>();
+  private final Map<String, T> byUrl = new ConcurrentHashMap<>();
+  private final Map<String, T> byArn = new ConcurrentHashMap<>();
+  private volatile List<T> components = Collections.emptyList();
+  private volatile List<ComponentIdentifier> identifiers = Collections.emptyList();
+
+  /**
+   * @param urlGetter null if components have no URL
+   * @param arnGetter null if components have no ARN
+   */
+  public ComponentRegistry(Function<T, String> nameGetter, Function<T, String> urlGetter, Function<T, String> arnGetter) {
+    this.nameGetter = nameGetter;
+    this.urlGetter = urlGetter;
+    this.arnGetter = arnGetter;
+  }
+
+  /**
+   * Registration is idempotent by name
+   * @return the registered component, which is the already existing one if the name is taken
+   */
+  public T register(T component) {
+    return register(nameGetter.apply(component), () -> component);
+  }
+
+  /**
+   * Builds and registers a component only if the name is free, the factory runs under the registration lock and must
+   * return a component of the given name
+   * @return the registered component, which is the already existing one if the name is taken
+   */
+  public synchronized T register(String name, Supplier<T> factory) {
+    T existing = byName.get(name);
+    if (existing != null) {
+      return existing;
+    }
+    T component = factory.get();
+    byName.put(name, component);
+    index(byUrl, urlGetter, component);
+    index(byArn, arnGetter, component);
+    List<T> updated = new ArrayList<>(components);
+    updated.add(component);
+    publish(updated);
+    return component;
+  }
+
+  /**
+   * @return false if the component wasn't registered
+   */
+  public synchronized boolean unregister(T component) {
+    if (!byName.remove(nameGetter.apply(component), component)) {
+      return false;
+    }
+    unindex(byUrl, urlGetter, component);
+    unindex(byArn, arnGetter, component);
+    List<T> updated = new ArrayList<>(components);
+    updated.remove(component);
+    publish(updated);
+    return true;
+  }
+
+  public Optional<T> findByName(String name) {
+    return Optional.ofNullable(name == null ? null : byName.get(name));
+  }
+
+  public Optional<T> findByUrl(String url) {
+    return Optional.ofNullable(url == null ? null : byUrl.get(url));
+  }
+
+  public Optional<T> findByArn(String arn) {
+    return Optional.ofNullable(arn == null ? null : byArn.get(arn));
+  }
+
+  /**
+   * @return immutable snapshot
+   */
+  public List<T> getAll() {
+    return components;
+  }
+
+  /**
+   * @return immutable snapshot of name - URL pairs
+   */
+  public List<ComponentIdentifier> getIdentifiers() {
+    return identifiers;
+  }
+
+  private void publish(List<T> updated) {
+    List<ComponentIdentifier> updatedIdentifiers = new ArrayList<>(updated.size());
+    for (T component : updated) {
+      updatedIdentifiers.add(new ComponentIdentifier(nameGetter.apply(component), urlGetter == null ? null : urlGetter.apply(component)));
+    }
+    components = Collections.unmodifiableList(updated);
+    identifiers = Collections.unmodifiableList(updatedIdentifiers);
+  }
+
+  private void index(Map<String, T> index, Function<T, String> keyGetter, T component) {
+    String key = keyGetter == null ? null : keyGetter.apply(component);
+    if (key != null) {
+      index.put(key, component);
+    }
+  }
+
+  private void unindex(Map<String, T> index, Function<T, String> keyGetter, T component) {
+    String key = keyGetter == null ? null : keyGetter.apply(component);
+    if (key != null) {
+      index.remove(key, component);
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package com.nkttk.core.components;
+
+/**
+ * Source of message ids, receipt handles and other unique component ids, see {@link Ids}
+ */
+public interface IdGenerator {
+  /**
+   * @return id unique within the process and across restarts, in the 36 character UUID format
+   */
+  String nextId();
+}
@@ -0,0 +1,89 @@
+package com.nkttk.core.components;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates ids for all components. The default generator is contention free: every thread owns a distinct prefix
+ * and counts up from there, so ids are monotonic per thread and nothing is shared after the first id of a thread.
+ * <p>
+ * Ids are formatted as version 4 UUIDs. The high half holds a random process salt and the thread index, the low half
+ * the thread's counter. Counters start at a random value below 2^61, so ids of another process, e.g. receipt handles
+ * issued before a restart, don't collide even if the salts happen to.
+ */
+public final class Ids {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static volatile IdGenerator generator = new ThreadLocalIdGenerator();
+
+  private Ids() {
+  }
+
+  public static String next() {
+    return generator.nextId();
+  }
+
+  /**
+   * @param idGenerator generator used from now on, e.g. {@code () -> UUID.randomUUID().toString()}
+   */
+  public static void setGenerator(IdGenerator idGenerator) {
+    generator = idGenerator;
+  }
+
+  public static IdGenerator getGenerator() {
+    return generator;
+  }
+
+  /**
+   * Formats the bits the way {@link java.util.UUID#toString()} does, without its intermediate strings
+   */
+  static String format(long mostSignificantBits, long leastSignificantBits) {
+    char[] chars = new char[36];
+    hex(chars, 0, mostSignificantBits >>> 32, 8);
+    chars[8] = '-';
+    hex(chars, 9, mostSignificantBits >>> 16, 4);
+    chars[13] = '-';
+    hex(chars, 14, mostSignificantBits, 4);
+    chars[18] = '-';
+    hex(chars, 19, leastSignificantBits >>> 48, 4);
+    chars[23] = '-';
+    hex(chars, 24, leastSignificantBits, 12);
+    return new String(chars);
+  }
+
+  private static void hex(char[] chars, int offset, long value, int digits) {
+    for (int i = digits - 1; i >= 0; i--) {
+      chars[offset + i] = HEX[(int) (value & 0xF)];
+      value >>>= 4;
+    }
+  }
+
+  /**
+   * Thread indexes have 28 bits, the counter 62 bits. A thread index is reused only after 2^28 threads asked for ids.
+   */
+  private static class ThreadLocalIdGenerator implements IdGenerator {
+    private final SecureRandom random = new SecureRandom();
+    private final long salt = random.nextInt() & 0xFFFFFFFFL;
+    private final AtomicInteger threadIndexes = new AtomicInteger();
+    private final ThreadLocal<Counter> counters = ThreadLocal.withInitial(
+        () -> new Counter(threadIndexes.getAndIncrement(), random.nextLong() & 0x1FFFFFFFFFFFFFFFL));
+
+    @Override
+    public String nextId() {
+      Counter counter = counters.get();
+      long mostSignificantBits = salt << 32
+          | (counter.threadIndex & 0xFFFF000L) << 4 | 0x4000L | counter.threadIndex & 0xFFFL;
+      long leastSignificantBits = 0x8000000000000000L | counter.next++ & 0x3FFFFFFFFFFFFFFFL;
+      return format(mostSignificantBits, leastSignificantBits);
+    }
+  }
+
+  private static class Counter {
+    private final long threadIndex;
+    private long next;
+
+    private Counter(int threadIndex, long start) {
+      this.threadIndex = threadIndex;
+      this.next = start;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package com.nkttk.core.components;
+
+import com.nkttk.io.Digests;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Typed message attribute shared by SQS and SNS messages, holds either a string or a binary value
+ */
+public class MessageAttribute {
+  private static final byte STRING_TRANSPORT_TYPE = 1;
+  private static final byte BINARY_TRANSPORT_TYPE = 2;
+
+  private final String dataType;
+  private final String stringValue;
+  private final byte[] binaryValue;
+
+  public MessageAttribute(String dataType, String stringValue, byte[] binaryValue) {
+    this.dataType = dataType;
+    this.stringValue = stringValue;
+    this.binaryValue = binaryValue;
+  }
+
+  public String getDataType() {
+    return dataType;
+  }
+
+  public String getStringValue() {
+    return stringValue;
+  }
+
+  public byte[] getBinaryValue() {
+    return binaryValue;
+  }
+
+  /**
+   * MD5 over the attributes sorted by name, as computed by SQS: every name, type and value is prefixed with its 4 byte
+   * length, values also with a transport type byte
+   * @return hex digest, null for no attributes
+   */
+  public static String md5Of(Map<String, MessageAttribute> attributes) {
+    if (attributes == null || attributes.isEmpty()) {
+      return null;
+    }
+    MessageDigest digest = Digests.digest("MD5");
+    for (Map.Entry<String, MessageAttribute> entry : new TreeMap<>(attributes).entrySet()) {
+      MessageAttribute attribute = entry.getValue();
+      update(digest, entry.getKey().getBytes(StandardCharsets.UTF_8));
+      update(digest, attribute.dataType.getBytes(StandardCharsets.UTF_8));
+      if (attribute.stringValue != null) {
+        digest.update(STRING_TRANSPORT_TYPE);
+        update(digest, attribute.stringValue.getBytes(StandardCharsets.UTF_8));
+      } else {
+        digest.update(BINARY_TRANSPORT_TYPE);
+        update(digest, attribute.binaryValue);
+      }
+    }
+    return Digests.toHex(digest.digest());
+  }
+
+  private static void update(MessageDigest digest, byte[] value) {
+    digest.update(ByteBuffer.allocate(4).putInt(value.length).array());
+    digest.update(value);
+  }
+}
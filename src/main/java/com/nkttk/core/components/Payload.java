@@ -0,0 +1,39 @@
+package com.nkttk.core.components;
+
+import com.nkttk.io.Digests;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable message body encoded once, shared by every queue a published message is delivered to. The bytes are never
+ * copied, holders must not modify them. The MD5 digest is computed on first use, once for all holders.
+ */
+public class Payload {
+  private final byte[] bytes;
+  private volatile String md5;
+
+  public Payload(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  public static Payload of(String body) {
+    return new Payload(body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  public int getLength() {
+    return bytes.length;
+  }
+
+  public String getMd5() {
+    String result = md5;
+    if (result == null) {
+      result = Digests.md5Hex(bytes);
+      md5 = result;
+    }
+    return result;
+  }
+}
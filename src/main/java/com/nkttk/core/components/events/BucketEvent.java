@@ -26,11 +26,20 @@ public class BucketEvent {
   private Bucket bucket;
   private BucketObject bucketObject;
   private BucketEventType bucketEventType;
+  private long eventTime;
 
   public BucketEvent(Bucket bucket, BucketObject bucketObject, BucketEventType bucketEventType) {
+    this(bucket, bucketObject, bucketEventType, 0);
+  }
+
+  /**
+   * @param eventTime ms when the event happened
+   */
+  public BucketEvent(Bucket bucket, BucketObject bucketObject, BucketEventType bucketEventType, long eventTime) {
     this.bucketObject = bucketObject;
     this.bucketEventType = bucketEventType;
     this.bucket = bucket;
+    this.eventTime = eventTime;
   }
 
 
@@ -45,4 +54,8 @@ public class BucketEvent {
   public Bucket getBucket() {
     return bucket;
   }
+
+  public long getEventTime() {
+    return eventTime;
+  }
 }
@@ -1,16 +1,37 @@
 package com.nkttk.core.components.events;
 
 import com.amazonaws.services.s3.event.S3EventNotification;
+import com.nkttk.core.components.sns.entities.SNSMessage;
+import com.nkttk.core.components.sqs.entities.ReceivedMessage;
+import com.nkttk.core.components.sqs.entities.SQSMessage;
 
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Sample event time : "1970-01-01T00:00:00.000Z"
  */
 public class EventBuilder {
   public static final String EVENT_SOURCE_S3 = "engine:s3";
+  public static final String EVENT_SOURCE_SQS = "aws:sqs";
+  public static final String EVENT_SOURCE_SNS = "aws:sns";
+  public static final String SNS_NOTIFICATION = "Notification";
+  public static final String AWS_REGION = "us-east-1";
 
   public static final S3EventNotification buildS3Notification(BucketEventType type, String bucketName, String bucketArn, String fileName, int fileSize, String eTag) {
+    return buildS3Notification(type, bucketName, bucketArn, fileName, fileSize, eTag, 0);
+  }
+
+  /**
+   * @param eventTime ms when the event happened
+   */
+  public static final S3EventNotification buildS3Notification(BucketEventType type, String bucketName, String bucketArn, String fileName, int fileSize, String eTag, long eventTime) {
     S3EventNotification.S3ObjectEntity objectEntity = new S3EventNotification.S3ObjectEntity(fileName, fileSize, eTag, "1");
     S3EventNotification.S3BucketEntity bucket = new S3EventNotification.S3BucketEntity(bucketName, null, bucketArn);
     S3EventNotification.S3Entity s3Entity = new S3EventNotification.S3Entity("testConfigRule", bucket, objectEntity, "1");
@@ -20,11 +41,65 @@ public class EventBuilder {
         new S3EventNotification.S3EventNotificationRecord("",
                                                           type.getS3Name(),
                                                           EVENT_SOURCE_S3,
-                                                          "1970-01-01T00:00:00.000Z",
+                                                          Instant.ofEpochMilli(eventTime).toString(),
                                                           "1",
                                                           requestParametersEntity,
                                                           responseElementsEntity, s3Entity, null);
     S3EventNotification notification = new S3EventNotification(Arrays.asList(records));
     return notification;
   }
+
+  public static SQSEvent buildSQSEvent(String queueArn, List<ReceivedMessage> messages) {
+    List<SQSEvent.SQSEventRecord> records = new ArrayList<>(messages.size());
+    for (ReceivedMessage message : messages) {
+      SQSEvent.SQSEventRecord record = new SQSEvent.SQSEventRecord();
+      record.setMessageId(message.getId());
+      record.setReceiptHandle(message.getReceiptHandle());
+      record.setBody(message.getBody());
+      record.setMd5OfBody(message.getMd5OfBody());
+      record.setMd5OfMessageAttributes(message.getMd5OfAttributes());
+      record.setEventSourceArn(queueArn);
+      record.setEventSource(EVENT_SOURCE_SQS);
+      record.setAwsRegion(AWS_REGION);
+      Map<String, String> attributes = new HashMap<>();
+      attributes.put("ApproximateReceiveCount", Integer.toString(message.getReceiveCount()));
+      attributes.put("SentTimestamp", Long.toString(message.getSentTimestamp()));
+      attributes.put("ApproximateFirstReceiveTimestamp", Long.toString(message.getFirstReceiveTimestamp()));
+      if (message.getGroupId() != null) {
+        attributes.put("MessageGroupId", message.getGroupId());
+        attributes.put("MessageDeduplicationId", message.getDeduplicationId());
+        attributes.put("SequenceNumber", Long.toString(message.getSequenceNumber()));
+      }
+      record.setAttributes(attributes);
+      Map<String, SQSEvent.MessageAttribute> messageAttributes = new HashMap<>();
+      message.getAttributes().forEach((name, attribute) -> messageAttributes.put(name,
+          new SQSEvent.MessageAttribute(attribute.getDataType(), attribute.getStringValue(), attribute.getBinaryValue())));
+      record.setMessageAttributes(messageAttributes);
+      records.add(record);
+    }
+    return new SQSEvent(records);
+  }
+
+  /**
+   * Binary attribute values are base64 encoded, as SNS does
+   */
+  public static SNSEvent buildSNSEvent(String topicArn, String subscriptionArn, SNSMessage message) {
+    SNSEvent.SNS sns = new SNSEvent.SNS();
+    sns.setType(SNS_NOTIFICATION);
+    sns.setMessageId(message.getId());
+    sns.setTopicArn(topicArn);
+    sns.setMessage(message.getBody());
+    sns.setTimestamp(Instant.ofEpochMilli(message.getTimestamp()).toString());
+    Map<String, SNSEvent.MessageAttribute> messageAttributes = new HashMap<>();
+    message.getAttributes().forEach((name, attribute) -> messageAttributes.put(name, new SNSEvent.MessageAttribute(
+        attribute.getDataType(), attribute.getStringValue() != null ? attribute.getStringValue()
+        : Base64.getEncoder().encodeToString(attribute.getBinaryValue()))));
+    sns.setMessageAttributes(messageAttributes);
+    SNSEvent.SNSRecord record = new SNSEvent.SNSRecord();
+    record.setEventSource(EVENT_SOURCE_SNS);
+    record.setEventVersion("1.0");
+    record.setEventSubscriptionArn(subscriptionArn);
+    record.setSns(sns);
+    return new SNSEvent(Collections.singletonList(record));
+  }
 }
@@ -0,0 +1,160 @@
+package com.nkttk.core.components.events;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lambda event of an SNS subscription, serialized with the bean property names of the Lambda events library
+ */
+public class SNSEvent {
+  private List<SNSRecord> records;
+
+  public SNSEvent() {
+  }
+
+  public SNSEvent(List<SNSRecord> records) {
+    this.records = records;
+  }
+
+  public List<SNSRecord> getRecords() {
+    return records;
+  }
+
+  public void setRecords(List<SNSRecord> records) {
+    this.records = records;
+  }
+
+  public static class SNSRecord {
+    private String eventSource;
+    private String eventVersion;
+    private String eventSubscriptionArn;
+    private SNS sns;
+
+    public String getEventSource() {
+      return eventSource;
+    }
+
+    public void setEventSource(String eventSource) {
+      this.eventSource = eventSource;
+    }
+
+    public String getEventVersion() {
+      return eventVersion;
+    }
+
+    public void setEventVersion(String eventVersion) {
+      this.eventVersion = eventVersion;
+    }
+
+    public String getEventSubscriptionArn() {
+      return eventSubscriptionArn;
+    }
+
+    public void setEventSubscriptionArn(String eventSubscriptionArn) {
+      this.eventSubscriptionArn = eventSubscriptionArn;
+    }
+
+    public SNS getSns() {
+      return sns;
+    }
+
+    public void setSns(SNS sns) {
+      this.sns = sns;
+    }
+  }
+
+  public static class SNS {
+    private String type;
+    private String messageId;
+    private String topicArn;
+    private String subject;
+    private String message;
+    private String timestamp;
+    private Map<String, MessageAttribute> messageAttributes;
+
+    public String getType() {
+      return type;
+    }
+
+    public void setType(String type) {
+      this.type = type;
+    }
+
+    public String getMessageId() {
+      return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+      this.messageId = messageId;
+    }
+
+    public String getTopicArn() {
+      return topicArn;
+    }
+
+    public void setTopicArn(String topicArn) {
+      this.topicArn = topicArn;
+    }
+
+    public String getSubject() {
+      return subject;
+    }
+
+    public void setSubject(String subject) {
+      this.subject = subject;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+
+    public void setMessage(String message) {
+      this.message = message;
+    }
+
+    public String getTimestamp() {
+      return timestamp;
+    }
+
+    public void setTimestamp(String timestamp) {
+      this.timestamp = timestamp;
+    }
+
+    public Map<String, MessageAttribute> getMessageAttributes() {
+      return messageAttributes;
+    }
+
+    public void setMessageAttributes(Map<String, MessageAttribute> messageAttributes) {
+      this.messageAttributes = messageAttributes;
+    }
+  }
+
+  public static class MessageAttribute {
+    private String type;
+    private String value;
+
+    public MessageAttribute() {
+    }
+
+    public MessageAttribute(String type, String value) {
+      this.type = type;
+      this.value = value;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public void setType(String type) {
+      this.type = type;
+    }
+
+    public String getValue() {
+      return value;
+    }
+
+    public void setValue(String value) {
+      this.value = value;
+    }
+  }
+}
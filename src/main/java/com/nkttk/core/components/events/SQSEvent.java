@@ -0,0 +1,158 @@
+package com.nkttk.core.components.events;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lambda event of an SQS event source mapping, serialized with the bean property names of the Lambda events library
+ */
+public class SQSEvent {
+  private List<SQSEventRecord> records;
+
+  public SQSEvent() {
+  }
+
+  public SQSEvent(List<SQSEventRecord> records) {
+    this.records = records;
+  }
+
+  public List<SQSEventRecord> getRecords() {
+    return records;
+  }
+
+  public void setRecords(List<SQSEventRecord> records) {
+    this.records = records;
+  }
+
+  public static class SQSEventRecord {
+    private String messageId;
+    private String receiptHandle;
+    private String body;
+    private String md5OfBody;
+    private String md5OfMessageAttributes;
+    private String eventSourceArn;
+    private String eventSource;
+    private String awsRegion;
+    private Map<String, String> attributes;
+    private Map<String, MessageAttribute> messageAttributes;
+
+    public String getMessageId() {
+      return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+      this.messageId = messageId;
+    }
+
+    public String getReceiptHandle() {
+      return receiptHandle;
+    }
+
+    public void setReceiptHandle(String receiptHandle) {
+      this.receiptHandle = receiptHandle;
+    }
+
+    public String getBody() {
+      return body;
+    }
+
+    public void setBody(String body) {
+      this.body = body;
+    }
+
+    public String getMd5OfBody() {
+      return md5OfBody;
+    }
+
+    public void setMd5OfBody(String md5OfBody) {
+      this.md5OfBody = md5OfBody;
+    }
+
+    public String getMd5OfMessageAttributes() {
+      return md5OfMessageAttributes;
+    }
+
+    public void setMd5OfMessageAttributes(String md5OfMessageAttributes) {
+      this.md5OfMessageAttributes = md5OfMessageAttributes;
+    }
+
+    public String getEventSourceArn() {
+      return eventSourceArn;
+    }
+
+    public void setEventSourceArn(String eventSourceArn) {
+      this.eventSourceArn = eventSourceArn;
+    }
+
+    public String getEventSource() {
+      return eventSource;
+    }
+
+    public void setEventSource(String eventSource) {
+      this.eventSource = eventSource;
+    }
+
+    public String getAwsRegion() {
+      return awsRegion;
+    }
+
+    public void setAwsRegion(String awsRegion) {
+      this.awsRegion = awsRegion;
+    }
+
+    public Map<String, String> getAttributes() {
+      return attributes;
+    }
+
+    public void setAttributes(Map<String, String> attributes) {
+      this.attributes = attributes;
+    }
+
+    public Map<String, MessageAttribute> getMessageAttributes() {
+      return messageAttributes;
+    }
+
+    public void setMessageAttributes(Map<String, MessageAttribute> messageAttributes) {
+      this.messageAttributes = messageAttributes;
+    }
+  }
+
+  public static class MessageAttribute {
+    private String dataType;
+    private String stringValue;
+    private byte[] binaryValue;
+
+    public MessageAttribute() {
+    }
+
+    public MessageAttribute(String dataType, String stringValue, byte[] binaryValue) {
+      this.dataType = dataType;
+      this.stringValue = stringValue;
+      this.binaryValue = binaryValue;
+    }
+
+    public String getDataType() {
+      return dataType;
+    }
+
+    public void setDataType(String dataType) {
+      this.dataType = dataType;
+    }
+
+    public String getStringValue() {
+      return stringValue;
+    }
+
+    public void setStringValue(String stringValue) {
+      this.stringValue = stringValue;
+    }
+
+    public byte[] getBinaryValue() {
+      return binaryValue;
+    }
+
+    public void setBinaryValue(byte[] binaryValue) {
+      this.binaryValue = binaryValue;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.nkttk.core.components.lambda;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Caps the concurrent invocations of one function. Submitting never blocks: invocations over the limit wait in an
+ * unbounded queue and are started on the executor as running ones complete. An invocation the executor rejects, once
+ * it's shut down, gives its slot back and is handed to its rejection callback.
+ */
+class ConcurrencyLimiter {
+    private final LambdaExecutor executor;
+    private final Queue<Task> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile int limit;
+
+    ConcurrencyLimiter(LambdaExecutor executor, int limit) {
+        this.executor = executor;
+        this.limit = limit;
+    }
+
+    void submit(Runnable invocation, Consumer<RejectedExecutionException> rejected) {
+        pending.add(new Task(invocation, rejected));
+        drain();
+    }
+
+    void setLimit(int limit) {
+        this.limit = limit;
+        drain();
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    int getRunningCount() {
+        return running.get();
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Starts pending invocations while slots are free. Both submitting and completing call it after changing their
+     * side, so an invocation is never left pending with a free slot.
+     */
+    private void drain() {
+        while (!pending.isEmpty()) {
+            int current = running.get();
+            if (current >= limit) {
+                return;
+            }
+            if (!running.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Task task = pending.poll();
+            if (task == null) {
+                running.decrementAndGet();
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.invocation.run();
+                    } finally {
+                        running.decrementAndGet();
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                running.decrementAndGet();
+                task.rejected.accept(e);
+            }
+        }
+    }
+
+    private static class Task {
+        private final Runnable invocation;
+        private final Consumer<RejectedExecutionException> rejected;
+
+        private Task(Runnable invocation, Consumer<RejectedExecutionException> rejected) {
+            this.invocation = invocation;
+            this.rejected = rejected;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.nkttk.core.components.lambda;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.nkttk.core.components.Ids;
+import com.nkttk.core.components.events.EventBuilder;
+import com.nkttk.core.components.events.SQSEvent;
+import com.nkttk.core.components.sqs.SQSInstance;
+import com.nkttk.core.components.sqs.entities.ReceivedMessage;
+import com.nkttk.core.components.sqs.entities.VisibilityChange;
+import com.nkttk.core.engine.timer.Clock;
+import com.nkttk.json.JsonMaster;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Polls a queue and invokes a function with batches of its messages. A batch is closed once it holds batchSize
+ * messages or the batching window has passed since its first message. Up to maxConcurrency batches are processed at a
+ * time, the poller waits for a free slot before receiving more messages so nothing sits locked in memory.
+ * <p>
+ * Messages of a successful invocation are deleted, messages listed in batchItemFailures of the result or of a
+ * failed invocation stay in the queue and become visible again after the visibility timeout.
+ */
+public class EventSourceMapping {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventSourceMapping.class);
+    public static final int DEFAULT_BATCH_SIZE = 10;
+    public static final int DEFAULT_MAX_CONCURRENCY = 5;
+    private static final long POLL_WAIT_TIME = 1000;
+
+    private final String uuid = Ids.next();
+    private final String functionName;
+    private final SQSInstance queue;
+    private final int batchSize;
+    private final long batchingWindow;
+    private final Semaphore concurrency;
+    private final LambdaEngine lambdaEngine;
+    private final LambdaExecutor executor;
+    private final Clock clock;
+    private final long createdAt;
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder processedMessages = new LongAdder();
+    private final LongAdder failedMessages = new LongAdder();
+    private final AtomicInteger inFlightMessages = new AtomicInteger();
+    private final AtomicInteger inFlightBatches = new AtomicInteger();
+    private volatile boolean running;
+    private volatile long lastModified;
+    private Thread poller;
+
+    /**
+     * @param batchingWindow ms to wait for a batch to fill up, 0 invokes with whatever a single receive returned
+     */
+    EventSourceMapping(String functionName, SQSInstance queue, int batchSize, long batchingWindow, int maxConcurrency,
+                       LambdaEngine lambdaEngine, LambdaExecutor executor, Clock clock) {
+        this.functionName = functionName;
+        this.queue = queue;
+        this.batchSize = batchSize;
+        this.batchingWindow = batchingWindow;
+        this.concurrency = new Semaphore(maxConcurrency);
+        this.lambdaEngine = lambdaEngine;
+        this.executor = executor;
+        this.clock = clock;
+        this.createdAt = clock.currentTimeMillis();
+        this.lastModified = createdAt;
+    }
+
+    synchronized void start() {
+        if (poller == null) {
+            running = true;
+            poller = new Thread(this::poll, "haze-lambda-poller-" + functionName);
+            poller.setDaemon(true);
+            poller.start();
+            lastModified = clock.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Stops polling, batches already handed over to the function still complete. A batch still being collected is
+     * not handed over, its messages become visible again right away.
+     */
+    synchronized void stop() {
+        running = false;
+        if (poller != null) {
+            poller.interrupt();
+            poller = null;
+            lastModified = clock.currentTimeMillis();
+        }
+    }
+
+    public String getUUID() {
+        return uuid;
+    }
+
+    public String getFunctionName() {
+        return functionName;
+    }
+
+    public SQSInstance getQueue() {
+        return queue;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchingWindow() {
+        return batchingWindow;
+    }
+
+    public boolean isRunning() {
+        return running && !queue.isClosed();
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getInvocationCount() {
+        return invocations.sum();
+    }
+
+    public long getProcessedCount() {
+        return processedMessages.sum();
+    }
+
+    public long getFailedCount() {
+        return failedMessages.sum();
+    }
+
+    public int getInFlightMessages() {
+        return inFlightMessages.get();
+    }
+
+    public int getInFlightBatches() {
+        return inFlightBatches.get();
+    }
+
+    /**
+     * @return successfully processed messages per second since the mapping was created
+     */
+    public double getThroughput() {
+        long elapsed = Math.max(1, clock.currentTimeMillis() - createdAt);
+        return processedMessages.sum() * 1000.0 / elapsed;
+    }
+
+    private void poll() {
+        while (running && !queue.isClosed()) {
+            try {
+                concurrency.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            List<ReceivedMessage> batch = collectBatch();
+            if (batch.isEmpty()) {
+                concurrency.release();
+                continue;
+            }
+            if (!running) {
+                concurrency.release();
+                unlock(batch);
+                break;
+            }
+            inFlightBatches.incrementAndGet();
+            inFlightMessages.addAndGet(batch.size());
+            try {
+                executor.execute(() -> {
+                    try {
+                        invoke(batch);
+                    } finally {
+                        inFlightMessages.addAndGet(-batch.size());
+                        inFlightBatches.decrementAndGet();
+                        concurrency.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlightMessages.addAndGet(-batch.size());
+                inFlightBatches.decrementAndGet();
+                concurrency.release();
+                unlock(batch);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Makes messages which won't be handed over visible again
+     */
+    private void unlock(List<ReceivedMessage> batch) {
+        List<VisibilityChange> changes = new ArrayList<>(batch.size());
+        for (ReceivedMessage message : batch) {
+            changes.add(new VisibilityChange(message.getId(), message.getReceiptHandle(), 0));
+        }
+        queue.changeMessagesVisibility(changes);
+    }
+
+    private List<ReceivedMessage> collectBatch() {
+        List<ReceivedMessage> batch = new ArrayList<>(queue.getMessages(batchSize, POLL_WAIT_TIME));
+        if (batch.isEmpty() || batchingWindow <= 0) {
+            return batch;
+        }
+        long deadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchingWindow);
+        while (batch.size() < batchSize && !queue.isClosed() && !Thread.currentThread().isInterrupted()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - clock.nanoTime());
+            if (remaining <= 0) {
+                break;
+            }
+            batch.addAll(queue.getMessages(batchSize - batch.size(), remaining));
+        }
+        return batch;
+    }
+
+    private void invoke(List<ReceivedMessage> batch) {
+        invocations.increment();
+        SQSEvent event = EventBuilder.buildSQSEvent(queue.getArn(), batch);
+        Set<String> failedIds;
+        try {
+            ByteBuffer payload = ByteBuffer.wrap(JsonMaster.toString(event).getBytes(StandardCharsets.UTF_8));
+            failedIds = batchItemFailures(lambdaEngine.runLambda(functionName, payload));
+        } catch (Exception e) {
+            LOGGER.warn("Lambda {} failed on a batch of {} messages from {}", functionName, batch.size(), queue.getName(), e);
+            failedMessages.add(batch.size());
+            return;
+        }
+        Map<String, String> handlesById = new HashMap<>();
+        for (ReceivedMessage message : batch) {
+            if (!failedIds.contains(message.getId())) {
+                handlesById.put(message.getId(), message.getReceiptHandle());
+            }
+        }
+        if (!handlesById.isEmpty()) {
+            queue.deleteMessages(handlesById);
+        }
+        processedMessages.add(handlesById.size());
+        failedMessages.add(batch.size() - handlesById.size());
+    }
+
+    /**
+     * @return ids of the partial batch response, empty if the function returned anything else
+     */
+    private static Set<String> batchItemFailures(ByteBuffer result) throws IOException {
+        Set<String> failedIds = new HashSet<>();
+        if (result == null) {
+            return failedIds;
+        }
+        JsonNode failures = JsonMaster.om().readTree(new String(result.array(), StandardCharsets.UTF_8))
+            .path("batchItemFailures");
+        for (JsonNode failure : failures) {
+            failedIds.add(failure.path("itemIdentifier").asText());
+        }
+        return failedIds;
+    }
+}
@@ -4,14 +4,26 @@ import com.amazonaws.services.lambda.runtime.ClientContext;
 import com.amazonaws.services.lambda.runtime.CognitoIdentity;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.nkttk.core.engine.timer.Clock;
 
 public class LambdaContext implements Context {
   private String functionName;
+  private Clock clock;
+  private long deadline;
 
   public LambdaContext(String functionName) {
     this.functionName = functionName;
   }
 
+  /**
+   * @param deadline ms by the clock when the invocation times out
+   */
+  public LambdaContext(String functionName, Clock clock, long deadline) {
+    this.functionName = functionName;
+    this.clock = clock;
+    this.deadline = deadline;
+  }
+
   @Override
   public String getAwsRequestId() {
     throw new RuntimeException("NOT IMPLEMENTED");
@@ -54,7 +66,10 @@ public class LambdaContext implements Context {
 
   @Override
   public int getRemainingTimeInMillis() {
-    return 0;
+    if (clock == null) {
+      return 0;
+    }
+    return (int) Math.max(0, Math.min(Integer.MAX_VALUE, deadline - clock.currentTimeMillis()));
   }
 
   @Override
@@ -3,6 +3,8 @@ package com.nkttk.core.components.lambda;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JavaType;
+import com.nkttk.core.components.sqs.SQSInstance;
+import com.nkttk.core.engine.timer.Clock;
 import com.nkttk.json.JsonMaster;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,31 +16,187 @@ import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 public class LambdaEngine {
     private static final Logger LOGGER = LoggerFactory.getLogger(LambdaEngine.class);
+    public static final String FUNCTION_ARN_PREFIX = "arn:aws:lambda:us-east-1:000000000000:function:";
+    public static final int DEFAULT_FUNCTION_CONCURRENCY = 10;
     private LambdaBuilder lambdaBuilder;
+    private final Clock clock;
+    private final LambdaExecutor executor = new LambdaExecutor();
+    private final Map<String, EventSourceMapping> eventSourceMappings = new ConcurrentHashMap<>();
+    private final Map<String, ConcurrencyLimiter> concurrencyLimiters = new ConcurrentHashMap<>();
+    private final Map<String, Long> functionTimeouts = new ConcurrentHashMap<>();
 
     public LambdaEngine(LambdaBuilder lambdaBuilder) {
+        this(lambdaBuilder, Clock.SYSTEM);
+    }
+
+    public LambdaEngine(LambdaBuilder lambdaBuilder, Clock clock) {
         this.lambdaBuilder = lambdaBuilder;
+        this.clock = clock;
+    }
+
+    /**
+     * Starts polling the queue for the function
+     * @param batchingWindow ms to wait for a batch to fill up
+     */
+    public EventSourceMapping createEventSourceMapping(String functionName, SQSInstance queue, int batchSize,
+                                                      long batchingWindow, int maxConcurrency) {
+        EventSourceMapping mapping = new EventSourceMapping(functionName, queue, batchSize, batchingWindow,
+                maxConcurrency, this, executor, clock);
+        eventSourceMappings.put(mapping.getUUID(), mapping);
+        mapping.start();
+        return mapping;
+    }
+
+    public Optional<EventSourceMapping> deleteEventSourceMapping(String uuid) {
+        EventSourceMapping mapping = eventSourceMappings.remove(uuid);
+        if (mapping != null) {
+            mapping.stop();
+        }
+        return Optional.ofNullable(mapping);
+    }
+
+    public Optional<EventSourceMapping> getEventSourceMapping(String uuid) {
+        return Optional.ofNullable(eventSourceMappings.get(uuid));
+    }
+
+    public Collection<EventSourceMapping> getEventSourceMappings() {
+        return eventSourceMappings.values();
+    }
+
+    /**
+     * Stops all event source mappings and the lambda executor, invocations already running still complete
+     */
+    public void shutdown() {
+        eventSourceMappings.values().forEach(EventSourceMapping::stop);
+        eventSourceMappings.clear();
+        executor.shutdown();
+    }
+
+    /**
+     * Invokes the function on the lambda executor without waiting for it, at most the function's concurrency limit of
+     * invocations run at a time and further ones are queued
+     * @return completes with the function's result, or exceptionally if it failed
+     */
+    public CompletableFuture<ByteBuffer> invokeAsync(String name, ByteBuffer arg) {
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        concurrencyLimiter(name).submit(() -> {
+            try {
+                result.complete(runLambda(name, arg));
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        }, result::completeExceptionally);
+        return result;
+    }
+
+    /**
+     * @param limit maximum concurrent asynchronous invocations of the function, DEFAULT_FUNCTION_CONCURRENCY if unset
+     */
+    public void setFunctionConcurrency(String name, int limit) {
+        if (limit < 1) {
+            throw new RuntimeException("Function concurrency must be positive : " + limit);
+        }
+        concurrencyLimiter(name).setLimit(limit);
+    }
+
+    public int getFunctionConcurrency(String name) {
+        return concurrencyLimiter(name).getLimit();
+    }
+
+    /**
+     * @return asynchronous invocations of the function currently running
+     */
+    public int getRunningInvocations(String name) {
+        return concurrencyLimiter(name).getRunningCount();
+    }
+
+    /**
+     * @return asynchronous invocations of the function waiting for a free slot
+     */
+    public int getPendingInvocations(String name) {
+        return concurrencyLimiter(name).getPendingCount();
+    }
+
+    /**
+     * An invocation running longer is interrupted and fails, its result is discarded if the function ignores the
+     * interrupt. The deadline is a timer of the engine's clock.
+     * @param timeout ms, 0 for no timeout which is the default
+     */
+    public void setFunctionTimeout(String name, long timeout) {
+        if (timeout < 0) {
+            throw new RuntimeException("Function timeout must not be negative : " + timeout);
+        }
+        functionTimeouts.put(name, timeout);
+    }
+
+    public long getFunctionTimeout(String name) {
+        return functionTimeouts.getOrDefault(name, 0L);
+    }
+
+    private ConcurrencyLimiter concurrencyLimiter(String name) {
+        return concurrencyLimiters.computeIfAbsent(name,
+                functionName -> new ConcurrencyLimiter(executor, DEFAULT_FUNCTION_CONCURRENCY));
     }
 
     public ByteBuffer runLambda(String name, ByteBuffer arg) throws IOException, ClassNotFoundException {
         RequestHandler<?, ?> requestHandler = (RequestHandler<?, ?>) lambdaBuilder.getProduceFunction().apply(name);
         if (name != null) {
-            return execute(name, arg, requestHandler);
+            long timeout = getFunctionTimeout(name);
+            return timeout > 0 ? execute(name, arg, requestHandler, timeout) : execute(name, arg, requestHandler);
         } else {
             throw new RuntimeException("No function found : " + name);
         }
     }
 
     public <I, O> ByteBuffer execute(String name, ByteBuffer input, RequestHandler<I, O> requestHandler) throws IOException, ClassNotFoundException {
+        return execute(name, input, requestHandler, new LambdaContext(name));
+    }
+
+    private <I, O> ByteBuffer execute(String name, ByteBuffer input, RequestHandler<I, O> requestHandler, long timeout)
+            throws IOException, ClassNotFoundException {
+        long deadline = clock.currentTimeMillis() + timeout;
+        Invocation invocation = new Invocation(Thread.currentThread());
+        Runnable cancelTimeout = clock.schedule(deadline, invocation::expire);
+        ByteBuffer result;
+        try {
+            result = execute(name, input, requestHandler, new LambdaContext(name, clock, deadline));
+        } catch (Exception e) {
+            if (!invocation.complete()) {
+                throw timedOut(name, timeout);
+            }
+            throw e;
+        } finally {
+            invocation.complete();
+            cancelTimeout.run();
+        }
+        if (!invocation.complete()) {
+            throw timedOut(name, timeout);
+        }
+        return result;
+    }
+
+    /**
+     * Clears the interrupt the timeout left on the invoking thread
+     */
+    private static RuntimeException timedOut(String name, long timeout) {
+        Thread.interrupted();
+        return new RuntimeException(String.format("%s Task timed out after %.2f seconds", name, timeout / 1000.0));
+    }
+
+    private <I, O> ByteBuffer execute(String name, ByteBuffer input, RequestHandler<I, O> requestHandler,
+                                      LambdaContext context) throws IOException, ClassNotFoundException {
         String arg = new String(input.array());
         TypeReference<I> typeReference = new TypeReference<I>() {
         };
         I argumentDeserialized = (I) deserializer(requestHandler).apply(arg);
-        LambdaContext context = new LambdaContext(name);
         O result = requestHandler.handleRequest(argumentDeserialized, context);
         LOGGER.debug("Running lambda {} with args {} \n Result: \n {}", name, argumentDeserialized, result);
         return ByteBuffer.wrap(JsonMaster.toString(result).getBytes());
@@ -93,4 +251,37 @@ public class LambdaEngine {
         }
         throw new RuntimeException("Request handler argument type not found");
     }
+
+    /**
+     * Invocation under a timeout, the timer interrupts the invoking thread only while the invocation is running
+     */
+    private static class Invocation {
+        private static final int RUNNING = 0;
+        private static final int COMPLETED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Thread thread;
+        private int state = RUNNING;
+
+        private Invocation(Thread thread) {
+            this.thread = thread;
+        }
+
+        private synchronized void expire() {
+            if (state == RUNNING) {
+                state = EXPIRED;
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * @return false if the invocation timed out
+         */
+        private synchronized boolean complete() {
+            if (state == RUNNING) {
+                state = COMPLETED;
+            }
+            return state == COMPLETED;
+        }
+    }
 }
@@ -0,0 +1,77 @@
+package com.nkttk.core.components.lambda;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs lambda invocations, on virtual threads when the runtime has them and on a pool of daemon threads otherwise.
+ * Callers bound their own concurrency, the pool size only limits platform threads.
+ */
+public class LambdaExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LambdaExecutor.class);
+    public static final int DEFAULT_POOL_SIZE = 64;
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final AtomicInteger active = new AtomicInteger();
+
+    public LambdaExecutor() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    public LambdaExecutor(int poolSize) {
+        ExecutorService virtualExecutor = newVirtualThreadExecutor();
+        this.virtual = virtualExecutor != null;
+        this.executor = virtual ? virtualExecutor : newDaemonPool(poolSize);
+    }
+
+    public void execute(Runnable task) {
+        executor.execute(() -> {
+            active.incrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Lambda invocation failed", e);
+            } finally {
+                active.decrementAndGet();
+            }
+        });
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Virtual threads exist from Java 21 on while this project targets Java 8, so the factory is looked up reflectively
+     * @return null if the runtime has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newDaemonPool(int poolSize) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(poolSize, runnable -> {
+            Thread thread = new Thread(runnable, "haze-lambda-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -1,6 +1,6 @@
 package com.nkttk.core.components.s3;
 
-import java.util.UUID;
+import com.nkttk.core.components.Ids;
 
 /**
  *
@@ -12,7 +12,7 @@ public class BucketObject {
 
   public BucketObject(String key) {
     this.key = key;
-    this.etag = UUID.randomUUID().toString();
+    this.etag = Ids.next();
   }
 
   public String getKey() {
@@ -2,15 +2,15 @@ package com.nkttk.core.components.s3;
 
 
 import com.nkttk.core.components.ComponentIdentifier;
+import com.nkttk.core.components.ComponentRegistry;
 import com.nkttk.core.components.events.BucketEvent;
 import com.nkttk.core.components.events.BucketEventType;
+import com.nkttk.core.engine.timer.Clock;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.function.Consumer;
 
 /**
@@ -18,20 +18,29 @@ import java.util.function.Consumer;
  */
 public class S3Engine {
     private List<EventSubscription> eventSubscriptions = new LinkedList<>();
-    private Map<String, Bucket> buckets = new HashMap<>();
+    private ComponentRegistry<Bucket> buckets = new ComponentRegistry<>(Bucket::getName, Bucket::getUrl, null);
+    private final Clock clock;
 
+    public S3Engine() {
+        this(Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock stamps the time of bucket events
+     */
+    public S3Engine(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return the added bucket, or the existing one with the same name
+     */
     public Bucket addBucket(String name) {
-        Bucket result = new Bucket(name);
-        buckets.put(name, result);
-        return result;
+        return buckets.register(new Bucket(name));
     }
 
     public List<ComponentIdentifier> getIdentifiers() {
-        List<ComponentIdentifier> identifiers = new LinkedList<>();
-        for (String key : buckets.keySet()) {
-            identifiers.add(new ComponentIdentifier(key, buckets.get(key).getUrl()));
-        }
-        return identifiers;
+        return buckets.getIdentifiers();
     }
 
     public BucketObject addFile(String bucketName, String fileName, String content) {
@@ -41,17 +50,17 @@ public class S3Engine {
     public BucketObject addFile(String bucketName, String fileName, InputStream content) {
         Bucket bucket = getBucket(bucketName);
         BucketObject bucketObject = bucket.addFile(fileName, content);
+        long eventTime = clock.currentTimeMillis();
         eventSubscriptions.forEach(subscription -> {
             if (subscription.getEventType() == BucketEventType.PUT) {
-                subscription.getHandler().accept(new BucketEvent(bucket, bucketObject, BucketEventType.PUT));
+                subscription.getHandler().accept(new BucketEvent(bucket, bucketObject, BucketEventType.PUT, eventTime));
             }
         });
         return bucketObject;
     }
 
     public Bucket getBucket(String name) {
-        if (!buckets.containsKey(name)) throw new RuntimeException("Bucket not found : " + name);
-        return buckets.get(name);
+        return buckets.findByName(name).orElseThrow(() -> new RuntimeException("Bucket not found : " + name));
     }
 
     public void addEventSubscription(Bucket bucket, BucketEventType type, Consumer<BucketEvent> subscription) {
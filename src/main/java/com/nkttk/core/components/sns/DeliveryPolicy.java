@@ -0,0 +1,118 @@
+package com.nkttk.core.components.sns;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.nkttk.json.JsonMaster;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retry schedule of a subscription, parsed from the healthyRetryPolicy of an SNS DeliveryPolicy, delays in seconds:
+ * {"healthyRetryPolicy": {"numRetries": 3, "numNoDelayRetries": 0, "minDelayTarget": 1, "maxDelayTarget": 20,
+ * "backoffFunction": "exponential"}}
+ * <p>
+ * The first numNoDelayRetries retries are immediate, the remaining ones back off from minDelayTarget to maxDelayTarget.
+ */
+public class DeliveryPolicy {
+  public enum BackoffFunction {
+    LINEAR, ARITHMETIC, GEOMETRIC, EXPONENTIAL
+  }
+
+  /**
+   * Delay geometric and exponential backoff grow from when minDelay is shorter, so a zero minDelay still backs off
+   */
+  private static final long GEOMETRIC_BASE_DELAY = 1000;
+
+  private final String json;
+  private final int numRetries;
+  private final int numNoDelayRetries;
+  private final long minDelay;
+  private final long maxDelay;
+  private final BackoffFunction backoffFunction;
+
+  /**
+   * @param minDelay ms before the first delayed retry
+   * @param maxDelay ms before the last retry at most
+   */
+  public DeliveryPolicy(int numRetries, int numNoDelayRetries, long minDelay, long maxDelay,
+                        BackoffFunction backoffFunction) {
+    this(null, numRetries, numNoDelayRetries, minDelay, maxDelay, backoffFunction);
+  }
+
+  private DeliveryPolicy(String json, int numRetries, int numNoDelayRetries, long minDelay, long maxDelay,
+                         BackoffFunction backoffFunction) {
+    if (numRetries < 0 || numNoDelayRetries < 0 || minDelay < 0 || maxDelay < minDelay) {
+      throw new RuntimeException("Invalid delivery policy : retries " + numRetries + ", no delay retries "
+          + numNoDelayRetries + ", delays " + minDelay + " to " + maxDelay);
+    }
+    this.json = json;
+    this.numRetries = numRetries;
+    this.numNoDelayRetries = numNoDelayRetries;
+    this.minDelay = minDelay;
+    this.maxDelay = maxDelay;
+    this.backoffFunction = backoffFunction;
+  }
+
+  /**
+   * @throws RuntimeException if the policy is malformed
+   */
+  public static DeliveryPolicy parse(String json) {
+    JsonNode retryPolicy;
+    try {
+      retryPolicy = JsonMaster.om().readTree(json).path("healthyRetryPolicy");
+    } catch (IOException | RuntimeException e) {
+      throw new RuntimeException("Invalid delivery policy : " + json, e);
+    }
+    if (!retryPolicy.isObject()) {
+      throw new RuntimeException("Delivery policy has no healthyRetryPolicy : " + json);
+    }
+    BackoffFunction backoffFunction;
+    try {
+      backoffFunction = BackoffFunction.valueOf(retryPolicy.path("backoffFunction").asText("linear").toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new RuntimeException("Unknown backoff function : " + retryPolicy.path("backoffFunction").asText());
+    }
+    return new DeliveryPolicy(json, retryPolicy.path("numRetries").asInt(3), retryPolicy.path("numNoDelayRetries").asInt(0),
+        TimeUnit.SECONDS.toMillis(retryPolicy.path("minDelayTarget").asLong(20)),
+        TimeUnit.SECONDS.toMillis(retryPolicy.path("maxDelayTarget").asLong(20)), backoffFunction);
+  }
+
+  /**
+   * @return the parsed JSON, null if built in code
+   */
+  public String getJson() {
+    return json;
+  }
+
+  public int getNumRetries() {
+    return numRetries;
+  }
+
+  /**
+   * @param retry 1 for the first retry
+   * @return ms to wait before the retry
+   */
+  public long getDelay(int retry) {
+    if (retry <= numNoDelayRetries) {
+      return 0;
+    }
+    int backoffRetries = numRetries - numNoDelayRetries;
+    if (backoffRetries <= 1) {
+      return minDelay;
+    }
+    double progress = (double) (retry - numNoDelayRetries - 1) / (backoffRetries - 1);
+    switch (backoffFunction) {
+      case ARITHMETIC:
+        return minDelay + Math.round((maxDelay - minDelay) * progress * progress);
+      case GEOMETRIC:
+        long baseDelay = Math.max(minDelay, GEOMETRIC_BASE_DELAY);
+        return Math.min(maxDelay, baseDelay << Math.min(retry - numNoDelayRetries - 1, 32));
+      case EXPONENTIAL:
+        long startDelay = Math.min(Math.max(minDelay, GEOMETRIC_BASE_DELAY), maxDelay);
+        return startDelay == 0 ? 0 : Math.round(startDelay * Math.pow((double) maxDelay / startDelay, progress));
+      default:
+        return minDelay + Math.round((maxDelay - minDelay) * progress);
+    }
+  }
+}
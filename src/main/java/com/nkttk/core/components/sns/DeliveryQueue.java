@@ -0,0 +1,121 @@
+package com.nkttk.core.components.sns;
+
+import com.nkttk.core.components.sns.entities.SNSMessage;
+import com.nkttk.core.engine.timer.Clock;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded queue of messages waiting for one subscription, its first deliveries if the subscription is asynchronous and
+ * its retries. Offering never blocks: a message which doesn't fit is dropped and counted. A single drain task per
+ * queue delivers messages in order on a shared pool with a fixed number of threads, it is submitted only when the
+ * queue turns non-empty and yields the thread after a batch, so idle subscriptions hold no thread, many subscriptions
+ * don't multiply threads and a slow subscriber takes at most one delivery thread.
+ */
+class DeliveryQueue {
+  private static final int DRAIN_BATCH = 256;
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+  private static final int DELIVERY_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+  private static final ExecutorService SHARED_EXECUTOR = newSharedExecutor();
+
+  private final Subscription subscription;
+  private final Clock clock;
+  private final BlockingQueue<Pending> queue;
+  private final AtomicBoolean draining = new AtomicBoolean();
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * @param subscription attempts the deliveries
+   * @param clock measures how long messages wait
+   */
+  DeliveryQueue(Subscription subscription, int capacity, Clock clock) {
+    this.subscription = subscription;
+    this.clock = clock;
+    this.queue = new LinkedBlockingQueue<>(capacity);
+  }
+
+  /**
+   * @param retry 0 for the first delivery
+   * @return false if the queue is full and the message was dropped
+   */
+  boolean offer(SNSMessage message, int retry) {
+    if (!queue.offer(new Pending(message, retry, clock.nanoTime()))) {
+      dropped.increment();
+      return false;
+    }
+    scheduleDrain();
+    return true;
+  }
+
+  long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  int getPendingCount() {
+    return queue.size();
+  }
+
+  /**
+   * @return ms the oldest pending message has been waiting, 0 if nothing is pending
+   */
+  long getLagMillis() {
+    Pending head = queue.peek();
+    return head == null ? 0 : TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - head.enqueuedAt);
+  }
+
+  /**
+   * Pending drain tasks wait in the pool's queue, there is at most one per delivery queue. Idle threads time out.
+   */
+  private static ExecutorService newSharedExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(DELIVERY_THREADS, DELIVERY_THREADS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "haze-sns-delivery-" + THREAD_COUNT.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private void scheduleDrain() {
+    if (draining.compareAndSet(false, true)) {
+      SHARED_EXECUTOR.execute(this::drain);
+    }
+  }
+
+  /**
+   * Failed attempts are handled by the subscription, which retries or dead letters them
+   */
+  private void drain() {
+    try {
+      Pending pending;
+      for (int i = 0; i < DRAIN_BATCH && (pending = queue.poll()) != null; i++) {
+        subscription.attempt(pending.message, pending.retry);
+      }
+    } finally {
+      draining.set(false);
+    }
+    if (!queue.isEmpty()) {
+      scheduleDrain();
+    }
+  }
+
+  private static class Pending {
+    private final SNSMessage message;
+    private final int retry;
+    private final long enqueuedAt;
+
+    private Pending(SNSMessage message, int retry, long enqueuedAt) {
+      this.message = message;
+      this.retry = retry;
+      this.enqueuedAt = enqueuedAt;
+    }
+  }
+}
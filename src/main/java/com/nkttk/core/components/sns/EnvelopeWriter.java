@@ -0,0 +1,187 @@
+package com.nkttk.core.components.sns;
+
+import com.nkttk.core.components.MessageAttribute;
+import com.nkttk.core.components.Payload;
+import com.nkttk.core.components.sns.entities.SNSMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Writes the JSON notification envelope SNS wraps messages in for SQS subscriptions without raw message delivery:
+ * Type, MessageId, TopicArn, Message, Timestamp, SignatureVersion and MessageAttributes.
+ * <p>
+ * The envelope is streamed straight into a reusable per-thread buffer as UTF-8: constant segments are encoded once,
+ * the topic ARN segment once per topic, only the id, body, timestamp and attributes are escaped per message. The
+ * finished envelope is copied out of the buffer once.
+ */
+public class EnvelopeWriter {
+  private static final byte[] TYPE_AND_ID = ascii("{\"Type\":\"Notification\",\"MessageId\":\"");
+  private static final byte[] MESSAGE = ascii("\",\"Message\":\"");
+  private static final byte[] TIMESTAMP = ascii("\",\"Timestamp\":\"");
+  private static final byte[] SIGNATURE_VERSION = ascii("\",\"SignatureVersion\":\"1\"");
+  private static final byte[] ATTRIBUTES = ascii(",\"MessageAttributes\":{");
+  private static final byte[] ATTRIBUTE_TYPE = ascii("\":{\"Type\":\"");
+  private static final byte[] ATTRIBUTE_VALUE = ascii("\",\"Value\":\"");
+  private static final byte[] ATTRIBUTE_END = ascii("\"}");
+  private static final byte[] HEX = ascii("0123456789abcdef");
+  private static final DateTimeFormatter TIMESTAMP_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+  /**
+   * Buffers grown beyond this are not kept for reuse
+   */
+  private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+  private static final ThreadLocal<Buffer> BUFFER = ThreadLocal.withInitial(Buffer::new);
+
+  private final byte[] topicArn;
+
+  public EnvelopeWriter(String topicArn) {
+    Buffer buffer = new Buffer();
+    buffer.write(ascii("\",\"TopicArn\":\""));
+    buffer.writeEscaped(topicArn);
+    this.topicArn = buffer.toByteArray();
+  }
+
+  public Payload write(SNSMessage message) {
+    Buffer buffer = BUFFER.get();
+    buffer.reset();
+    buffer.write(TYPE_AND_ID);
+    buffer.writeEscaped(message.getId());
+    buffer.write(topicArn);
+    buffer.write(MESSAGE);
+    buffer.writeEscaped(message.getBody());
+    buffer.write(TIMESTAMP);
+    buffer.writeEscaped(TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(message.getTimestamp())));
+    buffer.write(SIGNATURE_VERSION);
+    Map<String, MessageAttribute> attributes = message.getAttributes();
+    if (!attributes.isEmpty()) {
+      buffer.write(ATTRIBUTES);
+      boolean first = true;
+      for (Map.Entry<String, MessageAttribute> entry : attributes.entrySet()) {
+        MessageAttribute attribute = entry.getValue();
+        if (!first) {
+          buffer.write(',');
+        }
+        first = false;
+        buffer.write('"');
+        buffer.writeEscaped(entry.getKey());
+        buffer.write(ATTRIBUTE_TYPE);
+        buffer.writeEscaped(attribute.getDataType());
+        buffer.write(ATTRIBUTE_VALUE);
+        buffer.writeEscaped(attribute.getStringValue() != null ? attribute.getStringValue()
+            : Base64.getEncoder().encodeToString(attribute.getBinaryValue()));
+        buffer.write(ATTRIBUTE_END);
+      }
+      buffer.write('}');
+    }
+    buffer.write('}');
+    Payload payload = new Payload(buffer.toByteArray());
+    if (buffer.bytes.length > MAX_RETAINED_CAPACITY) {
+      BUFFER.remove();
+    }
+    return payload;
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static class Buffer {
+    private byte[] bytes = new byte[1024];
+    private int length;
+
+    private void reset() {
+      length = 0;
+    }
+
+    private byte[] toByteArray() {
+      return Arrays.copyOf(bytes, length);
+    }
+
+    private void ensureCapacity(int additional) {
+      if (length + additional > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+      }
+    }
+
+    private void write(int b) {
+      ensureCapacity(1);
+      bytes[length++] = (byte) b;
+    }
+
+    private void write(byte[] segment) {
+      ensureCapacity(segment.length);
+      System.arraycopy(segment, 0, bytes, length, segment.length);
+      length += segment.length;
+    }
+
+    /**
+     * Writes the value as the content of a JSON string in UTF-8, at most 6 bytes per char (\\u escapes)
+     */
+    private void writeEscaped(String value) {
+      ensureCapacity(value.length() * 6);
+      byte[] out = bytes;
+      int position = length;
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c >= 0x20 && c < 0x80) {
+          if (c == '"' || c == '\\') {
+            out[position++] = '\\';
+          }
+          out[position++] = (byte) c;
+        } else if (c < 0x20) {
+          position = writeControl(out, position, c);
+        } else if (c < 0x800) {
+          out[position++] = (byte) (0xc0 | (c >> 6));
+          out[position++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          out[position++] = (byte) (0xf0 | (codePoint >> 18));
+          out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+          out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+          out[position++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+          out[position++] = '?';
+        } else {
+          out[position++] = (byte) (0xe0 | (c >> 12));
+          out[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+          out[position++] = (byte) (0x80 | (c & 0x3f));
+        }
+      }
+      length = position;
+    }
+
+    private static int writeControl(byte[] out, int position, char c) {
+      out[position++] = '\\';
+      switch (c) {
+        case '\n':
+          out[position++] = 'n';
+          break;
+        case '\r':
+          out[position++] = 'r';
+          break;
+        case '\t':
+          out[position++] = 't';
+          break;
+        case '\b':
+          out[position++] = 'b';
+          break;
+        case '\f':
+          out[position++] = 'f';
+          break;
+        default:
+          out[position++] = 'u';
+          out[position++] = '0';
+          out[position++] = '0';
+          out[position++] = HEX[c >> 4];
+          out[position++] = HEX[c & 0xf];
+      }
+      return position;
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package com.nkttk.core.components.sns;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.nkttk.core.components.MessageAttribute;
+import com.nkttk.json.JsonMaster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Filter policies of all subscriptions of a topic compiled into one matcher. Every key of a policy owns a bit of its
+ * subscription's required mask, the conditions of all policies are indexed by attribute name: exact values and prefixes
+ * in hash maps, numeric ranges sorted by lower bound. Matching looks up every attribute of the message once and sets
+ * the bits of all conditions it satisfies, a subscription matches once all its required bits are set.
+ * <p>
+ * Immutable, a topic builds a new index whenever its subscriptions or their policies change.
+ */
+class FilterIndex {
+  private static final String NUMBER_TYPE = "Number";
+  private static final String STRING_ARRAY_TYPE = "String.Array";
+
+  private final Subscription[] subscriptions;
+  private final List<Subscription> all;
+  private final int[] required;
+  private final Map<String, AttributeIndex> byAttribute = new HashMap<>();
+  private final List<AttributeIndex> withExistsFalse = new ArrayList<>();
+  private final boolean filtered;
+
+  FilterIndex(Subscription[] subscriptions) {
+    this.subscriptions = subscriptions;
+    this.all = Collections.unmodifiableList(Arrays.asList(subscriptions));
+    this.required = new int[subscriptions.length];
+    boolean anyPolicy = false;
+    for (int slot = 0; slot < subscriptions.length; slot++) {
+      FilterPolicy policy = subscriptions[slot].getFilterPolicy();
+      if (policy == null) {
+        continue;
+      }
+      anyPolicy = true;
+      List<FilterPolicy.Key> keys = policy.getKeys();
+      for (int k = 0; k < keys.size(); k++) {
+        int bit = 1 << k;
+        required[slot] |= bit;
+        AttributeIndex index = byAttribute.computeIfAbsent(keys.get(k).attribute, AttributeIndex::new);
+        for (FilterPolicy.Condition condition : keys.get(k).conditions) {
+          index.add(condition, slot, bit);
+        }
+      }
+    }
+    for (AttributeIndex index : byAttribute.values()) {
+      index.seal();
+      if (index.existsFalse.size > 0) {
+        withExistsFalse.add(index);
+      }
+    }
+    this.filtered = anyPolicy;
+  }
+
+  static FilterIndex empty() {
+    return new FilterIndex(new Subscription[0]);
+  }
+
+  Subscription[] getSubscriptions() {
+    return subscriptions;
+  }
+
+  /**
+   * @param attributes message attributes, may be null
+   * @return subscriptions without a policy and those whose policy the attributes match, in subscription order
+   */
+  List<Subscription> match(Map<String, MessageAttribute> attributes) {
+    if (!filtered) {
+      return all;
+    }
+    int[] satisfied = new int[subscriptions.length];
+    satisfy(attributes, satisfied);
+    List<Subscription> result = new ArrayList<>();
+    for (int slot = 0; slot < subscriptions.length; slot++) {
+      if (matches(slot, satisfied)) {
+        result.add(subscriptions[slot]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Matching for a batch of messages, which reuses one scratch array for all of them
+   * @param satisfied one int per subscription, overwritten with the key bits the attributes satisfy
+   */
+  void satisfy(Map<String, MessageAttribute> attributes, int[] satisfied) {
+    Arrays.fill(satisfied, 0);
+    if (!filtered) {
+      return;
+    }
+    if (attributes != null) {
+      for (Map.Entry<String, MessageAttribute> entry : attributes.entrySet()) {
+        AttributeIndex index = byAttribute.get(entry.getKey());
+        if (index != null) {
+          index.match(entry.getValue(), satisfied);
+        }
+      }
+    }
+    for (AttributeIndex index : withExistsFalse) {
+      if (attributes == null || !attributes.containsKey(index.attribute)) {
+        index.existsFalse.setBits(satisfied);
+      }
+    }
+  }
+
+  /**
+   * @param satisfied filled by {@link #satisfy}
+   */
+  boolean matches(int slot, int[] satisfied) {
+    return satisfied[slot] == required[slot];
+  }
+
+  private static class AttributeIndex {
+    private final String attribute;
+    private final Map<String, Postings> exact = new HashMap<>();
+    private final Map<String, Postings> prefixes = new HashMap<>();
+    private int[] prefixLengths;
+    private final List<Entry> numeric = new ArrayList<>();
+    private final List<Entry> anythingBut = new ArrayList<>();
+    private final Postings existsTrue = new Postings();
+    private final Postings existsFalse = new Postings();
+
+    private AttributeIndex(String attribute) {
+      this.attribute = attribute;
+    }
+
+    private void add(FilterPolicy.Condition condition, int slot, int bit) {
+      switch (condition.type) {
+        case EXACT:
+          exact.computeIfAbsent(condition.value, value -> new Postings()).add(slot, bit);
+          break;
+        case PREFIX:
+          prefixes.computeIfAbsent(condition.value, value -> new Postings()).add(slot, bit);
+          break;
+        case NUMERIC:
+          numeric.add(new Entry(condition, slot, bit));
+          break;
+        case ANYTHING_BUT:
+          anythingBut.add(new Entry(condition, slot, bit));
+          break;
+        case EXISTS:
+          (condition.exists ? existsTrue : existsFalse).add(slot, bit);
+          break;
+      }
+    }
+
+    private void seal() {
+      TreeSet<Integer> lengths = new TreeSet<>();
+      prefixes.keySet().forEach(prefix -> lengths.add(prefix.length()));
+      prefixLengths = lengths.stream().mapToInt(Integer::intValue).toArray();
+      numeric.sort(Comparator.comparingDouble(entry -> entry.condition.lower));
+    }
+
+    private void match(MessageAttribute attribute, int[] satisfied) {
+      existsTrue.setBits(satisfied);
+      if (attribute.getStringValue() == null) {
+        return;
+      }
+      boolean number = attribute.getDataType() != null && attribute.getDataType().startsWith(NUMBER_TYPE);
+      if (STRING_ARRAY_TYPE.equals(attribute.getDataType())) {
+        for (JsonNode element : parseArray(attribute.getStringValue())) {
+          matchValue(element.asText(), element.isNumber(), satisfied);
+        }
+      } else {
+        matchValue(attribute.getStringValue(), number, satisfied);
+      }
+    }
+
+    private void matchValue(String value, boolean number, int[] satisfied) {
+      Postings postings = exact.get(value);
+      if (postings != null) {
+        postings.setBits(satisfied);
+      }
+      for (int length : prefixLengths) {
+        if (length > value.length()) {
+          break;
+        }
+        postings = prefixes.get(value.substring(0, length));
+        if (postings != null) {
+          postings.setBits(satisfied);
+        }
+      }
+      double numberValue = number ? parseNumber(value) : Double.NaN;
+      if (!Double.isNaN(numberValue)) {
+        for (Entry entry : numeric) {
+          if (entry.condition.lower > numberValue) {
+            break;
+          }
+          if (entry.condition.matchesNumber(numberValue)) {
+            satisfied[entry.slot] |= entry.bit;
+          }
+        }
+      }
+      for (Entry entry : anythingBut) {
+        boolean excluded = Double.isNaN(numberValue)
+            ? entry.condition.excludedStrings.contains(value)
+            : entry.condition.excludedNumbers.contains(numberValue);
+        if (!excluded) {
+          satisfied[entry.slot] |= entry.bit;
+        }
+      }
+    }
+
+    private static double parseNumber(String value) {
+      try {
+        return Double.parseDouble(value);
+      } catch (NumberFormatException e) {
+        return Double.NaN;
+      }
+    }
+
+    private static JsonNode parseArray(String value) {
+      try {
+        JsonNode array = JsonMaster.om().readTree(value);
+        return array != null && array.isArray() ? array : JsonMaster.om().createArrayNode();
+      } catch (IOException e) {
+        return JsonMaster.om().createArrayNode();
+      }
+    }
+  }
+
+  private static class Entry {
+    private final FilterPolicy.Condition condition;
+    private final int slot;
+    private final int bit;
+
+    private Entry(FilterPolicy.Condition condition, int slot, int bit) {
+      this.condition = condition;
+      this.slot = slot;
+      this.bit = bit;
+    }
+  }
+
+  /**
+   * Subscription slots and key bits of one indexed value, as parallel arrays
+   */
+  private static class Postings {
+    private int[] slots = new int[2];
+    private int[] bits = new int[2];
+    private int size;
+
+    private void add(int slot, int bit) {
+      if (size == slots.length) {
+        slots = Arrays.copyOf(slots, size * 2);
+        bits = Arrays.copyOf(bits, size * 2);
+      }
+      slots[size] = slot;
+      bits[size] = bit;
+      size++;
+    }
+
+    private void setBits(int[] satisfied) {
+      for (int i = 0; i < size; i++) {
+        satisfied[slots[i]] |= bits[i];
+      }
+    }
+  }
+}
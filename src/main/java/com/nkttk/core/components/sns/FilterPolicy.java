@@ -0,0 +1,218 @@
+package com.nkttk.core.components.sns;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.nkttk.json.JsonMaster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parsed subscription filter policy. A message matches if it matches every key of the policy, and it matches a key if
+ * the attribute of that name matches any of the key's conditions: an exact string or number, {"prefix": "..."},
+ * {"numeric": [">=", 0, "<", 10]}, {"anything-but": value or [values]} or {"exists": true|false}.
+ * <p>
+ * Policies are only parsed here, matching is done by a {@link FilterIndex} over all policies of a topic.
+ */
+public class FilterPolicy {
+  static final int MAX_KEYS = 31;
+
+  private final String json;
+  private final List<Key> keys;
+
+  private FilterPolicy(String json, List<Key> keys) {
+    this.json = json;
+    this.keys = keys;
+  }
+
+  /**
+   * @throws RuntimeException if the policy is malformed
+   */
+  public static FilterPolicy parse(String json) {
+    JsonNode policy;
+    try {
+      policy = JsonMaster.om().readTree(json);
+    } catch (IOException e) {
+      throw new RuntimeException("Invalid filter policy : " + json, e);
+    }
+    if (policy == null || !policy.isObject()) {
+      throw new RuntimeException("Filter policy must be a JSON object : " + json);
+    }
+    if (policy.size() > MAX_KEYS) {
+      throw new RuntimeException("Filter policy has more than " + MAX_KEYS + " keys : " + json);
+    }
+    List<Key> keys = new ArrayList<>(policy.size());
+    Iterator<Map.Entry<String, JsonNode>> fields = policy.fields();
+    while (fields.hasNext()) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      if (!field.getValue().isArray() || field.getValue().size() == 0) {
+        throw new RuntimeException("Filter policy values must be non-empty arrays : " + field.getKey());
+      }
+      List<Condition> conditions = new ArrayList<>(field.getValue().size());
+      for (JsonNode value : field.getValue()) {
+        conditions.add(parseCondition(field.getKey(), value));
+      }
+      keys.add(new Key(field.getKey(), conditions));
+    }
+    return new FilterPolicy(json, Collections.unmodifiableList(keys));
+  }
+
+  public String getJson() {
+    return json;
+  }
+
+  List<Key> getKeys() {
+    return keys;
+  }
+
+  private static Condition parseCondition(String attribute, JsonNode value) {
+    if (value.isTextual()) {
+      return Condition.exact(value.asText());
+    }
+    if (value.isNumber()) {
+      return Condition.numeric(value.asDouble(), true, value.asDouble(), true);
+    }
+    if (!value.isObject() || value.size() != 1) {
+      throw new RuntimeException("Unsupported filter condition of " + attribute + " : " + value);
+    }
+    Map.Entry<String, JsonNode> operator = value.fields().next();
+    JsonNode operand = operator.getValue();
+    switch (operator.getKey()) {
+      case "prefix":
+        if (!operand.isTextual()) {
+          throw new RuntimeException("Prefix of " + attribute + " must be a string");
+        }
+        return Condition.prefix(operand.asText());
+      case "numeric":
+        return parseNumeric(attribute, operand);
+      case "anything-but":
+        Set<String> excludedStrings = new HashSet<>();
+        Set<Double> excludedNumbers = new HashSet<>();
+        for (JsonNode excluded : operand.isArray() ? operand : Collections.singletonList(operand)) {
+          if (excluded.isNumber()) {
+            excludedNumbers.add(excluded.asDouble());
+          } else if (excluded.isTextual()) {
+            excludedStrings.add(excluded.asText());
+          } else {
+            throw new RuntimeException("Unsupported anything-but value of " + attribute + " : " + excluded);
+          }
+        }
+        return Condition.anythingBut(excludedStrings, excludedNumbers);
+      case "exists":
+        if (!operand.isBoolean()) {
+          throw new RuntimeException("Exists of " + attribute + " must be true or false");
+        }
+        return Condition.exists(operand.asBoolean());
+      default:
+        throw new RuntimeException("Unsupported filter operator of " + attribute + " : " + operator.getKey());
+    }
+  }
+
+  private static Condition parseNumeric(String attribute, JsonNode operand) {
+    if (!operand.isArray() || (operand.size() != 2 && operand.size() != 4)) {
+      throw new RuntimeException("Numeric condition of " + attribute + " must have one or two comparisons");
+    }
+    double lower = Double.NEGATIVE_INFINITY;
+    double upper = Double.POSITIVE_INFINITY;
+    boolean lowerInclusive = false;
+    boolean upperInclusive = false;
+    for (int i = 0; i < operand.size(); i += 2) {
+      if (!operand.get(i + 1).isNumber()) {
+        throw new RuntimeException("Numeric condition of " + attribute + " must compare to numbers");
+      }
+      double bound = operand.get(i + 1).asDouble();
+      switch (operand.get(i).asText()) {
+        case "=":
+          if (operand.size() != 2) {
+            throw new RuntimeException("Numeric condition of " + attribute + " can't combine = with another comparison");
+          }
+          return Condition.numeric(bound, true, bound, true);
+        case ">":
+          lower = bound;
+          break;
+        case ">=":
+          lower = bound;
+          lowerInclusive = true;
+          break;
+        case "<":
+          upper = bound;
+          break;
+        case "<=":
+          upper = bound;
+          upperInclusive = true;
+          break;
+        default:
+          throw new RuntimeException("Unsupported numeric operator of " + attribute + " : " + operand.get(i));
+      }
+    }
+    return Condition.numeric(lower, lowerInclusive, upper, upperInclusive);
+  }
+
+  static class Key {
+    final String attribute;
+    final List<Condition> conditions;
+
+    private Key(String attribute, List<Condition> conditions) {
+      this.attribute = attribute;
+      this.conditions = conditions;
+    }
+  }
+
+  enum ConditionType {
+    EXACT, PREFIX, NUMERIC, ANYTHING_BUT, EXISTS
+  }
+
+  static class Condition {
+    final ConditionType type;
+    final String value;
+    final double lower;
+    final boolean lowerInclusive;
+    final double upper;
+    final boolean upperInclusive;
+    final Set<String> excludedStrings;
+    final Set<Double> excludedNumbers;
+    final boolean exists;
+
+    private Condition(ConditionType type, String value, double lower, boolean lowerInclusive, double upper,
+                      boolean upperInclusive, Set<String> excludedStrings, Set<Double> excludedNumbers, boolean exists) {
+      this.type = type;
+      this.value = value;
+      this.lower = lower;
+      this.lowerInclusive = lowerInclusive;
+      this.upper = upper;
+      this.upperInclusive = upperInclusive;
+      this.excludedStrings = excludedStrings;
+      this.excludedNumbers = excludedNumbers;
+      this.exists = exists;
+    }
+
+    static Condition exact(String value) {
+      return new Condition(ConditionType.EXACT, value, 0, false, 0, false, null, null, true);
+    }
+
+    static Condition prefix(String prefix) {
+      return new Condition(ConditionType.PREFIX, prefix, 0, false, 0, false, null, null, true);
+    }
+
+    static Condition numeric(double lower, boolean lowerInclusive, double upper, boolean upperInclusive) {
+      return new Condition(ConditionType.NUMERIC, null, lower, lowerInclusive, upper, upperInclusive, null, null, true);
+    }
+
+    static Condition anythingBut(Set<String> excludedStrings, Set<Double> excludedNumbers) {
+      return new Condition(ConditionType.ANYTHING_BUT, null, 0, false, 0, false, excludedStrings, excludedNumbers, true);
+    }
+
+    static Condition exists(boolean exists) {
+      return new Condition(ConditionType.EXISTS, null, 0, false, 0, false, null, null, exists);
+    }
+
+    boolean matchesNumber(double number) {
+      return (lowerInclusive ? number >= lower : number > lower) && (upperInclusive ? number <= upper : number < upper);
+    }
+  }
+}
@@ -0,0 +1,12 @@
+package com.nkttk.core.components.sns;
+
+/**
+ * Thrown when a subscription names an unsupported protocol or an unknown endpoint
+ */
+public class InvalidSubscriptionException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public InvalidSubscriptionException(String message) {
+    super(message);
+  }
+}
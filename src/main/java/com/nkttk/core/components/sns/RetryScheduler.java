@@ -0,0 +1,93 @@
+package com.nkttk.core.components.sns;
+
+import com.nkttk.core.components.sns.entities.SNSMessage;
+import com.nkttk.core.engine.timer.Clock;
+import com.nkttk.core.engine.timer.TimerWheel;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivery retries of all subscriptions of an engine. Pending retries sit on a single timer wheel and hold no thread
+ * while they wait; a clock timer is armed once per tick which has retries due, due retries are handed to their
+ * subscription, which delivers them in order.
+ */
+public class RetryScheduler {
+  private static final long TICK_DURATION = 10;
+
+  private final Clock clock;
+  private final long startTime;
+  private final TimerWheel<Retry> wheel;
+  private final AtomicInteger pending = new AtomicInteger();
+  private final Set<Long> armedTicks = ConcurrentHashMap.newKeySet();
+
+  public RetryScheduler() {
+    this(Clock.SYSTEM);
+  }
+
+  public RetryScheduler(Clock clock) {
+    this.clock = clock;
+    this.startTime = clock.currentTimeMillis();
+    this.wheel = new TimerWheel<>(TICK_DURATION, startTime);
+  }
+
+  /**
+   * @param retry 1 for the first retry
+   * @param delay ms to wait, 0 retries on the next tick
+   */
+  void schedule(Subscription subscription, SNSMessage message, int retry, long delay) {
+    long dueAt = clock.currentTimeMillis() + delay;
+    wheel.schedule(dueAt, new Retry(subscription, message, retry));
+    pending.incrementAndGet();
+    long tickTime = startTime + (Math.max(dueAt - startTime, 0) + TICK_DURATION - 1) / TICK_DURATION * TICK_DURATION;
+    if (armedTicks.add(tickTime)) {
+      clock.schedule(tickTime, () -> fire(tickTime));
+    }
+  }
+
+  Clock getClock() {
+    return clock;
+  }
+
+  /**
+   * Removes the pending retries of the subscription
+   */
+  void cancel(Subscription subscription) {
+    pending.addAndGet(-wheel.removeIf(retry -> retry.subscription == subscription));
+  }
+
+  public int getPendingCount() {
+    return pending.get();
+  }
+
+  /**
+   * Timers may fire a little early against the millisecond clock, the tick is re-armed then
+   */
+  private void fire(long tickTime) {
+    if (clock.currentTimeMillis() < tickTime) {
+      clock.schedule(tickTime, () -> fire(tickTime));
+      return;
+    }
+    armedTicks.remove(tickTime);
+    List<Retry> due = wheel.advance(clock.currentTimeMillis());
+    if (due.isEmpty()) {
+      return;
+    }
+    pending.addAndGet(-due.size());
+    due.forEach(retry -> retry.subscription.retry(retry.message, retry.retry));
+  }
+
+  private static class Retry {
+    private final Subscription subscription;
+    private final SNSMessage message;
+    private final int retry;
+
+    private Retry(Subscription subscription, SNSMessage message, int retry) {
+      this.subscription = subscription;
+      this.message = message;
+      this.retry = retry;
+    }
+  }
+}
@@ -1,37 +1,142 @@
 package com.nkttk.core.components.sns;
 
 import com.nkttk.core.components.ComponentIdentifier;
+import com.nkttk.core.components.ComponentRegistry;
+import com.nkttk.core.components.sns.entities.SNSMessage;
+import com.nkttk.core.engine.timer.Clock;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 
 public class SNSEngine {
-    List<SNSTopic> topics = new LinkedList<>();
+    ComponentRegistry<SNSTopic> topics = new ComponentRegistry<>(SNSTopic::getName, SNSTopic::getUrl, SNSTopic::getArn);
+
+    private final RetryScheduler retryScheduler;
 
     public SNSEngine() {
+        this(Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock times delivery retries
+     */
+    public SNSEngine(Clock clock) {
+        this.retryScheduler = new RetryScheduler(clock);
+    }
+
+    public RetryScheduler getRetryScheduler() {
+        return retryScheduler;
     }
 
     public List<ComponentIdentifier> getIdentifiers() {
-        List<ComponentIdentifier> identifiers = new LinkedList<>();
-        for (SNSTopic topic : topics) {
-            identifiers.add(new ComponentIdentifier(topic.getName(), topic.getUrl()));
-        }
-        return identifiers;
+        return topics.getIdentifiers();
+    }
+
+    public Subscription addSubscriber(String topicName, Consumer<String> subscriber) {
+        return getTopic(topicName).addSubscriber(subscriber);
+    }
+
+    /**
+     * @param deliveryQueueCapacity capacity of the subscriber's delivery queue, 0 for synchronous delivery
+     */
+    public Subscription addSubscriber(String topicName, Consumer<String> subscriber, int deliveryQueueCapacity) {
+        return getTopic(topicName).addSubscriber(subscriber, deliveryQueueCapacity);
+    }
+
+    /**
+     * @param topicARN topic ARN or URL
+     * @param subscriber delivers messages to the endpoint
+     * @return the new subscription, or the existing one of the same protocol and endpoint
+     */
+    public Subscription subscribe(String topicARN, String protocol, String endpoint, Consumer<SNSMessage> subscriber) {
+        return getTopicByArn(topicARN).subscribe(protocol, endpoint, subscriber, 0);
+    }
+
+    /**
+     * @param batchSubscriber delivers all messages of a batch publish at once
+     */
+    public Subscription subscribe(String topicARN, String protocol, String endpoint, Consumer<SNSMessage> subscriber,
+                                  Consumer<List<SNSMessage>> batchSubscriber) {
+        return getTopicByArn(topicARN).subscribe(protocol, endpoint, subscriber, batchSubscriber, 0);
+    }
+
+    /**
+     * @param subscriber delivers a message, gets the subscription it is delivered through
+     * @param batchSubscriber delivers all messages of a batch publish at once, null to deliver them one by one
+     * @see SNSTopic#subscribeEndpoint
+     */
+    public Subscription subscribeEndpoint(String topicARN, String protocol, String endpoint,
+                                          BiConsumer<Subscription, SNSMessage> subscriber,
+                                          BiConsumer<Subscription, List<SNSMessage>> batchSubscriber) {
+        return subscribeEndpoint(topicARN, protocol, endpoint, subscriber, batchSubscriber, 0);
     }
 
-    public void addSubscriber(String topicName, Consumer<String> subscriber) {
-        getTopic(topicName).addSubscriber(subscriber);
+    /**
+     * @param deliveryQueueCapacity capacity of the subscription's delivery queue, 0 for synchronous delivery
+     */
+    public Subscription subscribeEndpoint(String topicARN, String protocol, String endpoint,
+                                          BiConsumer<Subscription, SNSMessage> subscriber,
+                                          BiConsumer<Subscription, List<SNSMessage>> batchSubscriber,
+                                          int deliveryQueueCapacity) {
+        return getTopicByArn(topicARN).subscribeEndpoint(protocol, endpoint, subscriber, batchSubscriber,
+                deliveryQueueCapacity);
+    }
+
+    /**
+     * @param subscriber hands a message off, returns the completion of its delivery
+     * @see SNSTopic#subscribeAsyncEndpoint
+     */
+    public Subscription subscribeAsyncEndpoint(String topicARN, String protocol, String endpoint,
+                                               BiFunction<Subscription, SNSMessage, CompletionStage<?>> subscriber) {
+        return getTopicByArn(topicARN).subscribeAsyncEndpoint(protocol, endpoint, subscriber, 0);
+    }
+
+    /**
+     * @throws SubscriptionNotFoundException if there is no such subscription
+     */
+    public void unsubscribe(String subscriptionArn) {
+        if (!getTopicOfSubscription(subscriptionArn).unsubscribe(subscriptionArn)) {
+            throw new SubscriptionNotFoundException("Subscription not found : " + subscriptionArn);
+        }
     }
 
     public void publishMessage(String topicName, String message) {
         getTopic(topicName).publishMessage(message);
     }
 
+    /**
+     * @param filterPolicy policy JSON, null or empty to remove the policy
+     */
+    public void setFilterPolicy(String subscriptionArn, String filterPolicy) {
+        SNSTopic topic = getTopicOfSubscription(subscriptionArn);
+        topic.setFilterPolicy(topic.getSubscription(subscriptionArn), filterPolicy);
+    }
+
+    public Subscription getSubscription(String subscriptionArn) {
+        return getTopicOfSubscription(subscriptionArn).getSubscription(subscriptionArn);
+    }
+
+    /**
+     * Subscription ARNs are the topic ARN followed by ':' and the subscription id
+     * @throws SubscriptionNotFoundException if the ARN names no topic
+     */
+    public SNSTopic getTopicOfSubscription(String subscriptionArn) {
+        int separator = subscriptionArn.lastIndexOf(':');
+        if (separator <= 0) {
+            throw new SubscriptionNotFoundException("Subscription not found : " + subscriptionArn);
+        }
+        return topics.findByArn(subscriptionArn.substring(0, separator))
+                .orElseThrow(() -> new SubscriptionNotFoundException("Subscription not found : " + subscriptionArn));
+    }
+
+    /**
+     * @return the added topic, or the existing one with the same name
+     */
     public SNSTopic addTopic(String topic) {
-        SNSTopic result = new SNSTopic(topic);
-        topics.add(result);
-        return result;
+        return topics.register(new SNSTopic(topic, retryScheduler));
     }
 
     public String getSNSEndpoint(String topicName) {
@@ -39,20 +144,22 @@ public class SNSEngine {
     }
 
     public String getTopicName(String topicARN) {
-        for (SNSTopic topic : topics) {
-            if (topicARN.equals(topic.getUrl())) {
-                return topic.getName();
-            }
-        }
-        throw new RuntimeException("Topic not found : " + topicARN);
+        return getTopicByArn(topicARN).getName();
     }
 
-    private SNSTopic getTopic(String name) {
-        for (SNSTopic topic : topics) {
-            if (topic.getName().equals(name)) {
-                return topic;
-            }
-        }
-        throw new RuntimeException("SNS topic not found : " + name);
+    /**
+     * @param topicARN topic ARN or URL
+     * @throws TopicNotFoundException if there is no such topic
+     */
+    public SNSTopic getTopicByArn(String topicARN) {
+        return topics.findByArn(topicARN).orElseGet(() -> topics.findByUrl(topicARN)
+                .orElseThrow(() -> new TopicNotFoundException("Topic not found : " + topicARN)));
+    }
+
+    /**
+     * @throws TopicNotFoundException if there is no such topic
+     */
+    public SNSTopic getTopic(String name) {
+        return topics.findByName(name).orElseThrow(() -> new TopicNotFoundException("SNS topic not found : " + name));
     }
 }
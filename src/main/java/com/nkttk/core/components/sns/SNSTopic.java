@@ -1,29 +1,200 @@
 package com.nkttk.core.components.sns;
 
-import java.util.LinkedList;
+import com.nkttk.core.components.Ids;
+import com.nkttk.core.components.MessageAttribute;
+import com.nkttk.core.components.Payload;
+import com.nkttk.core.components.sns.entities.SNSMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 
 /**
  * Created by cryptobat on 11/1/2016.
+ * <p>
+ * Subscriptions are held in an immutable snapshot, see {@link FilterIndex}. Subscription changes are serialized and
+ * replace the snapshot, publishing reads it once without locking, so it never waits for them and delivers to the
+ * subscriptions of a single snapshot.
  */
 public class SNSTopic {
+  public static final String ARN_PREFIX = "arn:aws:sns:us-east-1:000000000000:";
+
   private String name;
   private String url;
-  private List<Consumer<String>> subscribers = new LinkedList<>();
+  private final RetryScheduler retryScheduler;
+  private volatile EnvelopeWriter envelopeWriter;
+  private volatile FilterIndex filterIndex = FilterIndex.empty();
+  private long nextSequence;
 
   public SNSTopic(String name) {
+    this(name, new RetryScheduler());
+  }
+
+  /**
+   * @param retryScheduler retries failed deliveries, shared by the topics of an engine
+   */
+  public SNSTopic(String name, RetryScheduler retryScheduler) {
     this.name = name;
-    this.url = UUID.randomUUID().toString();
+    this.url = Ids.next();
+    this.retryScheduler = retryScheduler;
+    this.envelopeWriter = new EnvelopeWriter(getArn());
   }
 
   public String getUrl() {
     return url;
   }
 
-  public void addSubscriber(Consumer<String> subscriber) {
-    subscribers.add(subscriber);
+  public String getArn() {
+    return ARN_PREFIX + name;
+  }
+
+  public Subscription addSubscriber(Consumer<String> subscriber) {
+    return addSubscriber(subscriber, 0);
+  }
+
+  /**
+   * @param deliveryQueueCapacity capacity of the subscriber's own delivery queue, publishing only enqueues the message
+   *                              and drops it if the queue is full. 0 calls the subscriber on the publishing thread.
+   */
+  public Subscription addSubscriber(Consumer<String> subscriber, int deliveryQueueCapacity) {
+    return subscribe(null, null, message -> subscriber.accept(message.getBody()), deliveryQueueCapacity);
+  }
+
+  /**
+   * Subscribes an endpoint once, subscribing the same protocol and endpoint again returns the existing subscription
+   * @param protocol SNS protocol of the endpoint, e.g. "sqs"
+   * @param endpoint endpoint address, e.g. the queue ARN
+   * @param subscriber delivers messages to the endpoint, the same message instance is handed to every subscription
+   */
+  public Subscription subscribe(String protocol, String endpoint, Consumer<SNSMessage> subscriber,
+                                int deliveryQueueCapacity) {
+    return subscribe(protocol, endpoint, subscriber, null, deliveryQueueCapacity);
+  }
+
+  /**
+   * @param batchSubscriber delivers all messages of a batch publish at once, null to deliver them one by one
+   */
+  public Subscription subscribe(String protocol, String endpoint, Consumer<SNSMessage> subscriber,
+                                Consumer<List<SNSMessage>> batchSubscriber, int deliveryQueueCapacity) {
+    return subscribeEndpoint(protocol, endpoint, (subscription, message) -> subscriber.accept(message),
+        batchSubscriber == null ? null : (subscription, messages) -> batchSubscriber.accept(messages),
+        deliveryQueueCapacity);
+  }
+
+  /**
+   * Subscribes an endpoint whose delivery depends on the subscription, e.g. on its ARN or attributes. The subscription
+   * is complete before it can receive a message, the subscribers get it with every delivery.
+   * @param batchSubscriber delivers all messages of a batch publish at once, null to deliver them one by one
+   */
+  public Subscription subscribeEndpoint(String protocol, String endpoint, BiConsumer<Subscription, SNSMessage> subscriber,
+                                        BiConsumer<Subscription, List<SNSMessage>> batchSubscriber,
+                                        int deliveryQueueCapacity) {
+    return addSubscription(protocol, endpoint, (subscription, message) -> {
+      subscriber.accept(subscription, message);
+      return null;
+    }, batchSubscriber, deliveryQueueCapacity);
+  }
+
+  /**
+   * Subscribes an endpoint which delivers in the background, e.g. an asynchronous lambda invocation. A delivery whose
+   * completion fails is retried and dead lettered like one the subscriber throws on.
+   * @param subscriber hands a message off, returns the completion of its delivery
+   */
+  public Subscription subscribeAsyncEndpoint(String protocol, String endpoint,
+                                             BiFunction<Subscription, SNSMessage, CompletionStage<?>> subscriber,
+                                             int deliveryQueueCapacity) {
+    return addSubscription(protocol, endpoint, subscriber, null, deliveryQueueCapacity);
+  }
+
+  private synchronized Subscription addSubscription(String protocol, String endpoint,
+                                                    BiFunction<Subscription, SNSMessage, CompletionStage<?>> subscriber,
+                                                    BiConsumer<Subscription, List<SNSMessage>> batchSubscriber,
+                                                    int deliveryQueueCapacity) {
+    Subscription[] current = filterIndex.getSubscriptions();
+    if (protocol != null) {
+      for (Subscription subscription : current) {
+        if (protocol.equals(subscription.getProtocol()) && endpoint.equals(subscription.getEndpoint())) {
+          return subscription;
+        }
+      }
+    }
+    Subscription subscription = new Subscription(getArn(), protocol, endpoint, nextSequence++, subscriber,
+        batchSubscriber, deliveryQueueCapacity, retryScheduler);
+    Subscription[] next = Arrays.copyOf(current, current.length + 1);
+    next[current.length] = subscription;
+    filterIndex = new FilterIndex(next);
+    return subscription;
+  }
+
+  /**
+   * Messages already in the subscription's delivery queue are still delivered, pending retries are cancelled
+   * @return false if the topic has no such subscription
+   */
+  public synchronized boolean unsubscribe(String subscriptionArn) {
+    Subscription[] current = filterIndex.getSubscriptions();
+    for (int i = 0; i < current.length; i++) {
+      if (current[i].getArn().equals(subscriptionArn)) {
+        Subscription[] next = new Subscription[current.length - 1];
+        System.arraycopy(current, 0, next, 0, i);
+        System.arraycopy(current, i + 1, next, i, next.length - i);
+        filterIndex = new FilterIndex(next);
+        current[i].cancel();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public List<Subscription> getSubscriptions() {
+    return new ArrayList<>(Arrays.asList(filterIndex.getSubscriptions()));
+  }
+
+  /**
+   * Pages through the subscriptions in the order they were added. Sequences never change, so paging is not disturbed
+   * by subscriptions added or removed in between.
+   * @param fromSequence sequence of the first subscription to return, 0 for the first page
+   * @param limit max subscriptions to return
+   */
+  public List<Subscription> getSubscriptions(long fromSequence, int limit) {
+    Subscription[] current = filterIndex.getSubscriptions();
+    int low = 0;
+    int high = current.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (current[middle].getSequence() < fromSequence) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return new ArrayList<>(Arrays.asList(current).subList(low, Math.min(current.length, low + limit)));
+  }
+
+  /**
+   * @throws SubscriptionNotFoundException if the topic has no such subscription
+   */
+  public Subscription getSubscription(String subscriptionArn) {
+    for (Subscription subscription : filterIndex.getSubscriptions()) {
+      if (subscription.getArn().equals(subscriptionArn)) {
+        return subscription;
+      }
+    }
+    throw new SubscriptionNotFoundException("Subscription not found : " + subscriptionArn);
+  }
+
+  /**
+   * @param filterPolicy policy JSON, null or empty to receive every message again
+   * @throws RuntimeException if the policy is malformed, the subscription keeps its previous policy then
+   */
+  public synchronized void setFilterPolicy(Subscription subscription, String filterPolicy) {
+    subscription.setFilterPolicy(filterPolicy == null || filterPolicy.trim().isEmpty() ? null : FilterPolicy.parse(filterPolicy));
+    filterIndex = new FilterIndex(filterIndex.getSubscriptions());
   }
 
   public String getName() {
@@ -32,9 +203,73 @@ public class SNSTopic {
 
   public void setName(String name) {
     this.name = name;
+    this.envelopeWriter = new EnvelopeWriter(getArn());
+  }
+
+  /**
+   * @return the JSON notification envelope of a message published to this topic, written once per message
+   */
+  public Payload getEnvelope(SNSMessage message) {
+    return message.getEnvelope(envelopeWriter);
   }
 
   public void publishMessage(String message) {
-    subscribers.forEach(subscriber -> subscriber.accept(message));
+    publishMessage(message, null);
+  }
+
+  /**
+   * Delivers to the subscriptions without a filter policy and to those whose policy matches the attributes
+   * @param attributes message attributes, may be null
+   */
+  public void publishMessage(String message, Map<String, MessageAttribute> attributes) {
+    publishMessage(new SNSMessage(message, attributes));
+  }
+
+  /**
+   * @return id of the published message
+   */
+  public String publishMessage(SNSMessage message) {
+    stamp(message, retryScheduler.getClock().currentTimeMillis());
+    filterIndex.match(message.getAttributes()).forEach(subscription -> subscription.deliver(message));
+    return message.getId();
+  }
+
+  /**
+   * Matches all messages against one snapshot of the subscriptions in a single pass, then hands every subscription
+   * the messages it matched as one batch, in publishing order
+   * @return ids of the published messages
+   */
+  public List<String> publishMessages(List<SNSMessage> messages) {
+    FilterIndex index = filterIndex;
+    Subscription[] subscriptions = index.getSubscriptions();
+    List<List<SNSMessage>> batches = new ArrayList<>(Collections.nCopies(subscriptions.length, null));
+    int[] satisfied = new int[subscriptions.length];
+    List<String> ids = new ArrayList<>(messages.size());
+    long now = retryScheduler.getClock().currentTimeMillis();
+    for (SNSMessage message : messages) {
+      stamp(message, now);
+      index.satisfy(message.getAttributes(), satisfied);
+      for (int slot = 0; slot < subscriptions.length; slot++) {
+        if (index.matches(slot, satisfied)) {
+          if (batches.get(slot) == null) {
+            batches.set(slot, new ArrayList<>(messages.size()));
+          }
+          batches.get(slot).add(message);
+        }
+      }
+      ids.add(message.getId());
+    }
+    for (int slot = 0; slot < subscriptions.length; slot++) {
+      if (batches.get(slot) != null) {
+        subscriptions[slot].deliverBatch(batches.get(slot));
+      }
+    }
+    return ids;
+  }
+
+  private static void stamp(SNSMessage message, long now) {
+    if (message.getTimestamp() == 0) {
+      message.setTimestamp(now);
+    }
   }
 }
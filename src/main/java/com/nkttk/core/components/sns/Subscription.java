@@ -0,0 +1,282 @@
+package com.nkttk.core.components.sns;
+
+import com.nkttk.core.components.Ids;
+import com.nkttk.core.components.sns.entities.SNSMessage;
+import com.nkttk.core.components.sqs.SQSInstance;
+import com.nkttk.core.components.sqs.entities.SQSMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A subscriber of a topic. Synchronous subscriptions are called on the publishing thread, concurrently by concurrent
+ * publishers, asynchronous ones get their own bounded delivery queue, see {@link DeliveryQueue}. A subscriber may
+ * also hand a delivery off and report its outcome later through a {@link CompletionStage}.
+ * <p>
+ * A delivery the subscriber throws on, or whose completion fails, never affects other subscriptions. It is retried
+ * along the subscription's {@link DeliveryPolicy} on the engine's {@link RetryScheduler}, and once the retries are
+ * exhausted the message goes to the dead letter queue if there is one. Due retries go through a delivery queue of the
+ * subscription, its own retry queue if it is synchronous, so they are attempted one at a time and in order.
+ * Unsubscribing cancels the pending retries.
+ */
+public class Subscription {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Subscription.class);
+
+  private final String arn;
+  private final String protocol;
+  private final String endpoint;
+  private final long sequence;
+  private final Function<SNSMessage, CompletionStage<?>> subscriber;
+  private final Consumer<List<SNSMessage>> batchSubscriber;
+  private final DeliveryQueue deliveryQueue;
+  private final DeliveryQueue retryQueue;
+  private final RetryScheduler retryScheduler;
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder retried = new LongAdder();
+  private final LongAdder deadLettered = new LongAdder();
+  private volatile FilterPolicy filterPolicy;
+  private volatile DeliveryPolicy deliveryPolicy;
+  private volatile SQSInstance deadLetterQueue;
+  private volatile boolean rawMessageDelivery;
+  private volatile boolean cancelled;
+
+  /**
+   * @param protocol SNS protocol, null for subscribers added in process
+   * @param sequence position in the topic's subscription order
+   * @param subscriber delivers a message, gets this subscription along with it. Returns the completion of a delivery
+   *                   it handed off, null if it delivered the message before returning.
+   * @param batchSubscriber delivers a batch at once, null to deliver batches message by message
+   * @param deliveryQueueCapacity capacity of the delivery queue, 0 for synchronous delivery
+   */
+  Subscription(String topicArn, String protocol, String endpoint, long sequence,
+               BiFunction<Subscription, SNSMessage, CompletionStage<?>> subscriber,
+               BiConsumer<Subscription, List<SNSMessage>> batchSubscriber, int deliveryQueueCapacity,
+               RetryScheduler retryScheduler) {
+    this.arn = topicArn + ":" + Ids.next();
+    this.protocol = protocol;
+    this.endpoint = endpoint;
+    this.sequence = sequence;
+    this.subscriber = message -> subscriber.apply(this, message);
+    this.batchSubscriber = batchSubscriber == null ? null : messages -> batchSubscriber.accept(this, messages);
+    this.deliveryQueue = deliveryQueueCapacity > 0
+        ? new DeliveryQueue(this, deliveryQueueCapacity, retryScheduler.getClock()) : null;
+    this.retryQueue = deliveryQueue != null
+        ? deliveryQueue : new DeliveryQueue(this, Integer.MAX_VALUE, retryScheduler.getClock());
+    this.retryScheduler = retryScheduler;
+  }
+
+  public String getArn() {
+    return arn;
+  }
+
+  public String getProtocol() {
+    return protocol;
+  }
+
+  public String getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * @return position in the topic's subscription order, see {@link SNSTopic#getSubscriptions(long, int)}
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * @return the filter policy, null if the subscription receives every message
+   */
+  public FilterPolicy getFilterPolicy() {
+    return filterPolicy;
+  }
+
+  /**
+   * Only through {@link SNSTopic#setFilterPolicy}, which recompiles the topic's filters
+   */
+  void setFilterPolicy(FilterPolicy filterPolicy) {
+    this.filterPolicy = filterPolicy;
+  }
+
+  /**
+   * @return the retry schedule, null if failed deliveries aren't retried
+   */
+  public DeliveryPolicy getDeliveryPolicy() {
+    return deliveryPolicy;
+  }
+
+  public void setDeliveryPolicy(DeliveryPolicy deliveryPolicy) {
+    this.deliveryPolicy = deliveryPolicy;
+  }
+
+  public SQSInstance getDeadLetterQueue() {
+    return deadLetterQueue;
+  }
+
+  /**
+   * @param deadLetterQueue receives messages whose delivery failed for good, null drops them
+   */
+  public void setDeadLetterQueue(SQSInstance deadLetterQueue) {
+    this.deadLetterQueue = deadLetterQueue;
+  }
+
+  /**
+   * @return true if queues receive the message body as is, false if they receive the JSON notification envelope
+   */
+  public boolean isRawMessageDelivery() {
+    return rawMessageDelivery;
+  }
+
+  public void setRawMessageDelivery(boolean rawMessageDelivery) {
+    this.rawMessageDelivery = rawMessageDelivery;
+  }
+
+  public boolean isAsync() {
+    return deliveryQueue != null;
+  }
+
+  void deliver(SNSMessage message) {
+    if (deliveryQueue != null) {
+      deliveryQueue.offer(message, 0);
+    } else {
+      attempt(message, 0);
+    }
+  }
+
+  /**
+   * Asynchronous subscriptions enqueue the messages one by one, synchronous ones hand the whole batch to the batch
+   * subscriber if there is one. If the batch subscriber throws, every message of the batch is handled as failed.
+   */
+  void deliverBatch(List<SNSMessage> messages) {
+    if (deliveryQueue != null) {
+      messages.forEach(message -> deliveryQueue.offer(message, 0));
+    } else if (batchSubscriber != null) {
+      try {
+        batchSubscriber.accept(messages);
+        delivered.add(messages.size());
+      } catch (RuntimeException e) {
+        messages.forEach(message -> failed(message, 0, e));
+      }
+    } else {
+      messages.forEach(this::deliver);
+    }
+  }
+
+  /**
+   * Retries of a cancelled subscription are dropped. A handed off delivery counts once it completes.
+   * @param retry 0 for the first delivery
+   */
+  void attempt(SNSMessage message, int retry) {
+    if (retry > 0 && cancelled) {
+      return;
+    }
+    CompletionStage<?> completion;
+    try {
+      completion = subscriber.apply(message);
+    } catch (RuntimeException e) {
+      failed(message, retry, e);
+      return;
+    }
+    if (completion == null) {
+      delivered.increment();
+      return;
+    }
+    completion.whenComplete((result, error) -> {
+      if (error == null) {
+        delivered.increment();
+      } else {
+        failed(message, retry, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+      }
+    });
+  }
+
+  /**
+   * Queues a due retry, a full delivery queue drops it
+   */
+  void retry(SNSMessage message, int retry) {
+    retryQueue.offer(message, retry);
+  }
+
+  /**
+   * Stops retries, the pending ones are cancelled and failed deliveries are no longer retried or dead lettered
+   */
+  void cancel() {
+    cancelled = true;
+    retryScheduler.cancel(this);
+  }
+
+  private void failed(SNSMessage message, int retry, Throwable cause) {
+    failed.increment();
+    if (cancelled) {
+      LOGGER.debug("SNS delivery of {} to unsubscribed {} failed", message.getId(), arn, cause);
+      return;
+    }
+    DeliveryPolicy policy = deliveryPolicy;
+    if (policy != null && retry < policy.getNumRetries()) {
+      retried.increment();
+      retryScheduler.schedule(this, message, retry + 1, policy.getDelay(retry + 1));
+      return;
+    }
+    SQSInstance queue = deadLetterQueue;
+    if (queue == null) {
+      LOGGER.warn("SNS delivery of {} to {} failed after {} retries", message.getId(), arn, retry, cause);
+      return;
+    }
+    try {
+      queue.putMessage(new SQSMessage(message.getPayload(), message.getAttributes()));
+      deadLettered.increment();
+    } catch (RuntimeException e) {
+      LOGGER.warn("SNS delivery of {} to {} failed, dead letter queue {} refused it", message.getId(), arn,
+          queue.getName(), e);
+    }
+  }
+
+  public long getDeliveredCount() {
+    return delivered.sum();
+  }
+
+  /**
+   * @return messages dropped because the delivery queue was full
+   */
+  public long getDroppedCount() {
+    return deliveryQueue != null ? deliveryQueue.getDroppedCount() : 0;
+  }
+
+  /**
+   * @return delivery attempts the subscriber threw on, retries included
+   */
+  public long getFailedCount() {
+    return failed.sum();
+  }
+
+  public long getRetriedCount() {
+    return retried.sum();
+  }
+
+  /**
+   * @return messages moved to the dead letter queue
+   */
+  public long getDeadLetteredCount() {
+    return deadLettered.sum();
+  }
+
+  public int getPendingCount() {
+    return deliveryQueue != null ? deliveryQueue.getPendingCount() : 0;
+  }
+
+  /**
+   * @return ms the oldest undelivered message has been waiting
+   */
+  public long getLagMillis() {
+    return deliveryQueue != null ? deliveryQueue.getLagMillis() : 0;
+  }
+}
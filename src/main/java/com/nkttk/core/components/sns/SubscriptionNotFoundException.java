@@ -0,0 +1,12 @@
+package com.nkttk.core.components.sns;
+
+/**
+ * Thrown when no topic has a subscription with the given ARN
+ */
+public class SubscriptionNotFoundException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public SubscriptionNotFoundException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,12 @@
+package com.nkttk.core.components.sns;
+
+/**
+ * Thrown when no topic has the given name, ARN or URL
+ */
+public class TopicNotFoundException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public TopicNotFoundException(String message) {
+    super(message);
+  }
+}
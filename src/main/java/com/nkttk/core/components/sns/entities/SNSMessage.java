@@ -1,13 +1,53 @@
 package com.nkttk.core.components.sns.entities;
 
+import com.nkttk.core.components.Ids;
+import com.nkttk.core.components.MessageAttribute;
+import com.nkttk.core.components.Payload;
+import com.nkttk.core.components.sns.EnvelopeWriter;
+
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * Created by cryptobat on 11/1/2016.
  */
 public class SNSMessage {
+  private final String id = Ids.next();
+  private volatile long timestamp;
   private String body;
+  private final Map<String, MessageAttribute> attributes;
+  private volatile Payload payload;
+  private volatile Payload envelope;
 
   public SNSMessage(String body) {
+    this(body, null);
+  }
+
+  /**
+   * @param attributes message attributes, subscription filter policies are matched against them
+   */
+  public SNSMessage(String body, Map<String, MessageAttribute> attributes) {
     this.body = body;
+    this.attributes = attributes == null ? Collections.emptyMap() : attributes;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return ms when the message was published, 0 before it is published
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Stamped from the engine clock by the topic the message is published to
+   */
+  public void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
+    this.envelope = null;
   }
 
   public String getBody() {
@@ -16,5 +56,36 @@ public class SNSMessage {
 
   public void setBody(String body) {
     this.body = body;
+    this.payload = null;
+    this.envelope = null;
+  }
+
+  /**
+   * @return the body encoded once per message, shared by all queues it is fanned out to
+   */
+  public Payload getPayload() {
+    Payload result = payload;
+    if (result == null) {
+      result = Payload.of(body);
+      payload = result;
+    }
+    return result;
+  }
+
+  /**
+   * @param writer envelope writer of the topic the message is published to
+   * @return the JSON notification envelope, written once per message and shared by all queues it is fanned out to
+   */
+  public Payload getEnvelope(EnvelopeWriter writer) {
+    Payload result = envelope;
+    if (result == null) {
+      result = writer.write(this);
+      envelope = result;
+    }
+    return result;
+  }
+
+  public Map<String, MessageAttribute> getAttributes() {
+    return attributes;
   }
 }
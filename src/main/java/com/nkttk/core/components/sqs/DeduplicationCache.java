@@ -0,0 +1,89 @@
+package com.nkttk.core.components.sqs;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers deduplication ids, with the id of the message first accepted under each, for at least the given interval. Ids are grouped into time buckets and a whole bucket is
+ * dropped at once when it falls out of the interval, so expiration costs nothing per id.
+ */
+public class DeduplicationCache {
+  public static final long DEFAULT_INTERVAL = 5 * 60 * 1000;
+  private static final int BUCKET_COUNT = 5;
+
+  private final long bucketLength;
+  private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(BUCKET_COUNT + 1);
+
+  public DeduplicationCache() {
+    this(DEFAULT_INTERVAL);
+  }
+
+  public DeduplicationCache(long interval) {
+    this.bucketLength = Math.max(interval / BUCKET_COUNT, 1);
+  }
+
+  /**
+   * @return null if the id wasn't registered during the interval and now is, otherwise the message id it was
+   * registered with
+   */
+  public String register(String id, String messageId, long now) {
+    long index = now / bucketLength;
+    String registered = registeredBefore(index, id);
+    return registered != null ? registered : currentBucket(index).ids.putIfAbsent(id, messageId);
+  }
+
+  /**
+   * @return message id the id was registered with during the interval, null if it wasn't, without registering it
+   */
+  public String get(String id, long now) {
+    long index = now / bucketLength;
+    String registered = registeredBefore(index, id);
+    return registered != null ? registered : bucketGet(index, id);
+  }
+
+  /**
+   * @return message id a bucket before the current one holds for the id, null if none does
+   */
+  private String registeredBefore(long index, String id) {
+    for (long i = index - BUCKET_COUNT; i < index; i++) {
+      String registered = bucketGet(i, id);
+      if (registered != null) {
+        return registered;
+      }
+    }
+    return null;
+  }
+
+  private String bucketGet(long index, String id) {
+    Bucket bucket = buckets.get(slot(index));
+    return bucket != null && bucket.index == index ? bucket.ids.get(id) : null;
+  }
+
+  private Bucket currentBucket(long index) {
+    int slot = slot(index);
+    while (true) {
+      Bucket bucket = buckets.get(slot);
+      if (bucket != null && bucket.index >= index) {
+        return bucket;
+      }
+      Bucket fresh = new Bucket(index);
+      if (buckets.compareAndSet(slot, bucket, fresh)) {
+        return fresh;
+      }
+    }
+  }
+
+  private static int slot(long index) {
+    return (int) Math.floorMod(index, (long) BUCKET_COUNT + 1);
+  }
+
+  private static class Bucket {
+    private final long index;
+    private final ConcurrentMap<String, String> ids = new ConcurrentHashMap<>();
+
+    private Bucket(long index) {
+      this.index = index;
+    }
+  }
+}
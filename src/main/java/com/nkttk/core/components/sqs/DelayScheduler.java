@@ -0,0 +1,125 @@
+package com.nkttk.core.components.sqs;
+
+import com.nkttk.core.components.sqs.entities.SQSMessage;
+import com.nkttk.core.engine.timer.Clock;
+import com.nkttk.core.engine.timer.TimerWheel;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delayed delivery shared by all queues of an engine. Pending messages sit on a single timer wheel and are promoted
+ * in bulk, one batch per queue per tick. A clock timer is armed once per tick which has messages due, receivers also
+ * promote due messages before polling, but lock the wheel only once the earliest pending due time has passed.
+ */
+public class DelayScheduler {
+  private static final long TICK_DURATION = 10;
+
+  private final Clock clock;
+  private final long startTime;
+  private final TimerWheel<DelayedMessage> wheel;
+  private final AtomicInteger pending = new AtomicInteger();
+  /**
+   * No pending message is due before this time, receivers check it before taking the wheel lock
+   */
+  private final AtomicLong nextDue = new AtomicLong(Long.MAX_VALUE);
+  private final Set<Long> armedTicks = ConcurrentHashMap.newKeySet();
+
+  public DelayScheduler() {
+    this(Clock.SYSTEM);
+  }
+
+  public DelayScheduler(Clock clock) {
+    this.clock = clock;
+    this.startTime = clock.currentTimeMillis();
+    this.wheel = new TimerWheel<>(TICK_DURATION, startTime);
+  }
+
+  /**
+   * @param generation storage generation of the queue, messages scheduled before a purge are dropped when due
+   */
+  public void schedule(SQSInstance instance, long generation, SQSMessage message, long delay) {
+    long dueAt = clock.currentTimeMillis() + delay;
+    wheel.schedule(dueAt, new DelayedMessage(instance, generation, message));
+    pending.incrementAndGet();
+    nextDue.accumulateAndGet(dueAt, Math::min);
+    long tickTime = startTime + (Math.max(dueAt - startTime, 0) + TICK_DURATION - 1) / TICK_DURATION * TICK_DURATION;
+    if (armedTicks.add(tickTime)) {
+      clock.schedule(tickTime, () -> fire(tickTime));
+    }
+  }
+
+  /**
+   * Hands messages which became due over to their queues
+   */
+  public void promoteDue() {
+    long now = clock.currentTimeMillis();
+    long observedNextDue = nextDue.get();
+    if (pending.get() == 0 || now < observedNextDue) {
+      return;
+    }
+    // nothing left after the advance is due before the next tick, unless a concurrent schedule lowered the bound
+    nextDue.compareAndSet(observedNextDue, startTime + ((now - startTime) / TICK_DURATION + 1) * TICK_DURATION);
+    List<DelayedMessage> due = wheel.advance(now);
+    if (due.isEmpty()) {
+      return;
+    }
+    pending.addAndGet(-due.size());
+    Map<SQSInstance, List<DelayedMessage>> batches = new IdentityHashMap<>();
+    for (DelayedMessage delayedMessage : due) {
+      batches.computeIfAbsent(delayedMessage.instance, instance -> new ArrayList<>()).add(delayedMessage);
+    }
+    batches.forEach(DelayScheduler::promote);
+  }
+
+  public int getPendingCount() {
+    return pending.get();
+  }
+
+  /**
+   * One batch per storage generation, which is a single one unless the queue was purged meanwhile
+   */
+  private static void promote(SQSInstance instance, List<DelayedMessage> due) {
+    long generation = due.get(0).generation;
+    List<SQSMessage> batch = new ArrayList<>(due.size());
+    for (DelayedMessage delayedMessage : due) {
+      if (delayedMessage.generation != generation) {
+        instance.promoteDelayed(generation, batch);
+        generation = delayedMessage.generation;
+        batch = new ArrayList<>();
+      }
+      batch.add(delayedMessage.message);
+    }
+    instance.promoteDelayed(generation, batch);
+  }
+
+  /**
+   * Timers may fire a little early against the millisecond clock, the tick is re-armed then
+   */
+  private void fire(long tickTime) {
+    if (clock.currentTimeMillis() < tickTime) {
+      clock.schedule(tickTime, () -> fire(tickTime));
+      return;
+    }
+    armedTicks.remove(tickTime);
+    promoteDue();
+  }
+
+  private static class DelayedMessage {
+    private final SQSInstance instance;
+    private final long generation;
+    private final SQSMessage message;
+
+    private DelayedMessage(SQSInstance instance, long generation, SQSMessage message) {
+      this.instance = instance;
+      this.generation = generation;
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package com.nkttk.core.components.sqs;
+
+import com.nkttk.core.components.sqs.entities.SQSMessage;
+import com.nkttk.io.Digests;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FIFO queue. Every message group has its own sub-queue ordered by sequence number, a group is offered to consumers
+ * only while none of its messages are in flight, so a busy group never blocks the other ones. Groups are locked
+ * individually, there is no queue-wide ordering lock.
+ * <p>
+ * Groups are kept together with their availability queue in the storage generation, so purge replaces both at once.
+ */
+public class FifoSQSInstance extends SQSInstance {
+  public static final String FIFO_QUEUE = "FifoQueue";
+  public static final String CONTENT_BASED_DEDUPLICATION = "ContentBasedDeduplication";
+
+  private final DeduplicationCache deduplicationCache = new DeduplicationCache();
+  private final AtomicLong sequence = new AtomicLong();
+  private volatile boolean contentBasedDeduplication;
+
+  public FifoSQSInstance(String name) {
+    super(name);
+  }
+
+  public boolean isContentBasedDeduplication() {
+    return contentBasedDeduplication;
+  }
+
+  public void setContentBasedDeduplication(boolean contentBasedDeduplication) {
+    this.contentBasedDeduplication = contentBasedDeduplication;
+  }
+
+  @Override
+  public boolean isFifo() {
+    return true;
+  }
+
+  /**
+   * Messages already seen within the deduplication interval are accepted but not enqueued. Ids are registered only
+   * once the queue took room for the message, a message rejected by a full queue can be retried with the same id.
+   * @throws InvalidMessageException if the message lacks FIFO parameters
+   */
+  @Override
+  public String putMessage(SQSMessage message) {
+    validate(message);
+    String original = deduplicationCache.get(message.getDeduplicationId(), getClock().currentTimeMillis());
+    return original != null ? original : super.putMessage(message);
+  }
+
+  /**
+   * Known duplicates don't take room, the whole batch is validated before any of it is registered
+   */
+  @Override
+  public List<String> putMessages(Collection<SQSMessage> batch) {
+    batch.forEach(this::validate);
+    long now = getClock().currentTimeMillis();
+    List<String> ids = new ArrayList<>(batch.size());
+    List<SQSMessage> candidates = new ArrayList<>(batch.size());
+    for (SQSMessage message : batch) {
+      String original = deduplicationCache.get(message.getDeduplicationId(), now);
+      ids.add(original);
+      if (original == null) {
+        candidates.add(message);
+      }
+    }
+    Iterator<String> accepted = super.putMessages(candidates).iterator();
+    for (int i = 0; i < ids.size(); i++) {
+      if (ids.get(i) == null) {
+        ids.set(i, accepted.next());
+      }
+    }
+    return ids;
+  }
+
+  @Override
+  protected void putAttributes(Map<String, String> attributes) {
+    super.putAttributes(attributes);
+    attributes.put(FIFO_QUEUE, Boolean.TRUE.toString());
+    attributes.put(CONTENT_BASED_DEDUPLICATION, Boolean.toString(contentBasedDeduplication));
+  }
+
+  @Override
+  protected VisibleMessages newVisibleMessages() {
+    return new Groups();
+  }
+
+  @Override
+  protected String duplicateOf(SQSMessage message) {
+    return deduplicationCache.register(message.getDeduplicationId(), message.getId(), getClock().currentTimeMillis());
+  }
+
+  /**
+   * Without an explicit deduplication id, the content based one is set on the message
+   */
+  @Override
+  public void validate(SQSMessage message) {
+    if (message.getGroupId() == null) {
+      throw new InvalidMessageException("The request must contain the parameter MessageGroupId.", true);
+    }
+    if (message.getDelay() != null) {
+      throw new InvalidMessageException("Value " + TimeUnit.MILLISECONDS.toSeconds(message.getDelay())
+          + " for parameter DelaySeconds is invalid. Reason: The request include parameter that is not valid for this queue type.", false);
+    }
+    if (message.getDeduplicationId() == null) {
+      if (!contentBasedDeduplication) {
+        throw new InvalidMessageException("The queue should either have ContentBasedDeduplication enabled or "
+            + "MessageDeduplicationId provided explicitly", false);
+      }
+      message.setDeduplicationId(Digests.sha256Hex(message.getBodyBytes()));
+    }
+  }
+
+  /**
+   * Message groups of one storage generation
+   */
+  private class Groups implements VisibleMessages {
+    private final Map<String, MessageGroup> byId = new ConcurrentHashMap<>();
+    private final Queue<MessageGroup> available = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void add(SQSMessage message) {
+      message.setSequenceNumber(sequence.incrementAndGet());
+      byId.compute(message.getGroupId(), (id, group) -> {
+        MessageGroup result = group == null ? new MessageGroup() : group;
+        synchronized (result) {
+          result.pending.add(message);
+          makeAvailable(result);
+        }
+        return result;
+      });
+    }
+
+    @Override
+    public void addAll(Collection<SQSMessage> batch) {
+      batch.forEach(this::add);
+    }
+
+    /**
+     * The group stays unavailable until the message is restored or released
+     */
+    @Override
+    public void addInFlight(SQSMessage message) {
+      message.setSequenceNumber(sequence.incrementAndGet());
+      byId.compute(message.getGroupId(), (id, group) -> {
+        MessageGroup result = group == null ? new MessageGroup() : group;
+        synchronized (result) {
+          result.inFlight++;
+        }
+        return result;
+      });
+    }
+
+    @Override
+    public void poll(int maxMessages, List<SQSMessage> result) {
+      while (result.size() < maxMessages) {
+        MessageGroup group = available.poll();
+        if (group == null) {
+          return;
+        }
+        synchronized (group) {
+          group.queued = false;
+          SQSMessage message;
+          while (result.size() < maxMessages && (message = group.pending.poll()) != null) {
+            result.add(message);
+            group.inFlight++;
+          }
+          makeAvailable(group);
+        }
+      }
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return available.isEmpty();
+    }
+
+    @Override
+    public void restore(SQSMessage message) {
+      byId.computeIfPresent(message.getGroupId(), (id, group) -> {
+        synchronized (group) {
+          group.pending.add(message);
+          group.inFlight--;
+          makeAvailable(group);
+        }
+        return group;
+      });
+    }
+
+    @Override
+    public void released(SQSMessage message) {
+      byId.computeIfPresent(message.getGroupId(), (id, group) -> {
+        synchronized (group) {
+          group.inFlight--;
+          makeAvailable(group);
+          return group.isIdle() ? null : group;
+        }
+      });
+    }
+
+    @Override
+    public Iterable<SQSMessage> remaining() {
+      List<SQSMessage> result = new ArrayList<>();
+      for (MessageGroup group : byId.values()) {
+        synchronized (group) {
+          result.addAll(group.pending);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Must be called holding the group monitor
+     */
+    private void makeAvailable(MessageGroup group) {
+      if (group.inFlight == 0 && !group.queued && !group.pending.isEmpty()) {
+        group.queued = true;
+        available.offer(group);
+      }
+    }
+  }
+
+  private static class MessageGroup {
+    private final Queue<SQSMessage> pending = new PriorityQueue<>(Comparator.comparingLong(SQSMessage::getSequenceNumber));
+    private int inFlight;
+    private boolean queued;
+
+    private boolean isIdle() {
+      return inFlight == 0 && pending.isEmpty();
+    }
+  }
+}
@@ -0,0 +1,12 @@
+package com.nkttk.core.components.sqs;
+
+/**
+ * Thrown when a queue attribute has a value that can't be parsed or applied
+ */
+public class InvalidAttributeValueException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public InvalidAttributeValueException(String message) {
+    super(message);
+  }
+}
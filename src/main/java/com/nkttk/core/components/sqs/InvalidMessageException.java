@@ -0,0 +1,22 @@
+package com.nkttk.core.components.sqs;
+
+/**
+ * Thrown when a sent message lacks a parameter its queue requires or has one the queue doesn't accept
+ */
+public class InvalidMessageException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  private final boolean missingParameter;
+
+  public InvalidMessageException(String message, boolean missingParameter) {
+    super(message);
+    this.missingParameter = missingParameter;
+  }
+
+  /**
+   * @return true if a required parameter is missing, false if a parameter has an invalid value
+   */
+  public boolean isMissingParameter() {
+    return missingParameter;
+  }
+}
@@ -0,0 +1,34 @@
+package com.nkttk.core.components.sqs;
+
+import com.nkttk.core.components.sqs.entities.SQSMessage;
+
+/**
+ * Receives the state transitions of queue messages, e.g. to make them durable. Transitions are appended as they
+ * happen, a queue operation calls {@link #commit()} once before it returns.
+ */
+public interface MessageLog {
+  /**
+   * @param visibleAt time the message becomes visible, later than sending for delayed messages
+   */
+  void sent(SQSInstance queue, SQSMessage message, long visibleAt);
+
+  /**
+   * Message moved to another queue, e.g. dead lettered, visible in the target right away
+   */
+  void moved(SQSInstance source, SQSInstance target, SQSMessage message);
+
+  void deleted(SQSInstance queue, SQSMessage message);
+
+  /**
+   * Message received or its visibility changed
+   * @param visibleAt time the message becomes visible again
+   */
+  void hidden(SQSInstance queue, SQSMessage message, long visibleAt);
+
+  void purged(SQSInstance queue);
+
+  /**
+   * Returns once the transitions appended so far are as durable as the log promises
+   */
+  void commit();
+}
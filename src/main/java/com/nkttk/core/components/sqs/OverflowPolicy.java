@@ -0,0 +1,19 @@
+package com.nkttk.core.components.sqs;
+
+/**
+ * What a send does when the queue holds its maximum number of messages or bytes
+ */
+public enum OverflowPolicy {
+  /**
+   * The sender waits for room up to the overflow timeout, then fails
+   */
+  BLOCK,
+  /**
+   * The send fails right away
+   */
+  FAIL,
+  /**
+   * The oldest visible messages are dropped to make room, the send fails only if not enough of them are visible
+   */
+  DROP_OLDEST
+}
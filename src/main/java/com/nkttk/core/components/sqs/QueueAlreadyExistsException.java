@@ -0,0 +1,12 @@
+package com.nkttk.core.components.sqs;
+
+/**
+ * Thrown when a queue is created with the name of an existing queue but different attributes
+ */
+public class QueueAlreadyExistsException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public QueueAlreadyExistsException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,12 @@
+package com.nkttk.core.components.sqs;
+
+/**
+ * Thrown when a send finds no room in a bounded queue
+ */
+public class QueueFullException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public QueueFullException(String message) {
+    super(message);
+  }
+}
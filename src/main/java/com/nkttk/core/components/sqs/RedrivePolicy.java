@@ -0,0 +1,40 @@
+package com.nkttk.core.components.sqs;
+
+import com.nkttk.json.JsonMaster;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Messages received maxReceiveCount times are moved to the dead letter queue once their lock expires
+ */
+public class RedrivePolicy {
+  public static final String MAX_RECEIVE_COUNT = "maxReceiveCount";
+  public static final String DEAD_LETTER_TARGET_ARN = "deadLetterTargetArn";
+
+  private final SQSInstance deadLetterQueue;
+  private final int maxReceiveCount;
+
+  public RedrivePolicy(SQSInstance deadLetterQueue, int maxReceiveCount) {
+    this.deadLetterQueue = deadLetterQueue;
+    this.maxReceiveCount = maxReceiveCount;
+  }
+
+  public SQSInstance getDeadLetterQueue() {
+    return deadLetterQueue;
+  }
+
+  public int getMaxReceiveCount() {
+    return maxReceiveCount;
+  }
+
+  /**
+   * @return the policy as the RedrivePolicy queue attribute
+   */
+  public String toJson() {
+    Map<String, Object> policy = new LinkedHashMap<>();
+    policy.put(DEAD_LETTER_TARGET_ARN, deadLetterQueue.getArn());
+    policy.put(MAX_RECEIVE_COUNT, maxReceiveCount);
+    return JsonMaster.toString(policy);
+  }
+}
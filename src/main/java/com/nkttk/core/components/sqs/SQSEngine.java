@@ -1,44 +1,155 @@
 package com.nkttk.core.components.sqs;
 
 import com.nkttk.core.components.ComponentIdentifier;
+import com.nkttk.core.components.ComponentRegistry;
+import com.nkttk.core.components.sqs.entities.BatchResult;
+import com.nkttk.core.components.sqs.entities.ReceivedMessage;
 import com.nkttk.core.components.sqs.entities.SQSMessage;
+import com.nkttk.core.components.sqs.entities.VisibilityChange;
+import com.nkttk.core.engine.timer.Clock;
 
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class SQSEngine {
-    private List<SQSInstance> instances = new LinkedList<>();
+    private ComponentRegistry<SQSInstance> instances = new ComponentRegistry<>(SQSInstance::getName, SQSInstance::getEndpointURL, SQSInstance::getArn);
+    private final Clock clock;
+    private final DelayScheduler delayScheduler;
+    private volatile MessageLog messageLog;
+
+    public SQSEngine() {
+        this(Clock.SYSTEM);
+    }
+
+    public SQSEngine(Clock clock) {
+        this.clock = clock;
+        this.delayScheduler = new DelayScheduler(clock);
+    }
 
     public List<ComponentIdentifier> getIdentifiers() {
-        return instances.stream().map(i -> new ComponentIdentifier(i.getName(), i.getEndpointURL())).collect(Collectors.toList());
+        return instances.getIdentifiers();
     }
 
+    /**
+     * @return the added instance, or the existing one with the same name, the given instance is left untouched then
+     */
     public SQSInstance addInstance(SQSInstance instance) {
-        instances.add(instance);
-        return instance;
+        return addInstance(instance.getName(), () -> instance);
+    }
+
+    /**
+     * @param factory builds the instance, called only if no instance of that name exists
+     * @return the added instance, or the existing one with the same name
+     */
+    public SQSInstance addInstance(String name, Supplier<SQSInstance> factory) {
+        return instances.register(name, () -> {
+            SQSInstance instance = factory.get();
+            instance.setClock(clock);
+            instance.setDelayScheduler(delayScheduler);
+            instance.setMessageLog(messageLog);
+            return instance;
+        });
+    }
+
+    /**
+     * @param messageLog log of message transitions of all queues, null for none
+     */
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+        instances.getAll().forEach(instance -> instance.setMessageLog(messageLog));
+    }
+
+    /**
+     * Unregisters the queue and closes it, lookups of other queues are never blocked
+     */
+    public void deleteInstance(String sqsUrl) {
+        SQSInstance instance = getInstanceByURL(sqsUrl);
+        if (instances.unregister(instance)) {
+            instance.close();
+        }
+    }
+
+    public void purgeInstance(String sqsUrl) {
+        getInstanceByURL(sqsUrl).purge();
     }
 
     public void sendMessage(String sqsUrl, String message) {
         getInstanceByURL(sqsUrl).putMessage(new SQSMessage(message));
     }
 
-    public void sendMessage(String sqsUrl, SQSMessage message) {
-        getInstanceByURL(sqsUrl).putMessage(message);
+    /**
+     * @return id of the accepted message, for a FIFO duplicate the id of the message it duplicates
+     */
+    public String sendMessage(String sqsUrl, SQSMessage message) {
+        return getInstanceByURL(sqsUrl).putMessage(message);
+    }
+
+    public void validateMessage(String sqsUrl, SQSMessage message) {
+        getInstanceByURL(sqsUrl).validate(message);
     }
 
-    public Optional<SQSMessage> pullMessage(String sqsUrl) {
+    /**
+     * @return ids of the accepted messages in batch order
+     */
+    public List<String> sendMessages(String sqsUrl, Collection<SQSMessage> messages) {
+        return getInstanceByURL(sqsUrl).putMessages(messages);
+    }
+
+    public Optional<ReceivedMessage> pullMessage(String sqsUrl) {
         return getInstanceByURL(sqsUrl).getMessage();
     }
 
+    public List<ReceivedMessage> pullMessages(String sqsUrl, int maxMessages, long waitTime) {
+        return getInstanceByURL(sqsUrl).getMessages(maxMessages, waitTime);
+    }
+
+    public List<ReceivedMessage> pullMessages(String sqsUrl, int maxMessages, long waitTime, long lockInterval) {
+        return getInstanceByURL(sqsUrl).getMessages(maxMessages, waitTime, lockInterval);
+    }
+
     public void deleteMessage(String sqsUrl, String receiptHandle) {
         getInstanceByURL(sqsUrl).deleteMessage(receiptHandle);
     }
 
+    public BatchResult deleteMessages(String sqsUrl, Map<String, String> handlesById) {
+        return getInstanceByURL(sqsUrl).deleteMessages(handlesById);
+    }
+
+    public boolean changeMessageVisibility(String sqsUrl, String receiptHandle, long lockInterval) {
+        return getInstanceByURL(sqsUrl).changeMessageVisibility(receiptHandle, lockInterval);
+    }
+
+    public BatchResult changeMessagesVisibility(String sqsUrl, Collection<VisibilityChange> changes) {
+        return getInstanceByURL(sqsUrl).changeMessagesVisibility(changes);
+    }
+
     public SQSInstance getInstanceByName(String sqsName) {
-        return instances.stream().filter(i -> i.getName().equals(sqsName)).findFirst().orElseThrow(() -> new RuntimeException("Instance not found. URL : " + sqsName));
+        return instances.findByName(sqsName).orElseThrow(() -> new RuntimeException("Instance not found. Name : " + sqsName));
+    }
+
+    public Optional<SQSInstance> findInstanceByName(String sqsName) {
+        return instances.findByName(sqsName);
+    }
+
+    public SQSInstance getInstanceByArn(String arn) {
+        return instances.findByArn(arn).orElseThrow(() -> new RuntimeException("Instance not found. ARN : " + arn));
+    }
+
+    public Optional<SQSInstance> findInstanceByArn(String arn) {
+        return instances.findByArn(arn);
+    }
+
+    public List<SQSInstance> getDeadLetterSourceQueues(String deadLetterQueueUrl) {
+        SQSInstance deadLetterQueue = getInstanceByURL(deadLetterQueueUrl);
+        return instances.getAll().stream().filter(i -> i.getRedrivePolicy() != null && i.getRedrivePolicy().getDeadLetterQueue() == deadLetterQueue).collect(Collectors.toList());
+    }
+
+    public int moveMessages(String sourceUrl, String targetUrl, int maxMessages) {
+        return getInstanceByURL(sourceUrl).moveMessagesTo(getInstanceByURL(targetUrl), maxMessages);
     }
 
-    private SQSInstance getInstanceByURL(String sqsUrl) {
-        return instances.stream().filter(i -> i.getEndpointURL().equals(sqsUrl)).findFirst().orElseThrow(() -> new RuntimeException("Instance not found. URL : " + sqsUrl));
+    public SQSInstance getInstanceByURL(String sqsUrl) {
+        return instances.findByUrl(sqsUrl).orElseThrow(() -> new RuntimeException("Instance not found. URL : " + sqsUrl));
     }
 }
@@ -1,22 +1,109 @@
 package com.nkttk.core.components.sqs;
 
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.nkttk.core.components.Ids;
+import com.nkttk.core.components.sqs.entities.BatchResult;
 import com.nkttk.core.components.sqs.entities.MessageLock;
+import com.nkttk.core.components.sqs.entities.ReceivedMessage;
 import com.nkttk.core.components.sqs.entities.SQSMessage;
+import com.nkttk.core.components.sqs.entities.VisibilityChange;
+import com.nkttk.core.engine.timer.Clock;
+import com.nkttk.io.MappedJournal;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Visible messages are kept in a FIFO deque, received messages are indexed both by receipt handle (for delete) and by
+ * lock expiration time (for restoring), so receive, delete and restore don't depend on the queue depth.
+ * <p>
+ * Safe for concurrent producers and consumers: all collections are lock-free, and the handle index is the single owner
+ * of a received message - whoever removes the lock from it (delete or restore) wins the transition.
+ * <p>
+ * Long polling consumers park on a condition which producers signal only when somebody is actually waiting.
+ * <p>
+ * Visible, in flight and delayed messages are counted on every transition, so the approximate queue sizes are read
+ * without walking the collections.
+ * <p>
+ * All times come from the queue's clock, which the engine sets, so a virtual clock drives visibility timeouts, delays
+ * and long polls.
+ * <p>
+ * Messages, locks and counters live in a storage segment which purge replaces as a whole. Receipt handles carry the
+ * generation of the segment they were issued in, handles of another generation are rejected without a lookup. The
+ * first generation is random, so handles issued before a restart are rejected the same way. Every operation holds a
+ * reference to the segment it works on, the messages of a purged segment are released only once the last such
+ * operation finished.
+ * <p>
+ * With a journal set, message bodies are moved into memory-mapped journal segments on send and released on delete,
+ * the heap keeps only the message headers.
+ * <p>
+ * With a message log set, every transition is appended to it, and each public operation commits the log once before
+ * returning. Sends and moves are appended before the message becomes visible, so a delete is never logged ahead of
+ * the message it deletes.
+ * <p>
+ * A queue may be bounded by a number of messages and of body bytes, counting visible, in flight and delayed messages.
+ * Sends which find the queue full block, fail or drop the oldest visible messages according to the overflow policy.
+ * Messages moved in from another queue or recovered from a log were accepted once already and are never rejected.
  */
 public class SQSInstance {
+  public static final String RECEIPT_HANDLE_IS_INVALID = "ReceiptHandleIsInvalid";
+  public static final String ARN_PREFIX = "arn:aws:sqs:us-east-1:000000000000:";
+  public static final String ALL = "All";
+  /**
+   * Not SQS attributes: capacity of a bounded queue and what sends do once it's full, see {@link OverflowPolicy}
+   */
+  public static final String MAX_MESSAGES = "HazeMaxMessages";
+  public static final String MAX_BYTES = "HazeMaxBytes";
+  public static final String OVERFLOW_POLICY = "HazeOverflowPolicy";
+  public static final String OVERFLOW_TIMEOUT_MILLIS = "HazeOverflowTimeoutMillis";
+  public static final String QUEUE_FULL_COUNT = "HazeQueueFullCount";
+  private static final int MOVE_CHUNK_SIZE = 1000;
+  private static final char HANDLE_SEPARATOR = '.';
+  /**
+   * Releases the bodies of purged messages, shared by all queues
+   */
+  private static final ExecutorService RELEASER = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "haze-sqs-purge");
+    thread.setDaemon(true);
+    return thread;
+  });
+
   private final String endpointURL;
   private final String name;
-  private long messageLockInterval = 60 * 1000;
-  private Collection<SQSMessage> messages = new LinkedList<>();
-  private Collection<SQSMessage> hiddenMessages = new LinkedList<>();
-  private Set<MessageLock> lockRecords = new HashSet<>();
+  private volatile long messageLockInterval = 60 * 1000;
+  private volatile Clock clock = Clock.SYSTEM;
+  private volatile RedrivePolicy redrivePolicy;
+  private volatile long delay;
+  private volatile DelayScheduler delayScheduler;
+  private volatile MappedJournal journal;
+  private volatile MessageLog messageLog;
+  private volatile Storage storage = new Storage(ThreadLocalRandom.current().nextInt() & Integer.MAX_VALUE,
+      newVisibleMessages());
+  private volatile boolean closed;
+  private final ReentrantLock waitLock = new ReentrantLock();
+  private final Condition messageAvailable = waitLock.newCondition();
+  private final AtomicInteger waiters = new AtomicInteger();
+  private volatile long maxMessages;
+  private volatile long maxBytes;
+  private volatile OverflowPolicy overflowPolicy = OverflowPolicy.FAIL;
+  private volatile long overflowTimeout;
+  private final ReentrantLock capacityLock = new ReentrantLock();
+  private final Condition capacityAvailable = capacityLock.newCondition();
+  private final AtomicInteger capacityWaiters = new AtomicInteger();
+  private final LongAdder queueFullCount = new LongAdder();
 
   public SQSInstance(String name) {
-    this.endpointURL = "http://" + UUID.randomUUID().toString();
+    this.endpointURL = "http://" + Ids.next();
     this.name = name;
   }
 
@@ -24,69 +111,1053 @@ public class SQSInstance {
     return name;
   }
 
+  public String getArn() {
+    return ARN_PREFIX + name;
+  }
+
+  public long getMessageLockInterval() {
+    return messageLockInterval;
+  }
+
   public void setMessageLockInterval(long messageLockInterval) {
     this.messageLockInterval = messageLockInterval;
   }
 
-  public void putMessage(SQSMessage message) {
-    messages.add(message);
+  public long getDelay() {
+    return delay;
+  }
+
+  /**
+   * @param delay delivery delay in ms of messages which don't set their own
+   */
+  public void setDelay(long delay) {
+    this.delay = delay;
+  }
+
+  public Clock getClock() {
+    return clock;
+  }
+
+  public void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  public void setDelayScheduler(DelayScheduler delayScheduler) {
+    this.delayScheduler = delayScheduler;
+  }
+
+  public MappedJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * @param journal store for bodies of messages sent from now on, null keeps them on the heap
+   */
+  public void setJournal(MappedJournal journal) {
+    this.journal = journal;
   }
 
-  public Optional<SQSMessage> getMessage() {
-    unhideMessages();
-    SQSMessage message = ((Queue<SQSMessage>) messages).peek();
-    if (message != null) {
-      hideMessage(message.getId());
-      message.setReceiptHandle(UUID.randomUUID().toString());
+  /**
+   * @param messageLog log of message transitions, null for none
+   */
+  public void setMessageLog(MessageLog messageLog) {
+    this.messageLog = messageLog;
+  }
+
+  public long getMaxMessages() {
+    return maxMessages;
+  }
+
+  /**
+   * @param maxMessages maximum number of messages held, 0 for no limit
+   */
+  public void setMaxMessages(long maxMessages) {
+    this.maxMessages = maxMessages;
+    signalCapacityWaiters();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @param maxBytes maximum size of the message bodies held, 0 for no limit
+   */
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+    signalCapacityWaiters();
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  public long getOverflowTimeout() {
+    return overflowTimeout;
+  }
+
+  /**
+   * @param overflowTimeout ms a blocked sender waits for room
+   */
+  public void setOverflowTimeout(long overflowTimeout) {
+    this.overflowTimeout = overflowTimeout;
+  }
+
+  /**
+   * @return number of sends which found the queue full, whatever the policy did about it
+   */
+  public long getQueueFullCount() {
+    return queueFullCount.sum();
+  }
+
+  public RedrivePolicy getRedrivePolicy() {
+    return redrivePolicy;
+  }
+
+  /**
+   * @param redrivePolicy null disables dead lettering
+   */
+  public void setRedrivePolicy(RedrivePolicy redrivePolicy) {
+    this.redrivePolicy = redrivePolicy;
+  }
+
+  /**
+   * Checks the message can be sent to this queue, puts check it too. Standard queues take any message.
+   * @throws InvalidMessageException if the message lacks a parameter the queue requires or has one it doesn't accept
+   */
+  public void validate(SQSMessage message) {
+  }
+
+  /**
+   * @return id of the accepted message, for a duplicate the id of the message it duplicates
+   * @throws QueueFullException if the queue is bounded and no room could be made
+   */
+  public String putMessage(SQSMessage message) {
+    Storage current = reserve(1, message.getBodyLength());
+    try {
+      String original = duplicateOf(message);
+      if (original != null) {
+        current.leave(message);
+        signalCapacityWaiters();
+        return original;
+      }
+      message.setSentTimestamp(clock.currentTimeMillis());
+      journal(message);
+      long messageDelay = delayOf(message);
+      MessageLog log = messageLog;
+      if (log != null) {
+        log.sent(this, message, message.getSentTimestamp() + messageDelay);
+      }
+      if (messageDelay > 0) {
+        current.delayedCount.increment();
+        getDelayScheduler().schedule(this, current.generation, message, messageDelay);
+      } else {
+        current.visibleCount.increment();
+        current.visible.add(message);
+        signalWaiters();
+      }
+    } finally {
+      release(current);
     }
-    return Optional.of(message);
+    commitLog();
+    return message.getId();
   }
 
-  public void deleteMessage(String handle) {
-    lockRecords.removeIf((record) -> {
-      if (record.getReceiptHandler().equals(handle)) {
-        hiddenMessages.removeIf((message -> message.getId().equals(record.getMessageId())));
-        return true;
+  /**
+   * Appends the whole batch with a single splice, consumers see either none or all of it. Delayed messages are
+   * scheduled separately.
+   * @return ids of the accepted messages in batch order, for a duplicate the id of the message it duplicates
+   * @throws QueueFullException if the queue is bounded and no room could be made for the whole batch
+   */
+  public List<String> putMessages(Collection<SQSMessage> batch) {
+    long bytes = 0;
+    for (SQSMessage message : batch) {
+      bytes += message.getBodyLength();
+    }
+    Storage current = reserve(batch.size(), bytes);
+    List<String> ids = new ArrayList<>(batch.size());
+    try {
+      List<SQSMessage> immediate = new ArrayList<>(batch.size());
+      MessageLog log = messageLog;
+      long now = clock.currentTimeMillis();
+      boolean duplicates = false;
+      for (SQSMessage message : batch) {
+        String original = duplicateOf(message);
+        if (original != null) {
+          current.leave(message);
+          ids.add(original);
+          duplicates = true;
+          continue;
+        }
+        ids.add(message.getId());
+        message.setSentTimestamp(now);
+        journal(message);
+        long messageDelay = delayOf(message);
+        if (log != null) {
+          log.sent(this, message, message.getSentTimestamp() + messageDelay);
+        }
+        if (messageDelay > 0) {
+          current.delayedCount.increment();
+          getDelayScheduler().schedule(this, current.generation, message, messageDelay);
+        } else {
+          immediate.add(message);
+        }
+      }
+      makeVisible(current, immediate);
+      if (duplicates) {
+        signalCapacityWaiters();
+      }
+    } finally {
+      release(current);
+    }
+    commitLog();
+    return ids;
+  }
+
+  public void recoverMessage(SQSMessage message, long visibleAt) {
+    recoverMessage(message, visibleAt, false);
+  }
+
+  /**
+   * Puts back a message recovered from a log, without logging it again, deduplication or the queue delay
+   * @param visibleAt time the message becomes visible
+   * @param received true if the message was in flight, it then stays in flight with a new receipt handle until
+   * visibleAt, otherwise it's delayed until then
+   */
+  public void recoverMessage(SQSMessage message, long visibleAt, boolean received) {
+    journal(message);
+    long now = clock.currentTimeMillis();
+    long remaining = visibleAt - now;
+    if (remaining <= 0) {
+      putAcceptedMessages(Collections.singletonList(message));
+      return;
+    }
+    Storage current = acquire();
+    try {
+      current.held(1, message.getBodyLength());
+      if (received) {
+        current.visible.addInFlight(message);
+        lockMessage(current, message, now, remaining);
+      } else {
+        current.delayedCount.increment();
+        getDelayScheduler().schedule(this, current.generation, message, remaining);
+      }
+    } finally {
+      release(current);
+    }
+  }
+
+  /**
+   * Enqueues messages as they are, without deduplication or delay: they were already accepted once, e.g. moved from
+   * another queue or promoted after their delay
+   */
+  public void putAcceptedMessages(Collection<SQSMessage> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    long bytes = 0;
+    for (SQSMessage message : batch) {
+      bytes += message.getBodyLength();
+    }
+    Storage current = acquire();
+    try {
+      current.held(batch.size(), bytes);
+      makeVisible(current, batch);
+    } finally {
+      release(current);
+    }
+  }
+
+  /**
+   * Delayed messages which became due, dropped if the queue was purged or closed since they were scheduled
+   * @param generation storage generation the messages were scheduled in
+   */
+  void promoteDelayed(long generation, Collection<SQSMessage> batch) {
+    Storage current = acquire();
+    try {
+      if (closed || current.generation != generation) {
+        batch.forEach(SQSMessage::releaseBody);
+        return;
+      }
+      current.delayedCount.add(-batch.size());
+      makeVisible(current, batch);
+    } finally {
+      release(current);
+    }
+  }
+
+  /**
+   * Drops all messages, visible, received and delayed ones, by swapping in an empty storage segment. Takes the same
+   * time regardless of the queue depth, journaled bodies of the dropped messages are released in the background once
+   * the operations racing with the purge completed against the old segment. Bodies of received messages are kept
+   * until their visibility timeout, their receivers may still be reading them.
+   */
+  public synchronized void purge() {
+    Storage purged = storage;
+    storage = new Storage(purged.generation + 1, newVisibleMessages());
+    release(purged);
+    MessageLog log = messageLog;
+    if (log != null) {
+      log.purged(this);
+      log.commit();
+    }
+    signalCapacityWaiters();
+  }
+
+  /**
+   * Called once the queue is removed from its engine: waiting consumers return and the messages are dropped
+   */
+  public void close() {
+    closed = true;
+    purge();
+    MappedJournal current = journal;
+    if (current != null) {
+      current.close();
+    }
+    signalAllWaiters();
+    signalCapacityWaiters();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Moves up to maxMessages visible messages to the target queue, message bodies are not copied
+   * @return number of moved messages
+   */
+  public int moveMessagesTo(SQSInstance target, int maxMessages) {
+    int moved = 0;
+    List<SQSMessage> chunk = new ArrayList<>(MOVE_CHUNK_SIZE);
+    while (moved < maxMessages) {
+      chunk.clear();
+      Storage current = acquire();
+      try {
+        current.visible.poll(Math.min(MOVE_CHUNK_SIZE, maxMessages - moved), chunk);
+        current.visibleCount.add(-chunk.size());
+        for (SQSMessage message : chunk) {
+          current.visible.released(message);
+          current.leave(message);
+          message.resetReceiveCount();
+        }
+      } finally {
+        release(current);
+      }
+      if (chunk.isEmpty()) {
+        break;
+      }
+      signalCapacityWaiters();
+      MessageLog log = messageLog;
+      if (log != null) {
+        chunk.forEach(message -> log.moved(this, target, message));
+      }
+      target.putAcceptedMessages(chunk);
+      moved += chunk.size();
+    }
+    commitLog();
+    return moved;
+  }
+
+  public Optional<ReceivedMessage> getMessage() {
+    List<ReceivedMessage> result = getMessages(1, 0);
+    return result.isEmpty() ? Optional.empty() : Optional.of(result.get(0));
+  }
+
+  public List<ReceivedMessage> getMessages(int maxMessages, long waitTime) {
+    return getMessages(maxMessages, waitTime, messageLockInterval);
+  }
+
+  /**
+   * Receives up to maxMessages messages, waiting up to waitTime ms for the first one to arrive
+   * @param maxMessages maximum number of messages to return
+   * @param waitTime long polling time in ms, 0 returns immediately
+   * @param lockInterval visibility timeout of received messages in ms
+   * @return received messages, empty if nothing arrived in time
+   */
+  public List<ReceivedMessage> getMessages(int maxMessages, long waitTime, long lockInterval) {
+    List<ReceivedMessage> result = drainMessages(maxMessages, lockInterval);
+    long deadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTime);
+    while (result.isEmpty() && !closed && !Thread.currentThread().isInterrupted()) {
+      long remaining = deadline - clock.nanoTime();
+      if (remaining <= 0) {
+        break;
+      }
+      awaitMessage(remaining);
+      result = drainMessages(maxMessages, lockInterval);
+    }
+    return result;
+  }
+
+  /**
+   * @return false if the handle doesn't belong to a received message
+   */
+  public boolean deleteMessage(String handle) {
+    boolean deleted = delete(handle);
+    commitLog();
+    return deleted;
+  }
+
+  /**
+   * @param handlesById receipt handles by batch entry id
+   */
+  public BatchResult deleteMessages(Map<String, String> handlesById) {
+    BatchResult result = new BatchResult();
+    handlesById.forEach((id, handle) -> {
+      if (delete(handle)) {
+        result.addSuccess(id);
+      } else {
+        result.addFailure(id, RECEIPT_HANDLE_IS_INVALID);
       }
-      return false;
     });
+    commitLog();
+    return result;
+  }
+
+  /**
+   * Restarts the visibility timeout of a received message, zero interval makes it visible right away
+   * @return false if the handle doesn't belong to a received message
+   */
+  public boolean changeMessageVisibility(String handle, long lockInterval) {
+    boolean changed = changeVisibility(handle, lockInterval);
+    commitLog();
+    return changed;
+  }
+
+  public BatchResult changeMessagesVisibility(Collection<VisibilityChange> changes) {
+    BatchResult result = new BatchResult();
+    for (VisibilityChange change : changes) {
+      if (changeVisibility(change.getReceiptHandle(), change.getLockInterval())) {
+        result.addSuccess(change.getId());
+      } else {
+        result.addFailure(change.getId(), RECEIPT_HANDLE_IS_INVALID);
+      }
+    }
+    commitLog();
+    return result;
   }
 
   public String getEndpointURL() {
     return endpointURL;
   }
 
-  private void unhideMessages() {
-    lockRecords.removeIf(lock -> {
-      if (lock.getStartedAt() + lock.getLength() < System.currentTimeMillis()) {
-        unhideMessage(lock.getMessageId());
-        return true;
-      }
+  public boolean isFifo() {
+    return false;
+  }
+
+  public long getApproximateNumberOfMessages() {
+    return storage.visibleCount.sum();
+  }
+
+  public long getApproximateNumberOfMessagesNotVisible() {
+    return storage.inFlightCount.sum();
+  }
+
+  public long getApproximateNumberOfMessagesDelayed() {
+    return storage.delayedCount.sum();
+  }
+
+  /**
+   * Reads queue attributes, the message counts come from counters and don't depend on the queue depth
+   * @param names requested attribute names, "All" for all of them
+   */
+  public Map<String, String> getAttributes(Collection<String> names) {
+    Map<String, String> attributes = new LinkedHashMap<>();
+    if (names == null || names.isEmpty()) {
+      return attributes;
+    }
+    putAttributes(attributes);
+    if (!names.contains(ALL)) {
+      attributes.keySet().retainAll(names);
+    }
+    return attributes;
+  }
+
+  /**
+   * Puts all attributes of the queue, subclasses add their own
+   */
+  protected void putAttributes(Map<String, String> attributes) {
+    attributes.put(QueueAttributeName.QueueArn.toString(), getArn());
+    attributes.put(QueueAttributeName.ApproximateNumberOfMessages.toString(), Long.toString(getApproximateNumberOfMessages()));
+    attributes.put(QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString(),
+        Long.toString(getApproximateNumberOfMessagesNotVisible()));
+    attributes.put(QueueAttributeName.ApproximateNumberOfMessagesDelayed.toString(),
+        Long.toString(getApproximateNumberOfMessagesDelayed()));
+    attributes.put(QueueAttributeName.VisibilityTimeout.toString(),
+        Long.toString(TimeUnit.MILLISECONDS.toSeconds(messageLockInterval)));
+    attributes.put(QueueAttributeName.DelaySeconds.toString(), Long.toString(TimeUnit.MILLISECONDS.toSeconds(delay)));
+    RedrivePolicy policy = redrivePolicy;
+    if (policy != null) {
+      attributes.put(QueueAttributeName.RedrivePolicy.toString(), policy.toJson());
+    }
+    if (maxMessages > 0 || maxBytes > 0) {
+      attributes.put(MAX_MESSAGES, Long.toString(maxMessages));
+      attributes.put(MAX_BYTES, Long.toString(maxBytes));
+      attributes.put(OVERFLOW_POLICY, overflowPolicy.name());
+      attributes.put(QUEUE_FULL_COUNT, Long.toString(getQueueFullCount()));
+    }
+  }
+
+  /**
+   * Called once room was taken for a sent message, before it's logged or enqueued, so a message rejected for lack of
+   * room is never recorded as sent. A duplicate gives its room back and is accepted without being enqueued.
+   * @return id of the message this one duplicates, null if it must be enqueued
+   */
+  protected String duplicateOf(SQSMessage message) {
+    return null;
+  }
+
+  /**
+   * Called for every storage generation, subclasses keep their visible messages in their own structure
+   */
+  protected VisibleMessages newVisibleMessages() {
+    return new DequeMessages();
+  }
+
+  private boolean delete(String handle) {
+    Storage current = acquire();
+    try {
+      return delete(current, handle);
+    } finally {
+      release(current);
+    }
+  }
+
+  private boolean delete(Storage current, String handle) {
+    if (generationOf(handle) != current.generation) {
       return false;
-    });
+    }
+    MessageLock lock = current.locksByHandle.remove(handle);
+    if (lock == null) {
+      return false;
+    }
+    current.locksByExpiry.remove(lock);
+    current.inFlightCount.decrement();
+    current.visible.released(lock.getMessage());
+    current.leave(lock.getMessage());
+    signalCapacityWaiters();
+    MessageLog log = messageLog;
+    if (log != null) {
+      log.deleted(this, lock.getMessage());
+    }
+    lock.getMessage().releaseBody();
+    return true;
+  }
+
+  private boolean changeVisibility(String handle, long lockInterval) {
+    Storage current = acquire();
+    try {
+      return changeVisibility(current, handle, lockInterval);
+    } finally {
+      release(current);
+    }
   }
 
-  private void unhideMessage(String id) {
-    hiddenMessages.removeIf(hiddenMessage -> {
-      if (hiddenMessage.getId().equals(id)) {
-        messages.add(hiddenMessage);
-        hiddenMessage.setReceiptHandle(null);
+  private boolean changeVisibility(Storage current, String handle, long lockInterval) {
+    if (generationOf(handle) != current.generation) {
+      return false;
+    }
+    MessageLock lock;
+    while ((lock = current.locksByHandle.get(handle)) != null) {
+      long now = clock.currentTimeMillis();
+      boolean changed;
+      if (lockInterval == 0) {
+        changed = current.locksByHandle.remove(handle, lock);
+        if (changed) {
+          current.locksByExpiry.remove(lock);
+          unhideMessage(current, lock.getMessage());
+        }
+      } else {
+        MessageLock extended = lock.extend(now, lockInterval);
+        changed = current.locksByHandle.replace(handle, lock, extended);
+        if (changed) {
+          // equal locks collide in the expiry set when the deadline doesn't move, so the old one goes first
+          current.locksByExpiry.remove(lock);
+          current.locksByExpiry.add(extended);
+        }
+      }
+      if (changed) {
+        MessageLog log = messageLog;
+        if (log != null) {
+          log.hidden(this, lock.getMessage(), now + lockInterval);
+        }
         return true;
       }
-      return false;
-    });
+    }
+    return false;
   }
 
-  private void hideMessage(String id) {
-    messages.removeIf(message -> {
-      if (message.getId().equals(id)) {
-        hiddenMessages.add(message);
-        MessageLock lock = new MessageLock(message.getId(), System.currentTimeMillis(), messageLockInterval);
-        message.setReceiptHandle(lock.getReceiptHandler());
-        lockRecords.add(lock);
-        return true;
+  private void makeVisible(Storage current, Collection<SQSMessage> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    current.visibleCount.add(batch.size());
+    current.visible.addAll(batch);
+    signalAllWaiters();
+  }
+
+  /**
+   * Takes room for messages entering the queue. Unbounded queues only count them, bounded ones serialize senders on
+   * the capacity lock, so room is checked and taken atomically while deletes free it concurrently.
+   * @return storage the room was taken in
+   */
+  private Storage reserve(int count, long bytes) {
+    if (maxMessages <= 0 && maxBytes <= 0) {
+      Storage current = acquire();
+      current.held(count, bytes);
+      return current;
+    }
+    if (!fits(0, 0, count, bytes)) {
+      queueFullCount.increment();
+      throw new QueueFullException("Messages exceed the capacity of queue " + name);
+    }
+    capacityLock.lock();
+    try {
+      Storage current = acquire();
+      if (!fits(current, count, bytes)) {
+        queueFullCount.increment();
+        switch (overflowPolicy) {
+          case BLOCK:
+            release(current);
+            current = awaitCapacity(count, bytes);
+            break;
+          case DROP_OLDEST:
+            try {
+              dropOldest(current, count, bytes);
+            } catch (RuntimeException e) {
+              release(current);
+              throw e;
+            }
+            break;
+          default:
+            release(current);
+            throw new QueueFullException("Queue is full : " + name);
+        }
       }
-      return false;
-    });
+      current.held(count, bytes);
+      return current;
+    } finally {
+      capacityLock.unlock();
+    }
+  }
+
+  private boolean fits(Storage current, int count, long bytes) {
+    return fits(current.heldMessages.sum(), current.heldBytes.sum(), count, bytes);
+  }
+
+  private boolean fits(long heldMessages, long heldBytes, int count, long bytes) {
+    long messageLimit = maxMessages;
+    long byteLimit = maxBytes;
+    return (messageLimit <= 0 || heldMessages + count <= messageLimit)
+        && (byteLimit <= 0 || heldBytes + bytes <= byteLimit);
+  }
+
+  /**
+   * Waits on the capacity lock, which the caller holds, until the messages fit or the overflow timeout passed
+   * @return storage the messages fit in, referenced
+   */
+  private Storage awaitCapacity(int count, long bytes) {
+    long deadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(overflowTimeout);
+    capacityWaiters.incrementAndGet();
+    try {
+      while (true) {
+        Storage current = acquire();
+        if (fits(current, count, bytes)) {
+          return current;
+        }
+        release(current);
+        long remaining = deadline - clock.nanoTime();
+        if (remaining <= 0 || closed) {
+          throw new QueueFullException("Queue is full : " + name);
+        }
+        clock.awaitNanos(capacityAvailable, remaining);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new QueueFullException("Interrupted while waiting for room in queue " + name);
+    } finally {
+      capacityWaiters.decrementAndGet();
+    }
+  }
+
+  /**
+   * Deletes visible messages from the head of the queue until the messages fit
+   */
+  private void dropOldest(Storage current, int count, long bytes) {
+    List<SQSMessage> dropped = new ArrayList<>(1);
+    MessageLog log = messageLog;
+    while (!fits(current, count, bytes)) {
+      dropped.clear();
+      current.visible.poll(1, dropped);
+      if (dropped.isEmpty()) {
+        throw new QueueFullException("Queue is full of messages in flight or delayed : " + name);
+      }
+      SQSMessage message = dropped.get(0);
+      current.visibleCount.decrement();
+      current.visible.released(message);
+      current.leave(message);
+      if (log != null) {
+        log.deleted(this, message);
+      }
+      message.releaseBody();
+    }
+  }
+
+  private void signalCapacityWaiters() {
+    if (capacityWaiters.get() > 0) {
+      capacityLock.lock();
+      try {
+        capacityAvailable.signalAll();
+      } finally {
+        capacityLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * @return current storage, referenced until {@link #release(Storage)}
+   */
+  private Storage acquire() {
+    while (true) {
+      Storage current = storage;
+      if (current.reference()) {
+        return current;
+      }
+    }
+  }
+
+  /**
+   * Drops a reference to the storage, the last one of a purged storage hands its messages to the releaser
+   */
+  private void release(Storage current) {
+    if (current.references.decrementAndGet() == 0) {
+      RELEASER.execute(() -> releasePurged(current));
+    }
+  }
+
+  /**
+   * Releases bodies of the visible messages of a purged storage now and of the received ones once the last of their
+   * visibility timeouts expired. Delayed ones are released when they come due.
+   */
+  private void releasePurged(Storage purged) {
+    purged.visible.remaining().forEach(SQSMessage::releaseBody);
+    if (!purged.locksByExpiry.isEmpty()) {
+      clock.schedule(purged.locksByExpiry.last().getExpiresAt(), () -> RELEASER.execute(() ->
+          purged.locksByHandle.values().forEach(lock -> lock.getMessage().releaseBody())));
+    }
+  }
+
+  private void commitLog() {
+    MessageLog log = messageLog;
+    if (log != null) {
+      log.commit();
+    }
+  }
+
+  private void journal(SQSMessage message) {
+    MappedJournal current = journal;
+    if (current != null) {
+      message.moveBodyTo(current);
+    }
+  }
+
+  private long delayOf(SQSMessage message) {
+    return message.getDelay() != null ? message.getDelay() : delay;
+  }
+
+  private DelayScheduler getDelayScheduler() {
+    DelayScheduler scheduler = delayScheduler;
+    if (scheduler == null) {
+      synchronized (this) {
+        if (delayScheduler == null) {
+          delayScheduler = new DelayScheduler(clock);
+        }
+        scheduler = delayScheduler;
+      }
+    }
+    return scheduler;
+  }
+
+  private List<ReceivedMessage> drainMessages(int maxMessages, long lockInterval) {
+    DelayScheduler scheduler = delayScheduler;
+    if (scheduler != null) {
+      scheduler.promoteDue();
+    }
+    List<SQSMessage> messages = new ArrayList<>(maxMessages);
+    List<ReceivedMessage> result = new ArrayList<>(maxMessages);
+    Storage current = acquire();
+    try {
+      unhideMessages(current);
+      current.visible.poll(maxMessages, messages);
+      current.visibleCount.add(-messages.size());
+      for (SQSMessage message : messages) {
+        result.add(hideMessage(current, message, lockInterval));
+      }
+    } finally {
+      release(current);
+    }
+    MessageLog log = messageLog;
+    if (log != null && !messages.isEmpty()) {
+      long visibleAt = clock.currentTimeMillis() + lockInterval;
+      messages.forEach(message -> log.hidden(this, message, visibleAt));
+      log.commit();
+    }
+    return result;
+  }
+
+  private void awaitMessage(long nanos) {
+    long timeout = Math.min(nanos, nanosUntilNextRestore());
+    waitLock.lock();
+    waiters.incrementAndGet();
+    try {
+      if (storage.visible.isEmpty() && !closed) {
+        clock.awaitNanos(messageAvailable, timeout);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      waiters.decrementAndGet();
+      waitLock.unlock();
+    }
+  }
+
+  private void signalWaiters() {
+    if (waiters.get() > 0) {
+      waitLock.lock();
+      try {
+        messageAvailable.signal();
+      } finally {
+        waitLock.unlock();
+      }
+    }
+  }
+
+  private void signalAllWaiters() {
+    if (waiters.get() > 0) {
+      waitLock.lock();
+      try {
+        messageAvailable.signalAll();
+      } finally {
+        waitLock.unlock();
+      }
+    }
+  }
+
+  private long nanosUntilNextRestore() {
+    Iterator<MessageLock> expiryIterator = storage.locksByExpiry.iterator();
+    if (!expiryIterator.hasNext()) {
+      return Long.MAX_VALUE;
+    }
+    long millis = expiryIterator.next().getExpiresAt() - clock.currentTimeMillis() + 1;
+    return TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 1));
+  }
+
+  private void unhideMessages(Storage current) {
+    long now = clock.currentTimeMillis();
+    Iterator<MessageLock> expiryIterator = current.locksByExpiry.iterator();
+    while (expiryIterator.hasNext()) {
+      MessageLock lock = expiryIterator.next();
+      if (!lock.isExpired(now)) {
+        break;
+      }
+      if (current.locksByExpiry.remove(lock) && current.locksByHandle.remove(lock.getReceiptHandler(), lock)) {
+        unhideMessage(current, lock.getMessage());
+      }
+    }
+  }
+
+  private void unhideMessage(Storage current, SQSMessage message) {
+    current.inFlightCount.decrement();
+    RedrivePolicy policy = redrivePolicy;
+    if (policy != null && message.getReceiveCount() >= policy.getMaxReceiveCount()) {
+      current.visible.released(message);
+      current.leave(message);
+      signalCapacityWaiters();
+      MessageLog log = messageLog;
+      if (log != null) {
+        log.moved(this, policy.getDeadLetterQueue(), message);
+      }
+      policy.getDeadLetterQueue().putAcceptedMessages(Collections.singletonList(message));
+      return;
+    }
+    current.visibleCount.increment();
+    current.visible.restore(message);
+    signalWaiters();
+  }
+
+  /**
+   * The receiver owns the message until the lock is released, the receive count it sees can't change meanwhile
+   */
+  private ReceivedMessage hideMessage(Storage current, SQSMessage message, long lockInterval) {
+    long now = clock.currentTimeMillis();
+    message.incrementReceiveCount(now);
+    return new ReceivedMessage(message, lockMessage(current, message, now, lockInterval).getReceiptHandler());
+  }
+
+  private MessageLock lockMessage(Storage current, SQSMessage message, long now, long lockInterval) {
+    current.inFlightCount.increment();
+    MessageLock lock = new MessageLock(message, receiptHandle(current.generation), now, lockInterval);
+    current.locksByHandle.put(lock.getReceiptHandler(), lock);
+    current.locksByExpiry.add(lock);
+    return lock;
+  }
+
+  /**
+   * @return a unique id followed by the storage generation in hex
+   */
+  private static String receiptHandle(long generation) {
+    return Ids.next() + HANDLE_SEPARATOR + Long.toHexString(generation);
+  }
+
+  /**
+   * @return generation a handle was issued in, -1 for a malformed handle
+   */
+  private static long generationOf(String handle) {
+    int separator = handle == null ? -1 : handle.lastIndexOf(HANDLE_SEPARATOR);
+    if (separator < 0 || separator == handle.length() - 1 || handle.length() - separator > 17) {
+      return -1;
+    }
+    long generation = 0;
+    for (int i = separator + 1; i < handle.length(); i++) {
+      int digit = Character.digit(handle.charAt(i), 16);
+      if (digit < 0) {
+        return -1;
+      }
+      generation = generation << 4 | digit;
+    }
+    return generation;
+  }
+
+  /**
+   * Messages, locks and counters of one queue generation
+   */
+  private static class Storage {
+    private final long generation;
+    private final VisibleMessages visible;
+    private final Map<String, MessageLock> locksByHandle = new ConcurrentHashMap<>();
+    private final NavigableSet<MessageLock> locksByExpiry = new ConcurrentSkipListSet<>(MessageLock.EXPIRY_ORDER);
+    private final LongAdder visibleCount = new LongAdder();
+    private final LongAdder inFlightCount = new LongAdder();
+    private final LongAdder delayedCount = new LongAdder();
+    private final LongAdder heldMessages = new LongAdder();
+    private final LongAdder heldBytes = new LongAdder();
+    /**
+     * Operations in progress plus one while the storage is current, 0 once purged and released for good
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private Storage(long generation, VisibleMessages visible) {
+      this.generation = generation;
+      this.visible = visible;
+    }
+
+    private boolean reference() {
+      int count;
+      do {
+        count = references.get();
+        if (count == 0) {
+          return false;
+        }
+      } while (!references.compareAndSet(count, count + 1));
+      return true;
+    }
+
+    private void held(int count, long bytes) {
+      heldMessages.add(count);
+      heldBytes.add(bytes);
+    }
+
+    private void leave(SQSMessage message) {
+      heldMessages.decrement();
+      heldBytes.add(-message.getBodyLength());
+    }
+  }
+
+  /**
+   * Visible messages of one storage generation, replaced on purge together with the locks and counters
+   */
+  protected interface VisibleMessages {
+    /**
+     * Makes a new message visible
+     */
+    void add(SQSMessage message);
+
+    void addAll(Collection<SQSMessage> batch);
+
+    /**
+     * Adds a message which is in flight already, e.g. recovered after a restart, it comes back through restore or
+     * released like a polled one
+     */
+    void addInFlight(SQSMessage message);
+
+    /**
+     * Takes up to maxMessages visible messages into result
+     */
+    void poll(int maxMessages, List<SQSMessage> result);
+
+    boolean isEmpty();
+
+    /**
+     * Makes a received message visible again after its lock expired or was dropped
+     */
+    void restore(SQSMessage message);
+
+    /**
+     * Called once a polled message left the queue: deleted, moved, dropped or dead lettered
+     */
+    void released(SQSMessage message);
+
+    /**
+     * @return messages still visible, read once the generation was purged
+     */
+    Iterable<SQSMessage> remaining();
+  }
+
+  private static class DequeMessages implements VisibleMessages {
+    private final Deque<SQSMessage> messages = new ConcurrentLinkedDeque<>();
+
+    @Override
+    public void add(SQSMessage message) {
+      messages.addLast(message);
+    }
+
+    @Override
+    public void addAll(Collection<SQSMessage> batch) {
+      messages.addAll(batch);
+    }
+
+    @Override
+    public void addInFlight(SQSMessage message) {
+    }
+
+    @Override
+    public void poll(int maxMessages, List<SQSMessage> result) {
+      SQSMessage message;
+      while (result.size() < maxMessages && (message = messages.pollFirst()) != null) {
+        result.add(message);
+      }
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return messages.isEmpty();
+    }
+
+    @Override
+    public void restore(SQSMessage message) {
+      messages.addLast(message);
+    }
+
+    @Override
+    public void released(SQSMessage message) {
+    }
+
+    @Override
+    public Iterable<SQSMessage> remaining() {
+      return messages;
+    }
   }
 }
@@ -0,0 +1,33 @@
+package com.nkttk.core.components.sqs.entities;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-entry outcome of a batch operation, entries are identified by the caller supplied batch entry id
+ */
+public class BatchResult {
+  private final List<String> successful = new ArrayList<>();
+  private final Map<String, String> failed = new LinkedHashMap<>();
+
+  public void addSuccess(String id) {
+    successful.add(id);
+  }
+
+  public void addFailure(String id, String code) {
+    failed.put(id, code);
+  }
+
+  public List<String> getSuccessful() {
+    return successful;
+  }
+
+  /**
+   * @return error codes by batch entry id
+   */
+  public Map<String, String> getFailed() {
+    return failed;
+  }
+}
@@ -1,20 +1,39 @@
 package com.nkttk.core.components.sqs.entities;
 
-import java.util.UUID;
+import com.nkttk.core.components.Ids;
+
+import java.util.Comparator;
 
 /**
  */
 public class MessageLock {
-  private String messageId;
+  /**
+   * Orders locks by expiration time, receipt handle breaks ties so that distinct locks never collide in sorted sets
+   */
+  public static final Comparator<MessageLock> EXPIRY_ORDER = Comparator.comparingLong(MessageLock::getExpiresAt)
+      .thenComparing(MessageLock::getReceiptHandler);
+
+  private SQSMessage message;
   private String receiptHandler;
   private long startedAt;
   private long length;
 
-  public MessageLock(String messageId, long startedAt, long length) {
-    this.messageId = messageId;
+  public MessageLock(SQSMessage message, long startedAt, long length) {
+    this(message, Ids.next(), startedAt, length);
+  }
+
+  public MessageLock(SQSMessage message, String receiptHandler, long startedAt, long length) {
+    this.message = message;
+    this.receiptHandler = receiptHandler;
     this.startedAt = startedAt;
     this.length = length;
-    this.receiptHandler = UUID.randomUUID().toString();
+  }
+
+  /**
+   * @return lock with the same receipt handle which starts at the given time
+   */
+  public MessageLock extend(long startedAt, long length) {
+    return new MessageLock(message, receiptHandler, startedAt, length);
   }
 
   public String getReceiptHandler() {
@@ -25,29 +44,29 @@ public class MessageLock {
     return startedAt;
   }
 
-  public void setStartedAt(long startedAt) {
-    this.startedAt = startedAt;
-  }
-
   public long getLength() {
     return length;
   }
 
-  public void setLength(long length) {
-    this.length = length;
+  public long getExpiresAt() {
+    return startedAt + length;
   }
 
-  public String getMessageId() {
-    return messageId;
+  public boolean isExpired(long now) {
+    return getExpiresAt() < now;
   }
 
-  public void setMessageId(String messageId) {
-    this.messageId = messageId;
+  public SQSMessage getMessage() {
+    return message;
+  }
+
+  public String getMessageId() {
+    return message.getId();
   }
 
   @Override
   public int hashCode() {
-    return messageId.hashCode();
+    return receiptHandler.hashCode();
   }
 
   @Override
@@ -61,7 +80,7 @@ public class MessageLock {
 
     MessageLock that = (MessageLock) o;
 
-    return messageId.equals(that.messageId);
+    return receiptHandler.equals(that.receiptHandler);
 
   }
 }
@@ -0,0 +1,88 @@
+package com.nkttk.core.components.sqs.entities;
+
+import com.nkttk.core.components.MessageAttribute;
+
+import java.util.Map;
+
+/**
+ * A message as returned by one receive, with the receipt handle and receive count of that receive. The queue's message
+ * is shared by all its receives, a later receive after the lock expired gets its own view and leaves this one intact.
+ */
+public class ReceivedMessage {
+  private final SQSMessage message;
+  private final String receiptHandle;
+  private final int receiveCount;
+  private final long firstReceiveTimestamp;
+
+  public ReceivedMessage(SQSMessage message, String receiptHandle) {
+    this.message = message;
+    this.receiptHandle = receiptHandle;
+    this.receiveCount = message.getReceiveCount();
+    this.firstReceiveTimestamp = message.getFirstReceiveTimestamp();
+  }
+
+  /**
+   * @return the queue's message, shared by all its receives
+   */
+  public SQSMessage getMessage() {
+    return message;
+  }
+
+  public String getReceiptHandle() {
+    return receiptHandle;
+  }
+
+  /**
+   * @return receive count including this receive
+   */
+  public int getReceiveCount() {
+    return receiveCount;
+  }
+
+  public long getFirstReceiveTimestamp() {
+    return firstReceiveTimestamp;
+  }
+
+  public String getId() {
+    return message.getId();
+  }
+
+  public String getBody() {
+    return message.getBody();
+  }
+
+  public byte[] getBodyBytes() {
+    return message.getBodyBytes();
+  }
+
+  public String getMd5OfBody() {
+    return message.getMd5OfBody();
+  }
+
+  public Map<String, MessageAttribute> getAttributes() {
+    return message.getAttributes();
+  }
+
+  /**
+   * @return null if the message has no attributes
+   */
+  public String getMd5OfAttributes() {
+    return message.getMd5OfAttributes();
+  }
+
+  public long getSentTimestamp() {
+    return message.getSentTimestamp();
+  }
+
+  public String getGroupId() {
+    return message.getGroupId();
+  }
+
+  public String getDeduplicationId() {
+    return message.getDeduplicationId();
+  }
+
+  public long getSequenceNumber() {
+    return message.getSequenceNumber();
+  }
+}
@@ -1,32 +1,207 @@
 package com.nkttk.core.components.sqs.entities;
 
-import java.util.UUID;
+import com.nkttk.core.components.Ids;
+import com.nkttk.core.components.MessageAttribute;
+import com.nkttk.core.components.Payload;
+import com.nkttk.io.Digests;
+import com.nkttk.io.MappedJournal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
+ * Queued message, keeps the body as UTF-8 bytes next to its attributes and system attributes. MD5 digests are
+ * computed on first use. The body may be moved into a journal, the message then keeps only the journal entry.
  */
 public class SQSMessage {
-  private String id;
-  private String body;
-  private String receiptHandle;
+  private static final AtomicIntegerFieldUpdater<SQSMessage> BODY_RELEASED =
+      AtomicIntegerFieldUpdater.newUpdater(SQSMessage.class, "bodyReleased");
+
+  private final String id;
+  private volatile byte[] body;
+  private volatile MappedJournal.Entry journalEntry;
+  private volatile int bodyReleased;
+  private final Map<String, MessageAttribute> attributes;
+  private volatile long sentTimestamp;
+  private volatile String md5OfBody;
+  private volatile String md5OfAttributes;
+  private String groupId;
+  private String deduplicationId;
+  private long sequenceNumber;
+  private volatile int receiveCount;
+  private volatile long firstReceiveTimestamp;
+  private Long delay;
 
   public SQSMessage(String body) {
-    this.id = UUID.randomUUID().toString();
-    this.body = body;
+    this(body, null, null);
+  }
+
+  /**
+   * Message for FIFO queues
+   */
+  public SQSMessage(String body, String groupId, String deduplicationId) {
+    this(body.getBytes(StandardCharsets.UTF_8), null, groupId, deduplicationId);
+  }
+
+  /**
+   * The sent timestamp is 0 until the message is sent to a queue
+   * @param attributes message attributes, may be null
+   */
+  public SQSMessage(byte[] body, Map<String, MessageAttribute> attributes, String groupId, String deduplicationId) {
+    this(Ids.next(), 0, body, attributes, groupId, deduplicationId);
   }
 
-  public String getReceiptHandle() {
-    return receiptHandle;
+  /**
+   * Message sharing its body with the other deliveries of the payload, neither the body nor its digest are recomputed
+   * @param attributes message attributes, may be null
+   */
+  public SQSMessage(Payload payload, Map<String, MessageAttribute> attributes) {
+    this(payload.getBytes(), attributes, null, null);
+    this.md5OfBody = payload.getMd5();
   }
 
-  public void setReceiptHandle(String receiptHandle) {
-    this.receiptHandle = receiptHandle;
+  /**
+   * Message restored with its original identity, e.g. recovered from a log
+   */
+  public SQSMessage(String id, long sentTimestamp, byte[] body, Map<String, MessageAttribute> attributes, String groupId,
+                    String deduplicationId) {
+    this.id = id;
+    this.body = body;
+    this.attributes = attributes == null ? Collections.emptyMap() : attributes;
+    this.groupId = groupId;
+    this.deduplicationId = deduplicationId;
+    this.sentTimestamp = sentTimestamp;
   }
 
   public String getBody() {
-    return body;
+    return new String(getBodyBytes(), StandardCharsets.UTF_8);
+  }
+
+  public byte[] getBodyBytes() {
+    MappedJournal.Entry entry = journalEntry;
+    return entry != null ? entry.read() : body;
+  }
+
+  public int getBodyLength() {
+    MappedJournal.Entry entry = journalEntry;
+    return entry != null ? entry.getLength() : body.length;
+  }
+
+  /**
+   * Moves the body off the heap, must be called before the message is published to consumers
+   */
+  public void moveBodyTo(MappedJournal journal) {
+    if (journalEntry == null) {
+      journalEntry = journal.append(body);
+      body = null;
+    }
+  }
+
+  /**
+   * Frees the journaled body of a message which is gone for good, repeated calls have no effect
+   */
+  public void releaseBody() {
+    MappedJournal.Entry entry = journalEntry;
+    if (entry != null && BODY_RELEASED.compareAndSet(this, 0, 1)) {
+      entry.release();
+    }
+  }
+
+  public String getMd5OfBody() {
+    String result = md5OfBody;
+    if (result == null) {
+      result = Digests.md5Hex(getBodyBytes());
+      md5OfBody = result;
+    }
+    return result;
+  }
+
+  public Map<String, MessageAttribute> getAttributes() {
+    return attributes;
+  }
+
+  /**
+   * @return null if the message has no attributes
+   */
+  public String getMd5OfAttributes() {
+    String result = md5OfAttributes;
+    if (result == null && !attributes.isEmpty()) {
+      result = MessageAttribute.md5Of(attributes);
+      md5OfAttributes = result;
+    }
+    return result;
   }
 
   public String getId() {
     return id;
   }
+
+  public long getSentTimestamp() {
+    return sentTimestamp;
+  }
+
+  /**
+   * @param sentTimestamp time the queue accepted the message, by the queue's clock
+   */
+  public void setSentTimestamp(long sentTimestamp) {
+    this.sentTimestamp = sentTimestamp;
+  }
+
+  public String getGroupId() {
+    return groupId;
+  }
+
+  public String getDeduplicationId() {
+    return deduplicationId;
+  }
+
+  public void setDeduplicationId(String deduplicationId) {
+    this.deduplicationId = deduplicationId;
+  }
+
+  public long getSequenceNumber() {
+    return sequenceNumber;
+  }
+
+  public void setSequenceNumber(long sequenceNumber) {
+    this.sequenceNumber = sequenceNumber;
+  }
+
+  public int getReceiveCount() {
+    return receiveCount;
+  }
+
+  /**
+   * @return 0 if never received
+   */
+  public long getFirstReceiveTimestamp() {
+    return firstReceiveTimestamp;
+  }
+
+  /**
+   * Called by the receiving consumer, which owns the message until its lock is released
+   */
+  public void incrementReceiveCount(long now) {
+    if (receiveCount == 0) {
+      firstReceiveTimestamp = now;
+    }
+    receiveCount++;
+  }
+
+  public void resetReceiveCount() {
+    receiveCount = 0;
+  }
+
+  public Long getDelay() {
+    return delay;
+  }
+
+  /**
+   * @param delay delivery delay in ms requested by the sender, null for the queue default
+   */
+  public void setDelay(Long delay) {
+    this.delay = delay;
+  }
 }
@@ -0,0 +1,28 @@
+package com.nkttk.core.components.sqs.entities;
+
+/**
+ * Single entry of a visibility change batch
+ */
+public class VisibilityChange {
+  private final String id;
+  private final String receiptHandle;
+  private final long lockInterval;
+
+  public VisibilityChange(String id, String receiptHandle, long lockInterval) {
+    this.id = id;
+    this.receiptHandle = receiptHandle;
+    this.lockInterval = lockInterval;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getReceiptHandle() {
+    return receiptHandle;
+  }
+
+  public long getLockInterval() {
+    return lockInterval;
+  }
+}
@@ -0,0 +1,19 @@
+package com.nkttk.core.components.sqs.persistence;
+
+/**
+ * When the write-ahead log forces its writes to disk
+ */
+public enum FsyncPolicy {
+  /**
+   * Every operation returns only once its records are on disk, concurrent operations share one fsync
+   */
+  PER_OP,
+  /**
+   * Records are forced to disk at a fixed interval, operations don't wait for it
+   */
+  BATCHED,
+  /**
+   * Records are only handed over to the operating system, they survive a process crash but not a system crash
+   */
+  NONE
+}
@@ -0,0 +1,192 @@
+package com.nkttk.core.components.sqs.persistence;
+
+import com.nkttk.core.components.MessageAttribute;
+import com.nkttk.core.components.sqs.entities.SQSMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A message transition as stored in the log. Records are framed by their length and CRC32, a torn or corrupted
+ * record ends the log.
+ */
+class LogRecord {
+  static final byte SEND = 1;
+  static final byte DELETE = 2;
+  static final byte HIDE = 3;
+  static final byte PURGE = 4;
+  static final int FRAME_HEADER_LENGTH = 8;
+  private static final byte STRING_VALUE = 1;
+  private static final byte BINARY_VALUE = 2;
+
+  final byte type;
+  final String queue;
+  final String messageId;
+  final long visibleAt;
+  final SQSMessage message;
+  /**
+   * Bytes the record took in the log, header included
+   */
+  final int frameLength;
+
+  private LogRecord(byte type, String queue, String messageId, long visibleAt, SQSMessage message, int frameLength) {
+    this.type = type;
+    this.queue = queue;
+    this.messageId = messageId;
+    this.visibleAt = visibleAt;
+    this.message = message;
+    this.frameLength = frameLength;
+  }
+
+  static byte[] send(String queue, SQSMessage message, long visibleAt) {
+    return encode(SEND, queue, message.getId(), visibleAt, message);
+  }
+
+  static byte[] delete(String queue, String messageId) {
+    return encode(DELETE, queue, messageId, 0, null);
+  }
+
+  static byte[] hide(String queue, String messageId, long visibleAt) {
+    return encode(HIDE, queue, messageId, visibleAt, null);
+  }
+
+  static byte[] purge(String queue) {
+    return encode(PURGE, queue, "", 0, null);
+  }
+
+  /**
+   * Writes the record with its length and checksum
+   */
+  static void writeFrame(OutputStream out, byte[] record) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(record.length);
+    data.writeInt((int) crc.getValue());
+    data.write(record);
+    data.flush();
+  }
+
+  /**
+   * A length beyond the remaining bytes can only come from a torn or corrupted header, it ends the log before anything
+   * is allocated for it
+   * @param remaining bytes left in the file from the frame on
+   * @param withMessage false skips decoding the message of send records, which then have none
+   * @return null at the end of the log, including a torn or corrupted last record
+   */
+  static LogRecord readFrame(DataInputStream in, long remaining, boolean withMessage) throws IOException {
+    byte[] record;
+    int checksum;
+    try {
+      int length = in.readInt();
+      checksum = in.readInt();
+      if (length < 0 || length > remaining - FRAME_HEADER_LENGTH) {
+        return null;
+      }
+      record = new byte[length];
+      in.readFully(record);
+    } catch (EOFException e) {
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    if ((int) crc.getValue() != checksum) {
+      return null;
+    }
+    return decode(new DataInputStream(new ByteArrayInputStream(record)), withMessage, FRAME_HEADER_LENGTH + record.length);
+  }
+
+  private static byte[] encode(byte type, String queue, String messageId, long visibleAt, SQSMessage message) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(message == null ? 64 : 128 + message.getBodyLength());
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(type);
+      out.writeUTF(queue);
+      out.writeUTF(messageId);
+      out.writeLong(visibleAt);
+      if (message != null) {
+        out.writeLong(message.getSentTimestamp());
+        writeNullable(out, message.getGroupId());
+        writeNullable(out, message.getDeduplicationId());
+        writeBytes(out, message.getBodyBytes());
+        out.writeInt(message.getAttributes().size());
+        for (Map.Entry<String, MessageAttribute> entry : message.getAttributes().entrySet()) {
+          MessageAttribute attribute = entry.getValue();
+          out.writeUTF(entry.getKey());
+          out.writeUTF(attribute.getDataType());
+          if (attribute.getStringValue() != null) {
+            out.writeByte(STRING_VALUE);
+            writeBytes(out, attribute.getStringValue().getBytes(StandardCharsets.UTF_8));
+          } else {
+            out.writeByte(BINARY_VALUE);
+            writeBytes(out, attribute.getBinaryValue());
+          }
+        }
+      }
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException("Log record encoding failed", e);
+    }
+  }
+
+  private static LogRecord decode(DataInput in, boolean withMessage, int frameLength) throws IOException {
+    byte type = in.readByte();
+    String queue = in.readUTF();
+    String messageId = in.readUTF();
+    long visibleAt = in.readLong();
+    SQSMessage message = null;
+    if (type == SEND && withMessage) {
+      long sentTimestamp = in.readLong();
+      String groupId = readNullable(in);
+      String deduplicationId = readNullable(in);
+      byte[] body = readBytes(in);
+      int attributeCount = in.readInt();
+      Map<String, MessageAttribute> attributes = attributeCount == 0 ? null : new HashMap<>(attributeCount * 2);
+      for (int i = 0; i < attributeCount; i++) {
+        String name = in.readUTF();
+        String dataType = in.readUTF();
+        byte valueType = in.readByte();
+        byte[] value = readBytes(in);
+        attributes.put(name, valueType == STRING_VALUE
+            ? new MessageAttribute(dataType, new String(value, StandardCharsets.UTF_8), null)
+            : new MessageAttribute(dataType, null, value));
+      }
+      message = new SQSMessage(messageId, sentTimestamp, body, attributes, groupId, deduplicationId);
+    }
+    return new LogRecord(type, queue, messageId, visibleAt, message, frameLength);
+  }
+
+  private static void writeNullable(DataOutput out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readNullable(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeBytes(DataOutput out, byte[] value) throws IOException {
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  private static byte[] readBytes(DataInput in) throws IOException {
+    byte[] result = new byte[in.readInt()];
+    in.readFully(result);
+    return result;
+  }
+}
@@ -0,0 +1,157 @@
+package com.nkttk.core.components.sqs.persistence;
+
+import com.nkttk.core.components.sqs.entities.SQSMessage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Messages left after replaying log records, in sending order per queue. Replay is idempotent: a send of a known
+ * message and transitions of unknown messages are ignored.
+ * <p>
+ * Only ids and times are kept, message bodies are read in a second pass over the same files one message at a time,
+ * so neither recovery nor compaction holds the bodies of all messages on the heap.
+ */
+class RecoveredState {
+  private final List<Path> files;
+  private final Map<String, Map<String, PendingMessage>> queues = new LinkedHashMap<>();
+  private long recordIndex;
+
+  private RecoveredState(List<Path> files) {
+    this.files = files;
+  }
+
+  /**
+   * Replays the records of the files in order, missing files are empty
+   */
+  static RecoveredState replay(List<Path> files) throws IOException {
+    RecoveredState state = new RecoveredState(files);
+    state.read(false, (record, index) -> state.apply(record, index));
+    return state;
+  }
+
+  /**
+   * Reads the files again and hands over the messages left with their bodies, in sending order per queue
+   */
+  void forEachMessage(MessageConsumer consumer) throws IOException {
+    Map<String, Map<Long, PendingMessage>> bySendRecord = new HashMap<>();
+    queues.forEach((queue, messages) -> {
+      Map<Long, PendingMessage> pendingByIndex = new HashMap<>(messages.size() * 2);
+      messages.values().forEach(pending -> pendingByIndex.put(pending.sendRecord, pending));
+      bySendRecord.put(queue, pendingByIndex);
+    });
+    read(true, (record, index) -> {
+      if (record.type == LogRecord.SEND) {
+        PendingMessage pending = bySendRecord.getOrDefault(record.queue, Collections.emptyMap()).get(index);
+        if (pending != null) {
+          consumer.accept(record.queue, record.message, pending);
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the state as send records, followed by a hide record for received messages, which is the snapshot format
+   */
+  void writeTo(OutputStream out) throws IOException {
+    forEachMessage((queue, message, pending) -> {
+      LogRecord.writeFrame(out, LogRecord.send(queue, message, pending.visibleAt));
+      if (pending.received) {
+        LogRecord.writeFrame(out, LogRecord.hide(queue, message.getId(), pending.visibleAt));
+      }
+    });
+  }
+
+  /**
+   * @param consumer receives every queue name with its number of messages
+   */
+  void forEachQueue(BiConsumer<String, Integer> consumer) {
+    queues.forEach((queue, messages) -> consumer.accept(queue, messages.size()));
+  }
+
+  private void apply(LogRecord record, long index) {
+    switch (record.type) {
+      case LogRecord.SEND:
+        queues.computeIfAbsent(record.queue, queue -> new LinkedHashMap<>())
+            .putIfAbsent(record.messageId, new PendingMessage(index, record.visibleAt));
+        break;
+      case LogRecord.DELETE:
+        messagesOf(record.queue).remove(record.messageId);
+        break;
+      case LogRecord.HIDE:
+        PendingMessage pending = messagesOf(record.queue).get(record.messageId);
+        if (pending != null) {
+          pending.visibleAt = record.visibleAt;
+          pending.received = true;
+        }
+        break;
+      case LogRecord.PURGE:
+        queues.remove(record.queue);
+        break;
+      default:
+        throw new RuntimeException("Unknown log record type " + record.type);
+    }
+  }
+
+  /**
+   * Records are numbered across all files, the same way in both passes
+   */
+  private void read(boolean withMessages, RecordConsumer consumer) throws IOException {
+    recordIndex = 0;
+    for (Path file : files) {
+      if (!Files.exists(file)) {
+        continue;
+      }
+      long remaining = Files.size(file);
+      try (InputStream in = Files.newInputStream(file)) {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        LogRecord record;
+        while ((record = LogRecord.readFrame(data, remaining, withMessages)) != null) {
+          remaining -= record.frameLength;
+          consumer.accept(record, recordIndex++);
+        }
+      }
+    }
+  }
+
+  private Map<String, PendingMessage> messagesOf(String queue) {
+    Map<String, PendingMessage> messages = queues.get(queue);
+    return messages == null ? Collections.emptyMap() : messages;
+  }
+
+  static class PendingMessage {
+    /**
+     * Index of the send record carrying the message
+     */
+    private final long sendRecord;
+    long visibleAt;
+    /**
+     * The message was received, it's in flight until visibleAt
+     */
+    boolean received;
+
+    private PendingMessage(long sendRecord, long visibleAt) {
+      this.sendRecord = sendRecord;
+      this.visibleAt = visibleAt;
+    }
+  }
+
+  interface MessageConsumer {
+    void accept(String queue, SQSMessage message, PendingMessage pending) throws IOException;
+  }
+
+  private interface RecordConsumer {
+    void accept(LogRecord record, long index) throws IOException;
+  }
+}
@@ -0,0 +1,451 @@
+package com.nkttk.core.components.sqs.persistence;
+
+import com.nkttk.core.components.sqs.MessageLog;
+import com.nkttk.core.components.sqs.SQSEngine;
+import com.nkttk.core.components.sqs.SQSInstance;
+import com.nkttk.core.components.sqs.entities.SQSMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Durable {@link MessageLog}. Operations append records to a shared buffer, a single flusher thread writes everything
+ * appended meanwhile with one write and at most one fsync, so concurrent operations share the cost of committing
+ * (group commit). With the batched policy writes are not forced one by one, the flusher forces everything written
+ * since the last fsync once the batch interval passed.
+ * <p>
+ * The log is split into segment files. Once a segment is full, and periodically while records are logged, the
+ * snapshot and all older segments are folded into a new snapshot in the background, recovery replays the snapshot
+ * and the segments left. Both stream the message bodies, see {@link RecoveredState}.
+ */
+public class WriteAheadLog implements MessageLog, Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteAheadLog.class);
+  public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+  public static final long DEFAULT_BATCH_INTERVAL = 10;
+  public static final long DEFAULT_SNAPSHOT_INTERVAL = 60 * 1000;
+  private static final String SNAPSHOT = "snapshot.dat";
+  private static final String SNAPSHOT_TEMP = "snapshot.tmp";
+  private static final Pattern SEGMENT_NAME = Pattern.compile("wal-(\\d+)\\.log");
+
+  private final Path directory;
+  private final FsyncPolicy fsyncPolicy;
+  private final long segmentSize;
+  private final long batchInterval;
+  private final long snapshotInterval;
+  private final long firstSegmentIndex;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition appended = lock.newCondition();
+  private final Condition flushed = lock.newCondition();
+  private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  private long appendedSequence;
+  private long flushedSequence;
+  private boolean closed;
+  private volatile IOException failure;
+  private final Object segmentMonitor = new Object();
+  private FileChannel segment;
+  private long segmentIndex;
+  private long segmentBytes;
+  private final ScheduledExecutorService compactor;
+  private final Thread flusher;
+
+  public WriteAheadLog(Path directory, FsyncPolicy fsyncPolicy) {
+    this(directory, fsyncPolicy, DEFAULT_SEGMENT_SIZE, DEFAULT_BATCH_INTERVAL);
+  }
+
+  public WriteAheadLog(Path directory, FsyncPolicy fsyncPolicy, long segmentSize, long batchInterval) {
+    this(directory, fsyncPolicy, segmentSize, batchInterval, DEFAULT_SNAPSHOT_INTERVAL);
+  }
+
+  /**
+   * Opens the log in the directory, existing segments are kept for {@link #recover(SQSEngine)} and new records go
+   * to a new segment
+   * @param segmentSize size in bytes after which a new segment is started
+   * @param batchInterval fsync interval in ms of the batched policy
+   * @param snapshotInterval ms between snapshots taken while records are logged, 0 for snapshots on full segments only
+   */
+  public WriteAheadLog(Path directory, FsyncPolicy fsyncPolicy, long segmentSize, long batchInterval,
+                       long snapshotInterval) {
+    this.directory = directory;
+    this.fsyncPolicy = fsyncPolicy;
+    this.segmentSize = segmentSize;
+    this.batchInterval = batchInterval;
+    this.snapshotInterval = snapshotInterval;
+    try {
+      Files.createDirectories(directory);
+      List<Path> segments = segmentsBefore(Long.MAX_VALUE);
+      firstSegmentIndex = segments.isEmpty() ? 1 : indexOf(segments.get(segments.size() - 1)) + 1;
+      segmentIndex = firstSegmentIndex;
+      segment = openSegment(segmentIndex);
+    } catch (IOException e) {
+      throw new RuntimeException("Write-ahead log can't be opened in " + directory, e);
+    }
+    compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "haze-sqs-wal-compactor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (snapshotInterval > 0) {
+      compactor.scheduleWithFixedDelay(this::periodicSnapshot, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+    }
+    flusher = new Thread(this::flushLoop, "haze-sqs-wal");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Puts the messages logged before this log was opened back into the engine's queues, received messages stay in
+   * flight until their visibility timeout would have expired. Messages of queues which don't exist are kept in the
+   * log until they do.
+   * @return number of recovered messages
+   */
+  public int recover(SQSEngine engine) {
+    AtomicInteger recovered = new AtomicInteger();
+    await(compactor.submit(() -> {
+      RecoveredState state = readState(segmentsBefore(firstSegmentIndex));
+      Map<String, SQSInstance> queues = new HashMap<>();
+      state.forEachQueue((name, count) -> {
+        Optional<SQSInstance> queue = engine.findInstanceByName(name);
+        if (queue.isPresent()) {
+          queues.put(name, queue.get());
+        } else {
+          LOGGER.warn("{} logged messages of missing queue '{}' are not recovered", count, name);
+        }
+      });
+      state.forEachMessage((name, message, pending) -> {
+        SQSInstance queue = queues.get(name);
+        if (queue != null) {
+          queue.recoverMessage(message, pending.visibleAt, pending.received);
+          recovered.incrementAndGet();
+        }
+      });
+      return null;
+    }));
+    return recovered.get();
+  }
+
+  /**
+   * Starts a new segment and folds the older ones into the snapshot
+   */
+  public void snapshot() {
+    Future<?> compaction;
+    synchronized (segmentMonitor) {
+      try {
+        compaction = rotate();
+      } catch (IOException e) {
+        throw new RuntimeException("Write-ahead log segment can't be started", e);
+      }
+    }
+    await(compaction);
+  }
+
+  @Override
+  public void sent(SQSInstance queue, SQSMessage message, long visibleAt) {
+    append(LogRecord.send(queue.getName(), message, visibleAt));
+  }
+
+  @Override
+  public void moved(SQSInstance source, SQSInstance target, SQSMessage message) {
+    append(LogRecord.delete(source.getName(), message.getId()),
+        LogRecord.send(target.getName(), message, target.getClock().currentTimeMillis()));
+  }
+
+  @Override
+  public void deleted(SQSInstance queue, SQSMessage message) {
+    append(LogRecord.delete(queue.getName(), message.getId()));
+  }
+
+  @Override
+  public void hidden(SQSInstance queue, SQSMessage message, long visibleAt) {
+    append(LogRecord.hide(queue.getName(), message.getId(), visibleAt));
+  }
+
+  @Override
+  public void purged(SQSInstance queue) {
+    append(LogRecord.purge(queue.getName()));
+  }
+
+  /**
+   * Waits for the flusher only with the per operation policy
+   */
+  @Override
+  public void commit() {
+    if (fsyncPolicy != FsyncPolicy.PER_OP) {
+      return;
+    }
+    lock.lock();
+    try {
+      long sequence = appendedSequence;
+      while (flushedSequence < sequence && !closed) {
+        flushed.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+    checkFailure();
+  }
+
+  /**
+   * Flushes the appended records and stops logging
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      appended.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      flusher.join();
+      compactor.shutdown();
+      compactor.awaitTermination(1, TimeUnit.MINUTES);
+      synchronized (segmentMonitor) {
+        segment.close();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      throw new RuntimeException("Write-ahead log can't be closed", e);
+    }
+  }
+
+  private void append(byte[]... records) {
+    checkFailure();
+    lock.lock();
+    try {
+      if (closed) {
+        throw new RuntimeException("Write-ahead log is closed : " + directory);
+      }
+      for (byte[] record : records) {
+        LogRecord.writeFrame(buffer, record);
+      }
+      appendedSequence++;
+      appended.signal();
+    } catch (IOException e) {
+      throw new RuntimeException("Write-ahead log append failed", e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes whatever was appended meanwhile. The per operation policy forces every write, the batched one forces the
+   * writes of a whole interval at once, waking up for it even if nothing more is appended.
+   */
+  private void flushLoop() {
+    boolean unsynced = false;
+    long syncDue = 0;
+    while (true) {
+      ByteArrayOutputStream batch;
+      long sequence;
+      boolean last;
+      lock.lock();
+      try {
+        while (buffer.size() == 0 && !closed) {
+          if (!unsynced) {
+            appended.awaitUninterruptibly();
+            continue;
+          }
+          long remaining = syncDue - System.nanoTime();
+          if (remaining <= 0) {
+            break;
+          }
+          try {
+            appended.awaitNanos(remaining);
+          } catch (InterruptedException e) {
+            // only close stops the flusher
+          }
+        }
+        batch = buffer;
+        buffer = new ByteArrayOutputStream(Math.max(batch.size(), 32));
+        sequence = appendedSequence;
+        last = closed;
+      } finally {
+        lock.unlock();
+      }
+      boolean force = fsyncPolicy == FsyncPolicy.PER_OP
+          || fsyncPolicy == FsyncPolicy.BATCHED && (last || unsynced && System.nanoTime() - syncDue >= 0);
+      try {
+        write(batch, force);
+      } catch (IOException e) {
+        LOGGER.error("Write-ahead log write failed, logging stopped", e);
+        failure = e;
+      }
+      if (force) {
+        unsynced = false;
+      } else if (!unsynced && batch.size() > 0 && fsyncPolicy == FsyncPolicy.BATCHED) {
+        unsynced = true;
+        syncDue = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchInterval);
+      }
+      lock.lock();
+      try {
+        flushedSequence = sequence;
+        flushed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      if (last) {
+        return;
+      }
+    }
+  }
+
+  private void write(ByteArrayOutputStream batch, boolean force) throws IOException {
+    if (failure != null) {
+      return;
+    }
+    synchronized (segmentMonitor) {
+      ByteBuffer bytes = ByteBuffer.wrap(batch.toByteArray());
+      while (bytes.hasRemaining()) {
+        segment.write(bytes);
+      }
+      if (force) {
+        segment.force(false);
+      }
+      segmentBytes += batch.size();
+      if (segmentBytes >= segmentSize) {
+        rotate();
+      }
+    }
+  }
+
+  /**
+   * Starts a new segment if anything was logged since the last one, compaction runs after this task
+   */
+  private void periodicSnapshot() {
+    if (failure != null) {
+      return;
+    }
+    synchronized (segmentMonitor) {
+      try {
+        if (segmentBytes > 0) {
+          rotate();
+        }
+      } catch (IOException e) {
+        LOGGER.error("Write-ahead log segment can't be started", e);
+      }
+    }
+  }
+
+  /**
+   * Must be called holding the segment monitor. Writes not forced yet are forced before the segment is closed.
+   */
+  private Future<?> rotate() throws IOException {
+    if (fsyncPolicy != FsyncPolicy.NONE) {
+      segment.force(false);
+    }
+    segment.close();
+    segmentIndex++;
+    segment = openSegment(segmentIndex);
+    segmentBytes = 0;
+    long compactBefore = segmentIndex;
+    return compactor.submit(() -> {
+      try {
+        compact(compactBefore);
+      } catch (IOException e) {
+        LOGGER.error("Write-ahead log compaction failed, segments are kept", e);
+        throw e;
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Folds the snapshot and the segments before the index into a new snapshot. Segments are deleted oldest first, so a
+   * crash meanwhile leaves a log which still replays to the same state.
+   */
+  private void compact(long before) throws IOException {
+    List<Path> segments = segmentsBefore(before);
+    RecoveredState state = readState(segments);
+    Path temp = directory.resolve(SNAPSHOT_TEMP);
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+      state.writeTo(out);
+    }
+    if (fsyncPolicy != FsyncPolicy.NONE) {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+    }
+    Files.move(temp, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    for (Path file : segments) {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  private RecoveredState readState(List<Path> segments) throws IOException {
+    List<Path> files = new ArrayList<>(segments.size() + 1);
+    files.add(directory.resolve(SNAPSHOT));
+    files.addAll(segments);
+    return RecoveredState.replay(files);
+  }
+
+  /**
+   * @return segment files with lower index, oldest first
+   */
+  private List<Path> segmentsBefore(long index) throws IOException {
+    List<Path> result = new ArrayList<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      files.filter(file -> SEGMENT_NAME.matcher(file.getFileName().toString()).matches())
+          .filter(file -> indexOf(file) < index)
+          .sorted((first, second) -> Long.compare(indexOf(first), indexOf(second)))
+          .forEach(result::add);
+    }
+    return result;
+  }
+
+  private FileChannel openSegment(long index) throws IOException {
+    return FileChannel.open(directory.resolve(String.format("wal-%020d.log", index)),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  private static long indexOf(Path segment) {
+    Matcher matcher = SEGMENT_NAME.matcher(segment.getFileName().toString());
+    matcher.matches();
+    return Long.parseLong(matcher.group(1));
+  }
+
+  private void checkFailure() {
+    if (failure != null) {
+      throw new RuntimeException("Write-ahead log write failed : " + directory, failure);
+    }
+  }
+
+  private static void await(Future<?> future) {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted waiting for the write-ahead log", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Write-ahead log compaction failed", e.getCause());
+    }
+  }
+}
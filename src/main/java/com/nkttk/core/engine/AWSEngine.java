@@ -3,27 +3,47 @@ package com.nkttk.core.engine;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.nkttk.config.cf.CloudFormationConfig;
 import com.nkttk.config.cf.ConfigLoader;
+import com.nkttk.config.cf.ResourceType;
 import com.nkttk.config.cf.resources.BucketResource;
+import com.nkttk.config.cf.resources.LambdaResource;
 import com.nkttk.config.cf.resources.SNSResource;
 import com.nkttk.config.cf.resources.SQSResource;
+import com.nkttk.config.cf.resources.properties.subscription.SNSSubscription;
 import com.nkttk.core.components.ComponentIdentifier;
 import com.nkttk.core.components.events.BucketEventType;
 import com.nkttk.core.components.events.EventBuilder;
+import com.nkttk.core.components.lambda.EventSourceMapping;
 import com.nkttk.core.components.lambda.LambdaBuilder;
 import com.nkttk.core.components.lambda.LambdaEngine;
 import com.nkttk.core.components.s3.Bucket;
 import com.nkttk.core.components.s3.BucketObject;
 import com.nkttk.core.components.s3.S3Engine;
+import com.nkttk.core.components.sns.DeliveryPolicy;
+import com.nkttk.core.components.sns.InvalidSubscriptionException;
 import com.nkttk.core.components.sns.SNSEngine;
 import com.nkttk.core.components.sns.SNSTopic;
+import com.nkttk.core.components.sns.Subscription;
+import com.nkttk.core.components.sns.TopicNotFoundException;
+import com.nkttk.core.components.sns.entities.SNSMessage;
+import com.nkttk.core.components.sqs.InvalidMessageException;
+import com.nkttk.core.components.sqs.QueueAlreadyExistsException;
+import com.nkttk.core.components.sqs.RedrivePolicy;
 import com.nkttk.core.components.sqs.SQSEngine;
 import com.nkttk.core.components.sqs.SQSInstance;
+import com.nkttk.core.components.sqs.entities.BatchResult;
+import com.nkttk.core.components.sqs.entities.ReceivedMessage;
 import com.nkttk.core.components.sqs.entities.SQSMessage;
+import com.nkttk.core.components.sqs.entities.VisibilityChange;
+import com.nkttk.core.components.sqs.persistence.FsyncPolicy;
+import com.nkttk.core.components.sqs.persistence.WriteAheadLog;
 import com.nkttk.core.engine.factories.S3ObjectFactory;
+import com.nkttk.core.engine.factories.SQSInstanceFactory;
 import com.nkttk.core.engine.factories.SNSMessageFactory;
 import com.nkttk.core.engine.factories.SQSMessageFactory;
+import com.nkttk.core.engine.timer.Clock;
 import com.nkttk.json.JsonMaster;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,108 +51,138 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class AWSEngine {
     private static final Logger LOGGER = LoggerFactory.getLogger(AWSEngine.class);
+    public static final String SQS_PROTOCOL = "sqs";
+    public static final String LAMBDA_PROTOCOL = "lambda";
+    public static final String SNS_FILTER_POLICY = "FilterPolicy";
+    public static final String SNS_DELIVERY_POLICY = "DeliveryPolicy";
+    public static final String SNS_REDRIVE_POLICY = "RedrivePolicy";
+    public static final String SNS_RAW_MESSAGE_DELIVERY = "RawMessageDelivery";
+    private static final Collection<String> ALL_ATTRIBUTES = Collections.singletonList(SQSMessageFactory.ALL);
 
     private SQSEngine sqsEngine;
     private S3Engine s3Engine;
     private SNSEngine snsEngine;
     private LambdaEngine lambdaEngine;
-    private SQSMessageFactory sqsMessageFactory;
     private SNSMessageFactory snsMessageFactory;
+    private SQSInstanceFactory sqsInstanceFactory;
     private LambdaBuilder lambdaBuilder = new LambdaBuilder();
+    private final Clock clock;
+    private volatile IdentifierSnapshot identifierSnapshot;
 
     public AWSEngine() {
-        this.sqsEngine = new SQSEngine();
-        this.s3Engine = new S3Engine();
-        this.snsEngine = new SNSEngine();
-        this.lambdaEngine = new LambdaEngine(lambdaBuilder);
-        this.sqsMessageFactory = new SQSMessageFactory();
+        this(Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock time source of all components, e.g. a {@link com.nkttk.core.engine.timer.VirtualClock} to run
+     *              long timeouts and delays without waiting for them
+     */
+    public AWSEngine(Clock clock) {
+        this.clock = clock;
+        this.sqsEngine = new SQSEngine(clock);
+        this.s3Engine = new S3Engine(clock);
+        this.snsEngine = new SNSEngine(clock);
+        this.lambdaEngine = new LambdaEngine(lambdaBuilder, clock);
         this.snsMessageFactory = new SNSMessageFactory();
+        this.sqsInstanceFactory = new SQSInstanceFactory(sqsEngine);
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Stops the event source mappings and the threads running lambdas, functions can't be invoked afterwards
+     */
+    public void shutdown() {
+        lambdaEngine.shutdown();
     }
 
     public void setLambdaBuilder(Function<String, RequestHandler<?, ?>> lambdaBuilder) {
         this.lambdaBuilder.setProduceFunction(lambdaBuilder);
     }
 
+    /**
+     * @return immutable snapshot, rebuilt only after components were added or removed
+     */
     public List<ComponentIdentifier> getAllIdentifiers() {
-        List<ComponentIdentifier> result = new LinkedList<>();
-        result.addAll(this.sqsEngine.getIdentifiers());
-        result.addAll(this.snsEngine.getIdentifiers());
-        result.addAll(this.s3Engine.getIdentifiers());
-        return result;
+        List<ComponentIdentifier> sqs = this.sqsEngine.getIdentifiers();
+        List<ComponentIdentifier> sns = this.snsEngine.getIdentifiers();
+        List<ComponentIdentifier> s3 = this.s3Engine.getIdentifiers();
+        IdentifierSnapshot snapshot = identifierSnapshot;
+        if (snapshot == null || !snapshot.isBuiltFrom(sqs, sns, s3)) {
+            snapshot = new IdentifierSnapshot(sqs, sns, s3);
+            identifierSnapshot = snapshot;
+        }
+        return snapshot.identifiers;
     }
 
     public void loadConfig(InputStream is) throws IOException {
         CloudFormationConfig cf = ConfigLoader.loadConfig(is);
         createComponents(cf);
+        processComponentSubscriptions(cf);
     }
 
+    /**
+     * Subscribes the endpoints listed by the topics once all components exist. An endpoint is either an ARN or the
+     * Fn::GetAtt of a queue or function of the same config.
+     */
     private void processComponentSubscriptions(CloudFormationConfig cf) {
         cf.getResources().values().forEach(resource -> {
-            switch (resource.getResourceType()) {
-                case SQS:
-                    SQSResource sqsConfig = (SQSResource) resource;
-                    addSQS(sqsConfig.getProperties().getQueueName());
-                    break;
-                case SNS:
-                    SNSResource snsResource = (SNSResource) resource;
-                    snsResource.getProperties().getSubscriptions().forEach(snsSubscription -> {
-                        switch (snsSubscription.getProtocol()) {
-                            case SQS:
-                                if (snsSubscription.getSubscriptionEndpoint().getEndpointArn() != null) {
-                                    throw new RuntimeException("SQS subscription by ARN not implemented");
-                                } else {
-                                    String sqsName = snsSubscription.getSubscriptionEndpoint().getGetAttributeFunctionArgs().get(0);
-                                    String sqsURL = sqsEngine.getInstanceByName(sqsName).getEndpointURL();
-                                    snsEngine.addSubscriber(snsResource.getProperties().getTopicName(), message -> {
-                                        LOGGER.debug("Putting sns message into sqs");
-                                        sqsEngine.sendMessage(sqsURL, message);
-                                    });
-                                }
-                                break;
-                        }
-                    });
-                    break;
-                case BUCKET:
-                    BucketResource bucket = (BucketResource) resource;
-                    addBucket(bucket.getProperties().getBucketName());
-                    break;
-                case ALARM:
-                    break;
-                case LAMBDA:
-                    break;
-                case ROLE:
-                    LOGGER.debug("Ignoring Role");
-                    break;
-                case IAM_POLICY:
-                    LOGGER.debug("Ignoring IAM policy config");
-                    break;
-                case LAMBDA_VERSION:
-                    LOGGER.debug("Ignoring lambda version");
-                    break;
-                case EVENT_RULE:
-                    LOGGER.debug("Ignoring event rule config");
-                    break;
-                case LAMBDA_PERMISSION:
-                    LOGGER.debug("Ignoring lambda permission");
-                    break;
-                case QUEUE_POLICY:
-                    LOGGER.debug("Ignoring ");
-                    break;
-                case IAM_MANAGED_POLICY:
-                    LOGGER.debug("Ignoring ");
-                    break;
+            if (resource.getResourceType() != ResourceType.SNS) {
+                return;
             }
+            SNSResource snsResource = (SNSResource) resource;
+            List<SNSSubscription> subscriptions = snsResource.getProperties().getSubscriptions();
+            if (subscriptions == null) {
+                return;
+            }
+            String topicArn = snsEngine.getTopic(snsResource.getProperties().getTopicName()).getArn();
+            subscriptions.forEach(snsSubscription -> {
+                String endpointArn = snsSubscription.getSubscriptionEndpoint().getEndpointArn();
+                switch (snsSubscription.getProtocol()) {
+                    case SQS:
+                        if (endpointArn == null) {
+                            SQSResource queue = referencedResource(cf, snsSubscription, SQSResource.class);
+                            endpointArn = sqsEngine.getInstanceByName(queue.getProperties().getQueueName()).getArn();
+                        }
+                        subscribeSNS(topicArn, SQS_PROTOCOL, endpointArn);
+                        break;
+                    case LAMBDA:
+                        if (endpointArn == null) {
+                            LambdaResource function = referencedResource(cf, snsSubscription, LambdaResource.class);
+                            endpointArn = LambdaEngine.FUNCTION_ARN_PREFIX + function.getProperties().getFunctionName();
+                        }
+                        subscribeSNS(topicArn, LAMBDA_PROTOCOL, endpointArn);
+                        break;
+                }
+            });
         });
     }
 
+    private static <T> T referencedResource(CloudFormationConfig cf, SNSSubscription subscription, Class<T> type) {
+        String logicalId = subscription.getSubscriptionEndpoint().getGetAttributeFunctionArgs().get(0);
+        Object resource = cf.getResources().get(logicalId);
+        if (!type.isInstance(resource)) {
+            throw new InvalidSubscriptionException("Subscription endpoint not found : " + logicalId);
+        }
+        return type.cast(resource);
+    }
+
     private void createComponents(CloudFormationConfig cf) {
         cf.getResources().values().forEach(resource -> {
             switch (resource.getResourceType()) {
@@ -142,7 +192,7 @@ public class AWSEngine {
                     break;
                 case SNS:
                     SNSResource snsResource = (SNSResource) resource;
-                    addSNSTopic(snsResource.getProperties().getTopicName());
+                    createSNSTopic(snsResource.getProperties().getTopicName());
                     break;
                 case BUCKET:
                     BucketResource bucket = (BucketResource) resource;
@@ -184,13 +234,75 @@ public class AWSEngine {
 
     @Deprecated // should be moved
     public SNSTopic addSNSTopic(String topic) {
-        LOGGER.debug("Add sns {}", topic);
-        return snsEngine.addTopic(topic);
+        return createSNSTopic(topic);
+    }
+
+    /**
+     * @return the new topic, or the existing one of the same name
+     */
+    public SNSTopic createSNSTopic(String name) {
+        LOGGER.debug("Add sns {}", name);
+        return snsEngine.addTopic(name);
     }
 
     public SQSInstance addSQS(String name) {
-        LOGGER.debug("Add sqs {}", name);
-        return sqsEngine.addInstance(new SQSInstance(name));
+        return addSQS(name, null);
+    }
+
+    /**
+     * @return the new queue, or the existing one of that name if it has the given attributes
+     * @throws QueueAlreadyExistsException if a queue of that name exists with other attributes
+     */
+    public SQSInstance addSQS(String name, Map<String, String> attributes) {
+        LOGGER.debug("Add sqs {} {}", name, attributes);
+        SQSInstance instance = sqsEngine.addInstance(name, () -> sqsInstanceFactory.buildInstance(name, attributes));
+        sqsInstanceFactory.checkAttributes(instance, attributes);
+        return instance;
+    }
+
+    /**
+     * Recovers the messages logged in the directory into the existing queues, then logs all message transitions there.
+     * Queues have to be created before.
+     * @return number of recovered messages
+     */
+    public int enableSQSDurability(Path directory, FsyncPolicy fsyncPolicy) {
+        WriteAheadLog log = new WriteAheadLog(directory, fsyncPolicy);
+        int recovered = log.recover(sqsEngine);
+        LOGGER.debug("Recovered {} sqs messages from {}", recovered, directory);
+        sqsEngine.setMessageLog(log);
+        return recovered;
+    }
+
+    public void deleteSQS(String sqsUrl) {
+        LOGGER.debug("Delete sqs. url: '{}'", sqsUrl);
+        sqsEngine.deleteInstance(sqsUrl);
+    }
+
+    public void purgeSQS(String sqsUrl) {
+        LOGGER.debug("Purge sqs. url: '{}'", sqsUrl);
+        sqsEngine.purgeInstance(sqsUrl);
+    }
+
+    public void setSQSAttributes(String sqsUrl, Map<String, String> attributes) {
+        LOGGER.debug("Set sqs attributes. url: '{}' {}", sqsUrl, attributes);
+        sqsInstanceFactory.applyAttributes(sqsEngine.getInstanceByURL(sqsUrl), attributes);
+    }
+
+    public Map<String, String> getSQSAttributes(String sqsUrl, Collection<String> attributeNames) {
+        return sqsEngine.getInstanceByURL(sqsUrl).getAttributes(attributeNames);
+    }
+
+    public List<String> getSQSDeadLetterSourceQueues(String deadLetterQueueUrl) {
+        return sqsEngine.getDeadLetterSourceQueues(deadLetterQueueUrl).stream().map(SQSInstance::getEndpointURL).collect(Collectors.toList());
+    }
+
+    /**
+     * Moves visible messages between queues, e.g. from a dead letter queue back to its source
+     * @return number of moved messages
+     */
+    public int moveSQSMessages(String sourceUrl, String targetUrl, int maxMessages) {
+        LOGGER.debug("Move up to {} sqs messages from '{}' to '{}'", maxMessages, sourceUrl, targetUrl);
+        return sqsEngine.moveMessages(sourceUrl, targetUrl, maxMessages);
     }
 
     public void addS3Bucket(String bucketName){
@@ -208,24 +320,228 @@ public class AWSEngine {
         return sqsEngine.getInstanceByName(name).getEndpointURL();
     }
 
-    public void addSNSSubscriber(String topic, Consumer<String> subscriber) {
+    public Subscription addSNSSubscriber(String topic, Consumer<String> subscriber) {
         LOGGER.debug("Adding subscriber to topic {}", topic);
-        snsEngine.addSubscriber(topic, subscriber);
+        return snsEngine.addSubscriber(topic, subscriber);
+    }
+
+    /**
+     * Subscribes with its own delivery queue, publishing returns once the message is enqueued
+     * @param deliveryQueueCapacity messages waiting for the subscriber before further ones are dropped
+     */
+    public Subscription addAsyncSNSSubscriber(String topic, Consumer<String> subscriber, int deliveryQueueCapacity) {
+        LOGGER.debug("Adding async subscriber to topic {}", topic);
+        return snsEngine.addSubscriber(topic, subscriber, deliveryQueueCapacity);
+    }
+
+    /**
+     * @param topicArn topic ARN or URL
+     * @param protocol "sqs" or "lambda"
+     * @param endpoint queue ARN for "sqs"
+     * @return the new subscription, or the existing one of the same protocol and endpoint
+     * @throws TopicNotFoundException if there is no such topic
+     * @throws InvalidSubscriptionException if the protocol is not supported or the queue doesn't exist
+     */
+    public Subscription subscribeSNS(String topicArn, String protocol, String endpoint) {
+        return subscribeSNS(topicArn, protocol, endpoint, 0);
+    }
+
+    /**
+     * Subscribes a queue with its own delivery queue, publishing returns once the message is enqueued instead of waiting
+     * for a slow or blocking queue. Lambda subscriptions are asynchronous anyway and ignore the capacity.
+     * @param deliveryQueueCapacity messages waiting for the endpoint before further ones are dropped, 0 delivers on the
+     *                              publishing thread
+     */
+    public Subscription subscribeSNS(String topicArn, String protocol, String endpoint, int deliveryQueueCapacity) {
+        LOGGER.debug("Subscribing {} endpoint {} to topic {}", protocol, endpoint, topicArn);
+        if (LAMBDA_PROTOCOL.equals(protocol)) {
+            return subscribeLambdaToSNS(topicArn, endpoint);
+        }
+        if (!SQS_PROTOCOL.equals(protocol)) {
+            throw new InvalidSubscriptionException("Unsupported subscription protocol : " + protocol);
+        }
+        SQSInstance queue = sqsEngine.findInstanceByArn(endpoint)
+                .orElseThrow(() -> new InvalidSubscriptionException("Queue not found. ARN : " + endpoint));
+        SNSTopic topic = snsEngine.getTopicByArn(topicArn);
+        return snsEngine.subscribeEndpoint(topic.getArn(), protocol, endpoint, (subscription, message) -> {
+            LOGGER.debug("Putting sns message into sqs");
+            queue.putMessage(toSQSMessage(topic, subscription, message));
+        }, (subscription, messages) -> {
+            LOGGER.debug("Putting {} sns messages into sqs", messages.size());
+            List<SQSMessage> batch = new ArrayList<>(messages.size());
+            messages.forEach(message -> batch.add(toSQSMessage(topic, subscription, message)));
+            queue.putMessages(batch);
+        }, deliveryQueueCapacity);
+    }
+
+    /**
+     * Raw delivery shares the message body and attributes, otherwise the queue receives the topic's JSON envelope,
+     * written once per message for all queues. A subscription is not raw until RawMessageDelivery is set on it.
+     */
+    private static SQSMessage toSQSMessage(SNSTopic topic, Subscription subscription, SNSMessage message) {
+        if (subscription.isRawMessageDelivery()) {
+            return new SQSMessage(message.getPayload(), message.getAttributes());
+        }
+        return new SQSMessage(topic.getEnvelope(message), null);
+    }
+
+    /**
+     * Every message invokes the function asynchronously with an SNS event, so the publisher doesn't wait for it and the
+     * subscriptions of a topic run in parallel, each function within its concurrency limit. A failed invocation is retried
+     * along the subscription's delivery policy and dead lettered like any failed delivery
+     * @param endpoint name or ARN of the function
+     */
+    private Subscription subscribeLambdaToSNS(String topicArn, String endpoint) {
+        String functionName = endpoint.startsWith(LambdaEngine.FUNCTION_ARN_PREFIX)
+                ? endpoint.substring(LambdaEngine.FUNCTION_ARN_PREFIX.length()) : endpoint;
+        String arn = snsEngine.getTopicByArn(topicArn).getArn();
+        return snsEngine.subscribeAsyncEndpoint(arn, LAMBDA_PROTOCOL, LambdaEngine.FUNCTION_ARN_PREFIX + functionName,
+                (subscription, message) -> {
+                    String event = JsonMaster.toString(EventBuilder.buildSNSEvent(arn, subscription.getArn(), message));
+                    return lambdaEngine.invokeAsync(functionName, ByteBuffer.wrap(event.getBytes(StandardCharsets.UTF_8)));
+                });
+    }
+
+    /**
+     * @param limit maximum concurrent asynchronous invocations of the function
+     */
+    public void setLambdaConcurrency(String functionName, int limit) {
+        lambdaEngine.setFunctionConcurrency(functionName, limit);
+    }
+
+    /**
+     * @param timeout ms after which invocations of the function fail, measured by the engine's clock, 0 for none
+     */
+    public void setLambdaTimeout(String functionName, long timeout) {
+        lambdaEngine.setFunctionTimeout(functionName, timeout);
+    }
+
+    public void unsubscribeSNS(String subscriptionArn) {
+        LOGGER.debug("Unsubscribing {}", subscriptionArn);
+        snsEngine.unsubscribe(subscriptionArn);
+    }
+
+    /**
+     * @param topicArn topic ARN or URL
+     * @param fromSequence sequence of the first subscription to return, 0 for the first page
+     */
+    public List<Subscription> listSNSSubscriptions(String topicArn, long fromSequence, int limit) {
+        return snsEngine.getTopicByArn(topicArn).getSubscriptions(fromSequence, limit);
     }
 
     @Deprecated //logic shoud be moved into dedicated class"
     public Message getSQSMessage(String sqsUrl) {
         LOGGER.debug("Get sqs message on url: {}", sqsUrl);
-        SQSMessage message = sqsEngine.pullMessage(sqsUrl).get();
-        Message nativeMessage = message != null ? sqsMessageFactory.buildNativeMessage(message) : null;
+        ReceivedMessage message = sqsEngine.pullMessage(sqsUrl).orElse(null);
+        Message nativeMessage = message != null ? SQSMessageFactory.buildNativeMessage(message) : null;
         return nativeMessage;
     }
 
+    /**
+     * @param visibilityTimeout visibility timeout in ms, null for queue default
+     */
+    public List<Message> receiveSQSMessages(String sqsUrl, int maxMessages, long waitTime, Long visibilityTimeout) {
+        return receiveSQSMessages(sqsUrl, maxMessages, waitTime, visibilityTimeout, ALL_ATTRIBUTES, ALL_ATTRIBUTES);
+    }
+
+    /**
+     * @param visibilityTimeout visibility timeout in ms, null for queue default
+     * @param attributeNames system attributes to return
+     * @param messageAttributeNames message attributes to return
+     */
+    public List<Message> receiveSQSMessages(String sqsUrl, int maxMessages, long waitTime, Long visibilityTimeout,
+                                            Collection<String> attributeNames, Collection<String> messageAttributeNames) {
+        LOGGER.debug("Receive up to {} sqs messages on url: {}, wait {} ms", maxMessages, sqsUrl, waitTime);
+        List<ReceivedMessage> messages = visibilityTimeout == null
+                ? sqsEngine.pullMessages(sqsUrl, maxMessages, waitTime)
+                : sqsEngine.pullMessages(sqsUrl, maxMessages, waitTime, visibilityTimeout);
+        List<Message> result = new ArrayList<>(messages.size());
+        for (ReceivedMessage message : messages) {
+            result.add(SQSMessageFactory.buildNativeMessage(message, attributeNames, messageAttributeNames));
+        }
+        return result;
+    }
+
     @Deprecated //logic shoud be moved into dedicated class"
     public void publishSNSMessage(String topicURL, String message) {
-        String topicName = snsEngine.getTopicName(topicURL);
-        LOGGER.debug("Publish SNS message. url:'{}' name: '{}' body: \"{}\"", topicURL, topicName, message);
-        snsEngine.publishMessage(topicName, message);
+        SNSTopic topic = snsEngine.getTopicByArn(topicURL);
+        LOGGER.debug("Publish SNS message. url:'{}' name: '{}' body: \"{}\"", topicURL, topic.getName(), message);
+        topic.publishMessage(message);
+    }
+
+    /**
+     * @param attributes message attributes, matched against the subscriptions' filter policies
+     * @return id of the published message
+     */
+    public String publishSNSMessage(String topicURL, String message,
+                                    Map<String, com.amazonaws.services.sns.model.MessageAttributeValue> attributes) {
+        SNSTopic topic = snsEngine.getTopicByArn(topicURL);
+        LOGGER.debug("Publish SNS message. url:'{}' name: '{}' body: \"{}\"", topicURL, topic.getName(), message);
+        return topic.publishMessage(snsMessageFactory.buildMessage(message, attributes));
+    }
+
+    /**
+     * Publishes any number of messages with one topic lookup and one pass over the subscriptions, every subscription
+     * receives the messages it matched as one batch, SQS subscriptions enqueue them as one batch
+     * @return ids of the published messages, in order
+     */
+    public List<String> publishSNSMessages(String topicURL, List<SNSMessage> messages) {
+        SNSTopic topic = snsEngine.getTopicByArn(topicURL);
+        LOGGER.debug("Publish {} SNS messages. url:'{}' name: '{}'", messages.size(), topicURL, topic.getName());
+        return topic.publishMessages(messages);
+    }
+
+    /**
+     * @param filterPolicy policy JSON, null or empty to remove the policy
+     */
+    public void setSNSFilterPolicy(String subscriptionArn, String filterPolicy) {
+        LOGGER.debug("Set filter policy of {} to {}", subscriptionArn, filterPolicy);
+        snsEngine.setFilterPolicy(subscriptionArn, filterPolicy);
+    }
+
+    /**
+     * @param name FilterPolicy, DeliveryPolicy, RedrivePolicy, whose deadLetterTargetArn names an SQS queue, or
+     *             RawMessageDelivery
+     * @param value attribute JSON, null or empty to remove the attribute
+     */
+    public void setSNSSubscriptionAttribute(String subscriptionArn, String name, String value) {
+        LOGGER.debug("Set {} of {} to {}", name, subscriptionArn, value);
+        boolean remove = value == null || value.trim().isEmpty();
+        Subscription subscription = snsEngine.getSubscription(subscriptionArn);
+        switch (name) {
+            case SNS_FILTER_POLICY:
+                snsEngine.setFilterPolicy(subscriptionArn, value);
+                break;
+            case SNS_DELIVERY_POLICY:
+                subscription.setDeliveryPolicy(remove ? null : DeliveryPolicy.parse(value));
+                break;
+            case SNS_REDRIVE_POLICY:
+                subscription.setDeadLetterQueue(remove ? null : sqsEngine.getInstanceByArn(deadLetterTargetArn(value)));
+                break;
+            case SNS_RAW_MESSAGE_DELIVERY:
+                subscription.setRawMessageDelivery(!remove && Boolean.parseBoolean(value.trim()));
+                break;
+            default:
+                throw new RuntimeException("Unsupported subscription attribute : " + name);
+        }
+    }
+
+    private static String deadLetterTargetArn(String redrivePolicy) {
+        Map<?, ?> policy;
+        try {
+            policy = JsonMaster.readValue(redrivePolicy, Map.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Redrive policy parsing failed : " + redrivePolicy, e);
+        }
+        Object arn = policy.get(RedrivePolicy.DEAD_LETTER_TARGET_ARN);
+        if (arn == null) {
+            throw new RuntimeException("Redrive policy has no " + RedrivePolicy.DEAD_LETTER_TARGET_ARN + " : " + redrivePolicy);
+        }
+        return arn.toString();
+    }
+
+    public Subscription getSNSSubscription(String subscriptionArn) {
+        return snsEngine.getSubscription(subscriptionArn);
     }
 
     @Deprecated // into message processing class
@@ -235,7 +551,7 @@ public class AWSEngine {
         s3Engine.addEventSubscription(bucket, BucketEventType.PUT, event -> {
             String eventJson = JsonMaster.toString(EventBuilder.buildS3Notification(eventType, bucket.getName(), bucket
                     .getUrl(), event.getBucketObject().getKey(), event.getBucketObject().getSize(), event.getBucketObject()
-                    .getEtag()));
+                    .getEtag(), event.getEventTime()));
             LOGGER.debug("Bucket PUT event sent to SQS {}: {}", sqsUrl, eventJson);
             publishSQSMessage(sqsUrl, eventJson);
         });
@@ -244,7 +560,42 @@ public class AWSEngine {
     @Deprecated //logic shoud be moved into dedicated class"
     public void publishSQSMessage(String url, String messageBody) {
         LOGGER.debug("Publish SQS message. url: '{}' body: \"{}\"", url, messageBody);
-        sqsEngine.sendMessage(url, sqsMessageFactory.buildMessage(messageBody));
+        sqsEngine.sendMessage(url, SQSMessageFactory.buildMessage(messageBody));
+    }
+
+    /**
+     * @param delay delivery delay in ms, null for queue default
+     */
+    public SQSMessage publishSQSMessage(String url, String messageBody, Map<String, MessageAttributeValue> attributes, String groupId,
+                                        String deduplicationId, Long delay) {
+        LOGGER.debug("Publish SQS message. url: '{}' group: '{}' body: \"{}\"", url, groupId, messageBody);
+        SQSMessage message = SQSMessageFactory.buildMessage(messageBody, attributes, groupId, deduplicationId);
+        message.setDelay(delay);
+        sqsEngine.sendMessage(url, message);
+        return message;
+    }
+
+    /**
+     * @return id of the accepted message, for a FIFO duplicate the id of the message it duplicates
+     */
+    public String publishSQSMessage(String url, SQSMessage message) {
+        LOGGER.debug("Publish SQS message. url: '{}' group: '{}'", url, message.getGroupId());
+        return sqsEngine.sendMessage(url, message);
+    }
+
+    /**
+     * @throws InvalidMessageException if the queue doesn't accept the message
+     */
+    public void validateSQSMessage(String url, SQSMessage message) {
+        sqsEngine.validateMessage(url, message);
+    }
+
+    /**
+     * @return ids of the accepted messages in batch order, for a FIFO duplicate the id of the message it duplicates
+     */
+    public List<String> publishSQSMessages(String url, List<SQSMessage> messages) {
+        LOGGER.debug("Publish {} SQS messages. url: '{}'", messages.size(), url);
+        return sqsEngine.sendMessages(url, messages);
     }
 
     @Deprecated //logic shoud be moved into dedicated class"
@@ -252,6 +603,18 @@ public class AWSEngine {
         sqsEngine.deleteMessage(sqs, receiptHandle);
     }
 
+    public BatchResult deleteSQSMessages(String sqsUrl, Map<String, String> handlesById) {
+        return sqsEngine.deleteMessages(sqsUrl, handlesById);
+    }
+
+    public boolean changeSQSMessageVisibility(String sqsUrl, String receiptHandle, long visibilityTimeout) {
+        return sqsEngine.changeMessageVisibility(sqsUrl, receiptHandle, visibilityTimeout);
+    }
+
+    public BatchResult changeSQSMessagesVisibility(String sqsUrl, List<VisibilityChange> changes) {
+        return sqsEngine.changeMessagesVisibility(sqsUrl, changes);
+    }
+
     @Deprecated //logic shoud be moved into dedicated class"
     public void addFile(String bucket, String name, String content) {
         LOGGER.debug("Add file. Bucket: {} file: {}", bucket, name);
@@ -277,4 +640,59 @@ public class AWSEngine {
         return lambdaEngine.runLambda(name, args);
     }
 
+    public EventSourceMapping createEventSourceMapping(String functionName, String eventSourceArn, int batchSize,
+                                                       long batchingWindow) {
+        return createEventSourceMapping(functionName, eventSourceArn, batchSize, batchingWindow,
+                EventSourceMapping.DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /**
+     * Invokes the function with batches of messages from the queue until the mapping is deleted
+     * @param functionName name or ARN of the function
+     * @param batchingWindow ms to wait for a batch to fill up
+     * @param maxConcurrency maximum number of batches processed at a time
+     */
+    public EventSourceMapping createEventSourceMapping(String functionName, String eventSourceArn, int batchSize,
+                                                       long batchingWindow, int maxConcurrency) {
+        LOGGER.debug("Create event source mapping. Function: {} source: {}", functionName, eventSourceArn);
+        String name = functionName.startsWith(LambdaEngine.FUNCTION_ARN_PREFIX)
+                ? functionName.substring(LambdaEngine.FUNCTION_ARN_PREFIX.length()) : functionName;
+        return lambdaEngine.createEventSourceMapping(name, sqsEngine.getInstanceByArn(eventSourceArn), batchSize,
+                batchingWindow, maxConcurrency);
+    }
+
+    public Optional<EventSourceMapping> deleteEventSourceMapping(String uuid) {
+        LOGGER.debug("Delete event source mapping {}", uuid);
+        return lambdaEngine.deleteEventSourceMapping(uuid);
+    }
+
+    public Optional<EventSourceMapping> getEventSourceMapping(String uuid) {
+        return lambdaEngine.getEventSourceMapping(uuid);
+    }
+
+    public Collection<EventSourceMapping> getEventSourceMappings() {
+        return lambdaEngine.getEventSourceMappings();
+    }
+
+    private static class IdentifierSnapshot {
+        private final List<ComponentIdentifier> sqs;
+        private final List<ComponentIdentifier> sns;
+        private final List<ComponentIdentifier> s3;
+        private final List<ComponentIdentifier> identifiers;
+
+        private IdentifierSnapshot(List<ComponentIdentifier> sqs, List<ComponentIdentifier> sns, List<ComponentIdentifier> s3) {
+            this.sqs = sqs;
+            this.sns = sns;
+            this.s3 = s3;
+            List<ComponentIdentifier> all = new ArrayList<>(sqs.size() + sns.size() + s3.size());
+            all.addAll(sqs);
+            all.addAll(sns);
+            all.addAll(s3);
+            this.identifiers = Collections.unmodifiableList(all);
+        }
+
+        private boolean isBuiltFrom(List<ComponentIdentifier> sqs, List<ComponentIdentifier> sns, List<ComponentIdentifier> s3) {
+            return this.sqs == sqs && this.sns == sns && this.s3 == s3;
+        }
+    }
 }
@@ -1,7 +1,13 @@
 package com.nkttk.core.engine.factories;
 
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.util.BinaryUtils;
+import com.nkttk.core.components.MessageAttribute;
 import com.nkttk.core.components.sns.entities.SNSMessage;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  *
  */
@@ -9,4 +15,18 @@ public class SNSMessageFactory {
   public SNSMessage buildMessage(String body){
     return new SNSMessage(body);
   }
+
+  public SNSMessage buildMessage(String body, Map<String, MessageAttributeValue> attributes){
+    return new SNSMessage(body, toMessageAttributes(attributes));
+  }
+
+  public static Map<String, MessageAttribute> toMessageAttributes(Map<String, MessageAttributeValue> attributes) {
+    if (attributes == null || attributes.isEmpty()) {
+      return null;
+    }
+    Map<String, MessageAttribute> result = new HashMap<>(attributes.size() * 2);
+    attributes.forEach((name, value) -> result.put(name, new MessageAttribute(value.getDataType(), value.getStringValue(),
+        value.getBinaryValue() == null ? null : BinaryUtils.copyAllBytesFrom(value.getBinaryValue()))));
+    return result;
+  }
 }
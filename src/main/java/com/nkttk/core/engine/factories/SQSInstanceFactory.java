@@ -0,0 +1,161 @@
+package com.nkttk.core.engine.factories;
+
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.nkttk.core.components.sqs.FifoSQSInstance;
+import com.nkttk.core.components.sqs.InvalidAttributeValueException;
+import com.nkttk.core.components.sqs.OverflowPolicy;
+import com.nkttk.core.components.sqs.QueueAlreadyExistsException;
+import com.nkttk.core.components.sqs.RedrivePolicy;
+import com.nkttk.core.components.sqs.SQSEngine;
+import com.nkttk.core.components.sqs.SQSInstance;
+import com.nkttk.io.MappedJournal;
+import com.nkttk.json.JsonMaster;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds queues from SQS queue attributes
+ */
+public class SQSInstanceFactory {
+  public static final String FIFO_SUFFIX = ".fifo";
+  /**
+   * Not an SQS attribute: directory of memory-mapped segments holding the message bodies, see {@link MappedJournal}
+   */
+  public static final String JOURNAL_DIRECTORY = "HazeJournalDirectory";
+  public static final String JOURNAL_SEGMENT_SIZE = "HazeJournalSegmentSize";
+
+  private final SQSEngine sqsEngine;
+
+  public SQSInstanceFactory(SQSEngine sqsEngine) {
+    this.sqsEngine = sqsEngine;
+  }
+
+  public SQSInstance buildInstance(String name, Map<String, String> attributes) {
+    Map<String, String> queueAttributes = attributes == null ? Collections.emptyMap() : attributes;
+    boolean fifo = Boolean.parseBoolean(queueAttributes.get(FifoSQSInstance.FIFO_QUEUE)) || name.endsWith(FIFO_SUFFIX);
+    if (fifo && !name.endsWith(FIFO_SUFFIX)) {
+      throw new RuntimeException("FIFO queue name must end with " + FIFO_SUFFIX + " : " + name);
+    }
+    SQSInstance instance = fifo ? new FifoSQSInstance(name) : new SQSInstance(name);
+    applyAttributes(instance, queueAttributes);
+    return instance;
+  }
+
+  /**
+   * @throws InvalidAttributeValueException if a value can't be parsed
+   */
+  public void applyAttributes(SQSInstance instance, Map<String, String> attributes) {
+    attributes.forEach((name, value) -> {
+      if (QueueAttributeName.VisibilityTimeout.toString().equals(name)) {
+        instance.setMessageLockInterval(TimeUnit.SECONDS.toMillis(parseLong(name, value)));
+      } else if (QueueAttributeName.DelaySeconds.toString().equals(name)) {
+        instance.setDelay(TimeUnit.SECONDS.toMillis(parseLong(name, value)));
+      } else if (FifoSQSInstance.CONTENT_BASED_DEDUPLICATION.equals(name)) {
+        if (!instance.isFifo()) {
+          throw new RuntimeException(FifoSQSInstance.CONTENT_BASED_DEDUPLICATION + " is only supported by FIFO queues : " + instance.getName());
+        }
+        ((FifoSQSInstance) instance).setContentBasedDeduplication(Boolean.parseBoolean(value));
+      } else if (QueueAttributeName.RedrivePolicy.toString().equals(name)) {
+        instance.setRedrivePolicy(buildRedrivePolicy(instance, value));
+      } else if (JOURNAL_DIRECTORY.equals(name)) {
+        String segmentSize = attributes.get(JOURNAL_SEGMENT_SIZE);
+        instance.setJournal(new MappedJournal(Paths.get(value),
+            segmentSize == null ? MappedJournal.DEFAULT_SEGMENT_SIZE : parseInt(JOURNAL_SEGMENT_SIZE, segmentSize)));
+      } else if (SQSInstance.MAX_MESSAGES.equals(name)) {
+        instance.setMaxMessages(parseLong(name, value));
+      } else if (SQSInstance.MAX_BYTES.equals(name)) {
+        instance.setMaxBytes(parseLong(name, value));
+      } else if (SQSInstance.OVERFLOW_POLICY.equals(name)) {
+        instance.setOverflowPolicy(parseOverflowPolicy(value));
+      } else if (SQSInstance.OVERFLOW_TIMEOUT_MILLIS.equals(name)) {
+        instance.setOverflowTimeout(parseLong(name, value));
+      }
+    });
+  }
+
+  /**
+   * Compares the attributes a queue is created with to those of the queue of that name. Only attributes the queue
+   * reports are compared, see {@link SQSInstance#getAttributes}.
+   * @param attributes attributes of the create request, may be null
+   * @throws QueueAlreadyExistsException if an attribute differs
+   */
+  public void checkAttributes(SQSInstance instance, Map<String, String> attributes) {
+    if (attributes == null || attributes.isEmpty()) {
+      return;
+    }
+    Map<String, String> current = instance.getAttributes(attributes.keySet());
+    attributes.forEach((name, value) -> {
+      String currentValue = current.get(name);
+      if (currentValue != null && !sameAttribute(name, currentValue, value)) {
+        throw new QueueAlreadyExistsException("A queue already exists with the same name and a different value for attribute "
+            + name + " : " + instance.getName());
+      }
+    });
+  }
+
+  private static boolean sameAttribute(String name, String current, String requested) {
+    if (QueueAttributeName.RedrivePolicy.toString().equals(name)) {
+      Map<?, ?> currentPolicy = parsePolicy(current);
+      Map<?, ?> requestedPolicy = parsePolicy(requested);
+      return String.valueOf(currentPolicy.get(RedrivePolicy.DEAD_LETTER_TARGET_ARN)).equals(String.valueOf(requestedPolicy.get(RedrivePolicy.DEAD_LETTER_TARGET_ARN)))
+          && String.valueOf(currentPolicy.get(RedrivePolicy.MAX_RECEIVE_COUNT)).equals(String.valueOf(requestedPolicy.get(RedrivePolicy.MAX_RECEIVE_COUNT)));
+    }
+    if (FifoSQSInstance.FIFO_QUEUE.equals(name) || FifoSQSInstance.CONTENT_BASED_DEDUPLICATION.equals(name)) {
+      return Boolean.parseBoolean(current) == Boolean.parseBoolean(requested);
+    }
+    return current.equals(requested == null ? null : requested.trim());
+  }
+
+  /**
+   * @param value policy JSON, e.g. {"maxReceiveCount":"5", "deadLetterTargetArn":"arn:aws:sqs:..."}, empty removes
+   *              the policy
+   */
+  private RedrivePolicy buildRedrivePolicy(SQSInstance instance, String value) {
+    if (value == null || value.isEmpty()) {
+      return null;
+    }
+    Map<?, ?> policy = parsePolicy(value);
+    SQSInstance deadLetterQueue = sqsEngine.getInstanceByArn(String.valueOf(policy.get(RedrivePolicy.DEAD_LETTER_TARGET_ARN)));
+    if (deadLetterQueue.isFifo() != instance.isFifo()) {
+      throw new RuntimeException("Dead letter queue type must match the source queue type : " + deadLetterQueue.getName());
+    }
+    return new RedrivePolicy(deadLetterQueue, parseInt(RedrivePolicy.MAX_RECEIVE_COUNT,
+        String.valueOf(policy.get(RedrivePolicy.MAX_RECEIVE_COUNT))));
+  }
+
+  private static long parseLong(String name, String value) {
+    try {
+      return Long.parseLong(value == null ? null : value.trim());
+    } catch (NumberFormatException e) {
+      throw new InvalidAttributeValueException("Invalid value for the parameter " + name + " : " + value);
+    }
+  }
+
+  private static int parseInt(String name, String value) {
+    try {
+      return Integer.parseInt(value == null ? null : value.trim());
+    } catch (NumberFormatException e) {
+      throw new InvalidAttributeValueException("Invalid value for the parameter " + name + " : " + value);
+    }
+  }
+
+  private static OverflowPolicy parseOverflowPolicy(String value) {
+    try {
+      return OverflowPolicy.valueOf(value);
+    } catch (IllegalArgumentException | NullPointerException e) {
+      throw new InvalidAttributeValueException("Invalid value for the parameter " + SQSInstance.OVERFLOW_POLICY + " : " + value);
+    }
+  }
+
+  private static Map<?, ?> parsePolicy(String value) {
+    try {
+      return JsonMaster.readValue(value, Map.class);
+    } catch (IOException e) {
+      throw new RuntimeException("Redrive policy parsing failed : " + value, e);
+    }
+  }
+}
@@ -1,27 +1,73 @@
 package com.nkttk.core.engine.factories;
 
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.util.BinaryUtils;
+import com.nkttk.core.components.MessageAttribute;
+import com.nkttk.core.components.sqs.entities.ReceivedMessage;
 import com.nkttk.core.components.sqs.entities.SQSMessage;
-import com.nkttk.json.JsonMaster;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- *
+ * Converts between SDK messages and queued messages directly, without any serialization
  */
 public class SQSMessageFactory {
+  public static final String ALL = "All";
+  public static final String SENT_TIMESTAMP = "SentTimestamp";
+  public static final String APPROXIMATE_RECEIVE_COUNT = "ApproximateReceiveCount";
+  public static final String APPROXIMATE_FIRST_RECEIVE_TIMESTAMP = "ApproximateFirstReceiveTimestamp";
+  public static final String MESSAGE_GROUP_ID = "MessageGroupId";
+  public static final String MESSAGE_DEDUPLICATION_ID = "MessageDeduplicationId";
+  public static final String SEQUENCE_NUMBER = "SequenceNumber";
+  private static final Collection<String> ALL_NAMES = Collections.singletonList(ALL);
+
+  /**
+   * Getting from queue, with all attributes
+   * @param message
+   * @return
+   */
+  public static Message buildNativeMessage(ReceivedMessage message){
+    return buildNativeMessage(message, ALL_NAMES, ALL_NAMES);
+  }
+
   /**
    * Getting from queue
    * @param message
+   * @param attributeNames requested system attributes, "All" for all of them
+   * @param messageAttributeNames requested message attributes, "All", ".*" or "prefix.*" patterns are supported
    * @return
    */
-  public static Message buildNativeMessage(SQSMessage message){
-    Message result;
-    try {
-      result = JsonMaster.readValue(message.getBody(), Message.class);
-      result.setReceiptHandle(message.getReceiptHandle());
-    } catch (IOException e) {
-      throw new RuntimeException("SQS message deserialization failed ", e);
+  public static Message buildNativeMessage(ReceivedMessage message, Collection<String> attributeNames, Collection<String> messageAttributeNames){
+    Message result = new Message()
+        .withMessageId(message.getId())
+        .withReceiptHandle(message.getReceiptHandle())
+        .withBody(message.getBody())
+        .withMD5OfBody(message.getMd5OfBody());
+    if (attributeNames != null && !attributeNames.isEmpty()) {
+      addSystemAttribute(result, attributeNames, SENT_TIMESTAMP, Long.toString(message.getSentTimestamp()));
+      addSystemAttribute(result, attributeNames, APPROXIMATE_RECEIVE_COUNT, Integer.toString(message.getReceiveCount()));
+      addSystemAttribute(result, attributeNames, APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, Long.toString(message.getFirstReceiveTimestamp()));
+      if (message.getGroupId() != null) {
+        addSystemAttribute(result, attributeNames, MESSAGE_GROUP_ID, message.getGroupId());
+        addSystemAttribute(result, attributeNames, MESSAGE_DEDUPLICATION_ID, message.getDeduplicationId());
+        addSystemAttribute(result, attributeNames, SEQUENCE_NUMBER, Long.toString(message.getSequenceNumber()));
+      }
+    }
+    if (messageAttributeNames != null && !messageAttributeNames.isEmpty() && !message.getAttributes().isEmpty()) {
+      message.getAttributes().forEach((name, attribute) -> {
+        if (matches(name, messageAttributeNames)) {
+          result.addMessageAttributesEntry(name, toNativeAttribute(attribute));
+        }
+      });
+      if (result.getMessageAttributes() != null && !result.getMessageAttributes().isEmpty()) {
+        result.setMD5OfMessageAttributes(message.getMd5OfAttributes());
+      }
     }
     return result;
   }
@@ -32,11 +78,57 @@ public class SQSMessageFactory {
    * @return
    */
   public static SQSMessage buildMessage(String body){
-    Message message = new Message();
-    message.setBody(body);
-    SQSMessage result = new SQSMessage(JsonMaster.toString(message));
-    result.setReceiptHandle(message.getReceiptHandle());
+    return buildMessage(body, null, null);
+  }
+
+  /**
+   * For putting in FIFO queue
+   * @param body
+   * @param groupId message group, required by FIFO queues
+   * @param deduplicationId may be null for queues with content based deduplication
+   * @return
+   */
+  public static SQSMessage buildMessage(String body, String groupId, String deduplicationId){
+    return buildMessage(body, null, groupId, deduplicationId);
+  }
+
+  public static SQSMessage buildMessage(String body, Map<String, MessageAttributeValue> attributes, String groupId, String deduplicationId){
+    return new SQSMessage(body.getBytes(StandardCharsets.UTF_8), toMessageAttributes(attributes), groupId, deduplicationId);
+  }
+
+  public static Map<String, MessageAttribute> toMessageAttributes(Map<String, MessageAttributeValue> attributes) {
+    if (attributes == null || attributes.isEmpty()) {
+      return null;
+    }
+    Map<String, MessageAttribute> result = new HashMap<>(attributes.size() * 2);
+    attributes.forEach((name, value) -> result.put(name, new MessageAttribute(value.getDataType(), value.getStringValue(),
+        value.getBinaryValue() == null ? null : BinaryUtils.copyAllBytesFrom(value.getBinaryValue()))));
+    return result;
+  }
+
+  public static MessageAttributeValue toNativeAttribute(MessageAttribute attribute) {
+    MessageAttributeValue result = new MessageAttributeValue().withDataType(attribute.getDataType());
+    if (attribute.getStringValue() != null) {
+      result.setStringValue(attribute.getStringValue());
+    } else if (attribute.getBinaryValue() != null) {
+      result.setBinaryValue(ByteBuffer.wrap(attribute.getBinaryValue()));
+    }
     return result;
   }
 
+  private static void addSystemAttribute(Message message, Collection<String> attributeNames, String name, String value) {
+    if (attributeNames.contains(ALL) || attributeNames.contains(name)) {
+      message.addAttributesEntry(name, value);
+    }
+  }
+
+  private static boolean matches(String name, Collection<String> patterns) {
+    for (String pattern : patterns) {
+      if (pattern.equals(ALL) || pattern.equals(".*") || pattern.equals(name)
+          || (pattern.endsWith(".*") && name.startsWith(pattern.substring(0, pattern.length() - 1)))) {
+        return true;
+      }
+    }
+    return false;
+  }
 }
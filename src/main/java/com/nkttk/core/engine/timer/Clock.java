@@ -0,0 +1,31 @@
+package com.nkttk.core.engine.timer;
+
+import java.util.concurrent.locks.Condition;
+
+/**
+ * Time source of an engine and its components. {@link #SYSTEM} follows the wall clock, a {@link VirtualClock} only
+ * moves when advanced.
+ */
+public interface Clock {
+  Clock SYSTEM = new SystemClock();
+
+  long currentTimeMillis();
+
+  /**
+   * @return monotonic time in ns for measuring intervals
+   */
+  long nanoTime();
+
+  /**
+   * Runs the task once the clock reached the given time, on a thread of the clock
+   * @param dueAt time in ms
+   * @return cancels the task if it hasn't run yet and drops its timer
+   */
+  Runnable schedule(long dueAt, Runnable task);
+
+  /**
+   * Waits on the condition, whose lock the caller holds, for up to the given time of this clock. May return early,
+   * callers re-check their deadline with {@link #nanoTime()}.
+   */
+  void awaitNanos(Condition condition, long nanos) throws InterruptedException;
+}
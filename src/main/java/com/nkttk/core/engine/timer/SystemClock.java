@@ -0,0 +1,54 @@
+package com.nkttk.core.engine.timer;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * Wall clock, tasks run on a single daemon thread created on first use. Cancelled tasks leave the executor's queue
+ * right away.
+ */
+class SystemClock implements Clock {
+  private volatile ScheduledThreadPoolExecutor executor;
+
+  @Override
+  public long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  @Override
+  public long nanoTime() {
+    return System.nanoTime();
+  }
+
+  @Override
+  public Runnable schedule(long dueAt, Runnable task) {
+    ScheduledFuture<?> future = getExecutor().schedule(task, Math.max(dueAt - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+    return () -> future.cancel(false);
+  }
+
+  @Override
+  public void awaitNanos(Condition condition, long nanos) throws InterruptedException {
+    condition.awaitNanos(nanos);
+  }
+
+  private ScheduledThreadPoolExecutor getExecutor() {
+    ScheduledThreadPoolExecutor result = executor;
+    if (result == null) {
+      synchronized (this) {
+        if (executor == null) {
+          ScheduledThreadPoolExecutor created = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "haze-clock");
+            thread.setDaemon(true);
+            return thread;
+          });
+          created.setRemoveOnCancelPolicy(true);
+          executor = created;
+        }
+        result = executor;
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,167 @@
+package com.nkttk.core.engine.timer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Hierarchical timer wheel. Inserting an item costs O(1) whatever the number of pending items, due items are
+ * collected per tick in bulk, items far in the future are cascaded to finer levels as time goes by.
+ * <p>
+ * Each level has 64 slots, an item is placed on the level of the highest 6 bit tick group where its due tick differs
+ * from the current tick, into the slot given by that group. Items beyond the top level wait in an overflow list.
+ *
+ * @param <T> scheduled item
+ */
+public class TimerWheel<T> {
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+  private static final int LEVELS = 4;
+
+  private final long tickDuration;
+  private final long startTime;
+  private final List<Entry<T>>[][] wheel;
+  private List<Entry<T>> overflow = new ArrayList<>();
+  private List<T> expired = new ArrayList<>();
+  private long currentTick;
+  private int size;
+
+  /**
+   * @param tickDuration tick length in ms
+   * @param startTime time of the first tick in ms
+   */
+  public TimerWheel(long tickDuration, long startTime) {
+    this.tickDuration = tickDuration;
+    this.startTime = startTime;
+    this.wheel = newWheel();
+  }
+
+  private static <T> List<Entry<T>>[][] newWheel() {
+    @SuppressWarnings("unchecked")
+    List<Entry<T>>[][] wheel = (List<Entry<T>>[][]) new List<?>[LEVELS][SLOTS];
+    return wheel;
+  }
+
+  /**
+   * @param dueAt time in ms the item becomes due, items in the past are returned by the next advance
+   */
+  public synchronized void schedule(long dueAt, T item) {
+    long dueTick = (Math.max(dueAt - startTime, 0) + tickDuration - 1) / tickDuration;
+    size++;
+    place(new Entry<>(dueTick, item));
+  }
+
+  /**
+   * Moves the wheel to the given time
+   * @return items which became due, in due tick order
+   */
+  public synchronized List<T> advance(long now) {
+    long targetTick = (now - startTime) / tickDuration;
+    while (currentTick < targetTick) {
+      if (size == expired.size()) {
+        currentTick = targetTick;
+        break;
+      }
+      currentTick++;
+      cascade();
+      int slot = (int) (currentTick & SLOT_MASK);
+      List<Entry<T>> due = wheel[0][slot];
+      if (due != null) {
+        wheel[0][slot] = null;
+        for (Entry<T> entry : due) {
+          expired.add(entry.item);
+        }
+      }
+    }
+    if (expired.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<T> result = expired;
+    expired = new ArrayList<>();
+    size -= result.size();
+    return result;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Scans every pending item, meant for rare bulk cancellation
+   * @return number of removed items
+   */
+  public synchronized int removeIf(Predicate<? super T> filter) {
+    int removed = 0;
+    for (List<Entry<T>>[] level : wheel) {
+      for (List<Entry<T>> bucket : level) {
+        removed += removeIf(bucket, filter);
+      }
+    }
+    removed += removeIf(overflow, filter);
+    int expiredSize = expired.size();
+    expired.removeIf(filter);
+    removed += expiredSize - expired.size();
+    size -= removed;
+    return removed;
+  }
+
+  private static <T> int removeIf(List<Entry<T>> entries, Predicate<? super T> filter) {
+    if (entries == null) {
+      return 0;
+    }
+    int before = entries.size();
+    entries.removeIf(entry -> filter.test(entry.item));
+    return before - entries.size();
+  }
+
+  private void cascade() {
+    if ((currentTick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0 && !overflow.isEmpty()) {
+      List<Entry<T>> entries = overflow;
+      overflow = new ArrayList<>();
+      entries.forEach(this::place);
+    }
+    for (int level = LEVELS - 1; level > 0; level--) {
+      if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+        continue;
+      }
+      int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+      List<Entry<T>> entries = wheel[level][slot];
+      if (entries != null) {
+        wheel[level][slot] = null;
+        entries.forEach(this::place);
+      }
+    }
+  }
+
+  private void place(Entry<T> entry) {
+    if (entry.dueTick <= currentTick) {
+      expired.add(entry.item);
+      return;
+    }
+    long difference = entry.dueTick ^ currentTick;
+    int level = (63 - Long.numberOfLeadingZeros(difference)) / SLOT_BITS;
+    if (level >= LEVELS) {
+      overflow.add(entry);
+      return;
+    }
+    int slot = (int) ((entry.dueTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+    List<Entry<T>> bucket = wheel[level][slot];
+    if (bucket == null) {
+      bucket = new ArrayList<>();
+      wheel[level][slot] = bucket;
+    }
+    bucket.add(entry);
+  }
+
+  private static class Entry<T> {
+    private final long dueTick;
+    private final T item;
+
+    private Entry(long dueTick, T item) {
+      this.dueTick = dueTick;
+      this.item = item;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.nkttk.core.engine.timer;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * Simulated clock which stands still until advanced. Advancing moves the time from one due timer to the next and runs
+ * each timer on the advancing thread, in due time order and in scheduling order for equal times, so hours of
+ * simulated time pass in as long as the timers take to run.
+ * <p>
+ * Threads waiting on a condition wake up in short real time slices to re-check the simulated time.
+ */
+public class VirtualClock implements Clock {
+  private static final long WAIT_SLICE = TimeUnit.MILLISECONDS.toNanos(5);
+
+  private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+  private final Object advanceLock = new Object();
+  private volatile long now;
+  private long sequence;
+
+  public VirtualClock() {
+    this(System.currentTimeMillis());
+  }
+
+  /**
+   * @param startTime initial time in ms
+   */
+  public VirtualClock(long startTime) {
+    this.now = startTime;
+  }
+
+  @Override
+  public long currentTimeMillis() {
+    return now;
+  }
+
+  @Override
+  public long nanoTime() {
+    return TimeUnit.MILLISECONDS.toNanos(now);
+  }
+
+  @Override
+  public synchronized Runnable schedule(long dueAt, Runnable task) {
+    Timer timer = new Timer(dueAt, sequence++, task);
+    timers.add(timer);
+    return () -> cancel(timer);
+  }
+
+  @Override
+  public void awaitNanos(Condition condition, long nanos) throws InterruptedException {
+    condition.awaitNanos(Math.min(nanos, WAIT_SLICE));
+  }
+
+  /**
+   * @param millis time to move forward, firing all timers due meanwhile
+   */
+  public void advance(long millis) {
+    synchronized (advanceLock) {
+      advanceTo(now + millis);
+    }
+  }
+
+  /**
+   * Moves to the given time, firing all timers due until then. Timers scheduled by the fired ones run as well if
+   * they are due.
+   */
+  public void advanceTo(long time) {
+    synchronized (advanceLock) {
+      while (true) {
+        Timer next;
+        synchronized (this) {
+          next = timers.peek();
+          if (next == null || next.dueAt > time) {
+            now = Math.max(now, time);
+            return;
+          }
+          timers.poll();
+          now = Math.max(now, next.dueAt);
+        }
+        next.task.run();
+      }
+    }
+  }
+
+  private synchronized void cancel(Timer timer) {
+    timers.remove(timer);
+  }
+
+  /**
+   * @return number of timers not fired or cancelled yet
+   */
+  public synchronized int getPendingTimerCount() {
+    return timers.size();
+  }
+
+  private static class Timer implements Comparable<Timer> {
+    private final long dueAt;
+    private final long sequence;
+    private final Runnable task;
+
+    private Timer(long dueAt, long sequence, Runnable task) {
+      this.dueAt = dueAt;
+      this.sequence = sequence;
+      this.task = task;
+    }
+
+    @Override
+    public int compareTo(Timer other) {
+      int result = Long.compare(dueAt, other.dueAt);
+      return result != 0 ? result : Long.compare(sequence, other.sequence);
+    }
+  }
+}
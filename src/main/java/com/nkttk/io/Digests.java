@@ -0,0 +1,36 @@
+package com.nkttk.io;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hex encoded message digests
+ */
+public class Digests {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  public static String md5Hex(byte[] content) {
+    return toHex(digest("MD5").digest(content));
+  }
+
+  public static String sha256Hex(byte[] content) {
+    return toHex(digest("SHA-256").digest(content));
+  }
+
+  public static MessageDigest digest(String algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(algorithm + " is not available", e);
+    }
+  }
+
+  public static String toHex(byte[] bytes) {
+    char[] result = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      result[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+      result[i * 2 + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(result);
+  }
+}
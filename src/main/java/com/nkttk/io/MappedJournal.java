@@ -0,0 +1,262 @@
+package com.nkttk.io;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Append-only store of byte records in fixed size memory-mapped segment files, so the records don't occupy the heap.
+ * <p>
+ * Every segment counts its live records, a segment which is full and whose records were all released goes back to a
+ * free pool and is overwritten by later appends, the number of files grows only with the live data. Segments freed
+ * beyond the pool size are unmapped and their files deleted, as are all segments once the journal is closed and their
+ * records released.
+ */
+public class MappedJournal {
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  private static final int MAX_FREE_SEGMENTS = 1;
+  private static final Consumer<MappedByteBuffer> UNMAPPER = unmapper();
+
+  private final Path directory;
+  private final int segmentSize;
+  private final Queue<Segment> freeSegments = new ConcurrentLinkedQueue<>();
+  private final Set<Segment> segments = ConcurrentHashMap.newKeySet();
+  private Segment active;
+  private boolean closed;
+
+  public MappedJournal(Path directory) {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  public MappedJournal(Path directory, int segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+  }
+
+  public synchronized Entry append(byte[] data) {
+    if (closed) {
+      throw new RuntimeException("Journal is closed : " + directory);
+    }
+    if (data.length > segmentSize) {
+      throw new RuntimeException("Record of " + data.length + " bytes doesn't fit into a journal segment of " + segmentSize);
+    }
+    Segment segment = active;
+    if (segment == null || segment.position + data.length > segmentSize) {
+      if (segment != null) {
+        segment.release();
+      }
+      segment = nextSegment();
+      active = segment;
+    }
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(segment.position);
+    buffer.put(data);
+    Entry entry = new Entry(segment, segment.epoch, segment.position, data.length);
+    segment.position += data.length;
+    segment.live.incrementAndGet();
+    return entry;
+  }
+
+  /**
+   * @return number of segment files, in use or free
+   */
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  public int getFreeSegmentCount() {
+    return freeSegments.size();
+  }
+
+  /**
+   * Unmaps and deletes the free segments right away, the others once their last record is released. Appending
+   * afterwards fails.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    Segment segment;
+    while ((segment = freeSegments.poll()) != null) {
+      segment.retire();
+    }
+    if (active != null) {
+      active.release();
+      active = null;
+    }
+  }
+
+  private Segment nextSegment() {
+    Segment segment = freeSegments.poll();
+    if (segment == null) {
+      segment = createSegment();
+      segments.add(segment);
+      return segment;
+    }
+    segment.epoch++;
+    segment.position = 0;
+    segment.live.set(1);
+    return segment;
+  }
+
+  private Segment createSegment() {
+    try {
+      Files.createDirectories(directory);
+      Path file = Files.createTempFile(directory, "segment-", ".journal");
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Journal segment creation failed in " + directory, e);
+    }
+  }
+
+  /**
+   * Frees a segment whose records were all released: back to the pool, or unmapped if the pool is full or closed
+   */
+  private synchronized void recycle(Segment segment) {
+    if (!closed && freeSegments.size() < MAX_FREE_SEGMENTS) {
+      freeSegments.offer(segment);
+    } else {
+      segment.retire();
+    }
+  }
+
+  /**
+   * Unmaps buffers right away where the JDK allows it, otherwise the mapping goes with the buffer once collected
+   */
+  private static Consumer<MappedByteBuffer> unmapper() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      Object unsafe = field.get(null);
+      return buffer -> {
+        try {
+          invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException e) {
+          throw new RuntimeException("Journal segment can't be unmapped", e);
+        }
+      };
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return buffer -> {
+      };
+    }
+  }
+
+  /**
+   * Location of a record, reading it after release fails instead of returning another record's bytes
+   */
+  public static class Entry {
+    private final Segment segment;
+    private final int epoch;
+    private final int offset;
+    private final int length;
+
+    private Entry(Segment segment, int epoch, int offset, int length) {
+      this.segment = segment;
+      this.epoch = epoch;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public byte[] read() {
+      byte[] result = new byte[length];
+      if (!segment.pin()) {
+        throw new RuntimeException("Journal entry was released");
+      }
+      try {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset);
+        buffer.get(result);
+      } finally {
+        segment.unpin();
+      }
+      if (segment.epoch != epoch) {
+        throw new RuntimeException("Journal entry was released");
+      }
+      return result;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    /**
+     * Must be called once per entry
+     */
+    public void release() {
+      segment.release();
+    }
+  }
+
+  /**
+   * The live count includes one reference held while the segment is appended to, so it drops to zero only once the
+   * segment is both full and empty. Reads pin the segment, so it's never unmapped under a read in progress.
+   */
+  private class Segment {
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final AtomicInteger live = new AtomicInteger(1);
+    /**
+     * Number of reads in progress, -1 once unmapped
+     */
+    private final AtomicInteger pins = new AtomicInteger();
+    private volatile int epoch;
+    private int position;
+
+    private Segment(Path file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    private void release() {
+      if (live.decrementAndGet() == 0) {
+        recycle(this);
+      }
+    }
+
+    private boolean pin() {
+      int count;
+      do {
+        count = pins.get();
+        if (count < 0) {
+          return false;
+        }
+      } while (!pins.compareAndSet(count, count + 1));
+      return true;
+    }
+
+    private void unpin() {
+      pins.decrementAndGet();
+    }
+
+    private void retire() {
+      epoch++;
+      while (!pins.compareAndSet(0, -1)) {
+        Thread.yield();
+      }
+      segments.remove(this);
+      UNMAPPER.accept(buffer);
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        throw new RuntimeException("Journal segment can't be deleted : " + file, e);
+      }
+    }
+  }
+}
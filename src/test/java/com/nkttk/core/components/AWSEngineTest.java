@@ -1,14 +1,41 @@
 package com.nkttk.core.components;
 
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.nkttk.core.components.events.BucketEventType;
+import com.nkttk.core.components.events.SNSEvent;
 import com.nkttk.core.components.sns.SNSTopic;
+import com.nkttk.core.components.sns.Subscription;
+import com.nkttk.core.components.sns.entities.SNSMessage;
+import com.nkttk.core.components.sqs.InvalidAttributeValueException;
+import com.nkttk.core.components.sqs.OverflowPolicy;
+import com.nkttk.core.components.sqs.QueueAlreadyExistsException;
+import com.nkttk.core.components.sqs.SQSInstance;
+import com.nkttk.core.components.sqs.entities.ReceivedMessage;
+import com.nkttk.core.components.sqs.entities.SQSMessage;
 import com.nkttk.core.engine.AWSEngine;
+import com.nkttk.json.JsonMaster;
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  *
  */
@@ -30,6 +57,36 @@ public class AWSEngineTest {
 
   }
 
+  @Test
+  public void testAddExistingSQS() throws Exception {
+    SQSInstance queue = engine.addSQS("existing", Collections.singletonMap("VisibilityTimeout", "30"));
+    Assert.assertSame(engine.addSQS("existing", Collections.singletonMap("VisibilityTimeout", "30")), queue);
+    Assert.assertSame(engine.addSQS("existing"), queue);
+    try {
+      engine.addSQS("existing", Collections.singletonMap("VisibilityTimeout", "60"));
+      Assert.fail("Queue was recreated with a different visibility timeout");
+    } catch (QueueAlreadyExistsException e) {
+      Assert.assertEquals(queue.getMessageLockInterval(), 30000);
+    }
+  }
+
+  @Test
+  public void testInvalidSQSAttribute() throws Exception {
+    try {
+      engine.addSQS("invalid", Collections.singletonMap("VisibilityTimeout", "thirty"));
+      Assert.fail("Queue was created with an unparseable visibility timeout");
+    } catch (InvalidAttributeValueException e) {
+      Assert.assertTrue(e.getMessage().contains("VisibilityTimeout"));
+    }
+    SQSInstance queue = engine.addSQS("invalid");
+    try {
+      engine.setSQSAttributes(queue.getEndpointURL(), Collections.singletonMap(SQSInstance.OVERFLOW_POLICY, "SOMETIMES"));
+      Assert.fail("Unknown overflow policy was accepted");
+    } catch (InvalidAttributeValueException e) {
+      Assert.assertTrue(e.getMessage().contains(SQSInstance.OVERFLOW_POLICY));
+    }
+  }
+
   @Test
   public void testAddSNS() throws Exception {
     String topic = "topic_name";
@@ -42,8 +99,226 @@ public class AWSEngineTest {
   }
 
   @Test
-  public void testGetSQSMessage() throws Exception {
+  public void testSNSSubscriptions() throws Exception {
+    SNSTopic topic = engine.createSNSTopic("subscriptions");
+    SQSInstance first = engine.addSQS("first");
+    SQSInstance second = engine.addSQS("second");
+    Subscription firstSubscription = engine.subscribeSNS(topic.getArn(), AWSEngine.SQS_PROTOCOL, first.getArn());
+    Subscription secondSubscription = engine.subscribeSNS(topic.getArn(), AWSEngine.SQS_PROTOCOL, second.getArn());
+    Assert.assertSame(engine.subscribeSNS(topic.getArn(), AWSEngine.SQS_PROTOCOL, first.getArn()), firstSubscription);
+
+    List<Subscription> page = engine.listSNSSubscriptions(topic.getArn(), 0, 1);
+    Assert.assertEquals(page, Collections.singletonList(firstSubscription));
+    engine.unsubscribeSNS(firstSubscription.getArn());
+    Assert.assertEquals(engine.listSNSSubscriptions(topic.getArn(), secondSubscription.getSequence(), 1),
+        Collections.singletonList(secondSubscription));
+
+    engine.setSNSSubscriptionAttribute(secondSubscription.getArn(), AWSEngine.SNS_RAW_MESSAGE_DELIVERY, "true");
+    engine.publishSNSMessage(topic.getArn(), "hello", null);
+    Assert.assertEquals(second.getMessages(10, 0).get(0).getBody(), "hello");
+    Assert.assertTrue(first.getMessages(10, 0).isEmpty());
+  }
+
+  @Test
+  public void testSNSFanOutSharesPayload() throws Exception {
+    SNSTopic topic = engine.createSNSTopic("fan_out");
+    SQSInstance first = engine.addSQS("fan_out_first");
+    SQSInstance second = engine.addSQS("fan_out_second");
+    Subscription firstSubscription = engine.subscribeSNS(topic.getArn(), AWSEngine.SQS_PROTOCOL, first.getArn());
+    Subscription secondSubscription = engine.subscribeSNS(topic.getArn(), AWSEngine.SQS_PROTOCOL, second.getArn());
+    engine.publishSNSMessage(topic.getArn(), "hello", null);
+    ReceivedMessage fromFirst = first.getMessages(1, 0).get(0);
+    ReceivedMessage fromSecond = second.getMessages(1, 0).get(0);
+    Assert.assertNotEquals(fromFirst.getId(), fromSecond.getId());
+    Assert.assertSame(fromFirst.getBodyBytes(), fromSecond.getBodyBytes());
+    Assert.assertSame(fromFirst.getMd5OfBody(), fromSecond.getMd5OfBody());
 
+    engine.setSNSSubscriptionAttribute(firstSubscription.getArn(), AWSEngine.SNS_RAW_MESSAGE_DELIVERY, "true");
+    engine.setSNSSubscriptionAttribute(secondSubscription.getArn(), AWSEngine.SNS_RAW_MESSAGE_DELIVERY, "true");
+    engine.publishSNSMessage(topic.getArn(), "hello", null);
+    fromFirst = first.getMessages(1, 0).get(0);
+    fromSecond = second.getMessages(1, 0).get(0);
+    Assert.assertSame(fromFirst.getBodyBytes(), fromSecond.getBodyBytes());
+    Assert.assertEquals(fromFirst.getMd5OfBody(), "5d41402abc4b2a76b9719d911017c592");
+  }
+
+  @Test
+  public void testSNSEnvelope() throws Exception {
+    SNSTopic topic = engine.createSNSTopic("envelope");
+    SQSInstance queue = engine.addSQS("envelope_queue");
+    engine.subscribeSNS(topic.getArn(), AWSEngine.SQS_PROTOCOL, queue.getArn());
+    String body = "{\"quote\": \"\\\"\", \"lines\": \"a\nb\t\u0001\", \"text\": \"h\u00e9llo \u20ac \ud83d\ude00\"}";
+    Map<String, MessageAttribute> attributes = new LinkedHashMap<>();
+    attributes.put("kind", new MessageAttribute("String", "order \"new\"", null));
+    attributes.put("blob", new MessageAttribute("Binary", null, new byte[]{1, 2, 3}));
+    String id = engine.publishSNSMessage(topic.getUrl(), body, null);
+    engine.publishSNSMessages(topic.getUrl(), Collections.singletonList(new SNSMessage(body, attributes)));
+
+    JsonNode plain = JsonMaster.om().readTree(queue.getMessages(1, 0).get(0).getBody());
+    Assert.assertEquals(plain.get("Type").asText(), "Notification");
+    Assert.assertEquals(plain.get("MessageId").asText(), id);
+    Assert.assertEquals(plain.get("TopicArn").asText(), topic.getArn());
+    Assert.assertEquals(plain.get("Message").asText(), body);
+    Assert.assertTrue(plain.get("Timestamp").asText().matches("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}\\.\\d{3}Z"));
+    Assert.assertFalse(plain.has("MessageAttributes"));
+
+    JsonNode withAttributes = JsonMaster.om().readTree(queue.getMessages(1, 0).get(0).getBody());
+    Assert.assertEquals(withAttributes.get("Message").asText(), body);
+    Assert.assertEquals(withAttributes.at("/MessageAttributes/kind/Type").asText(), "String");
+    Assert.assertEquals(withAttributes.at("/MessageAttributes/kind/Value").asText(), "order \"new\"");
+    Assert.assertEquals(withAttributes.at("/MessageAttributes/blob/Type").asText(), "Binary");
+    Assert.assertEquals(withAttributes.at("/MessageAttributes/blob/Value").asText(), "AQID");
+  }
+
+  @Test
+  public void testPublishSNSBatch() throws Exception {
+    SNSTopic topic = engine.createSNSTopic("batch");
+    SQSInstance all = engine.addSQS("batch_all");
+    SQSInstance filtered = engine.addSQS("batch_filtered");
+    Subscription allSubscription = engine.subscribeSNS(topic.getArn(), AWSEngine.SQS_PROTOCOL, all.getArn());
+    Subscription filteredSubscription = engine.subscribeSNS(topic.getArn(), AWSEngine.SQS_PROTOCOL, filtered.getArn());
+    engine.setSNSSubscriptionAttribute(allSubscription.getArn(), AWSEngine.SNS_RAW_MESSAGE_DELIVERY, "true");
+    engine.setSNSSubscriptionAttribute(filteredSubscription.getArn(), AWSEngine.SNS_RAW_MESSAGE_DELIVERY, "true");
+    engine.setSNSFilterPolicy(filteredSubscription.getArn(), "{\"kind\": [\"keep\"]}");
+    List<String> received = new ArrayList<>();
+    engine.addSNSSubscriber("batch", received::add);
+
+    List<SNSMessage> messages = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      messages.add(new SNSMessage("m" + i, Collections.singletonMap("kind",
+          new MessageAttribute("String", i % 10 == 0 ? "keep" : "skip", null))));
+    }
+    List<String> ids = engine.publishSNSMessages(topic.getUrl(), messages);
+    Assert.assertEquals(ids.size(), 100);
+    Assert.assertEquals(ids.get(42), messages.get(42).getId());
+    Assert.assertEquals(received.size(), 100);
+    Assert.assertEquals(all.getMessages(10, 0).get(0).getBody(), "m0");
+    List<ReceivedMessage> kept = filtered.getMessages(10, 0);
+    Assert.assertEquals(kept.size(), 10);
+    Assert.assertEquals(kept.get(9).getBody(), "m90");
+  }
+
+  @Test(timeOut = 10000)
+  public void testLoadConfigSubscriptions() throws Exception {
+    List<String> messages = Collections.synchronizedList(new ArrayList<>());
+    engine.setLambdaBuilder(name -> new BlockingSNSHandler(new CountDownLatch(0), new AtomicInteger(), new AtomicInteger(),
+        messages));
+    String config = "{\"Resources\": {"
+        + "\"Queue\": {\"Type\": \"AWS::SQS::Queue\", \"Properties\": {\"QueueName\": \"config_queue\"}},"
+        + "\"Function\": {\"Type\": \"AWS::Lambda::Function\", \"Properties\": {\"FunctionName\": \"config_function\"}},"
+        + "\"Topic\": {\"Type\": \"AWS::SNS::Topic\", \"Properties\": {\"TopicName\": \"config_topic\", \"Subscription\": ["
+        + "{\"Endpoint\": {\"Fn::GetAtt\": [\"Queue\", \"Arn\"]}, \"Protocol\": \"sqs\"},"
+        + "{\"Endpoint\": {\"Fn::GetAtt\": [\"Function\", \"Arn\"]}, \"Protocol\": \"lambda\"}]}}}}";
+    engine.loadConfig(new ByteArrayInputStream(config.getBytes(StandardCharsets.UTF_8)));
+
+    engine.publishSNSMessage(SNSTopic.ARN_PREFIX + "config_topic", "hello", null);
+    SQSInstance queue = engine.addSQS("config_queue");
+    Assert.assertEquals(JsonMaster.om().readTree(queue.getMessages(1, 0).get(0).getBody()).get("Message").asText(), "hello");
+    while (messages.isEmpty()) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(messages.get(0), "hello");
+  }
+
+  @Test(timeOut = 10000)
+  public void testAsyncSQSSubscription() throws Exception {
+    SNSTopic topic = engine.createSNSTopic("slow_topic");
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put(SQSInstance.MAX_MESSAGES, "1");
+    attributes.put(SQSInstance.OVERFLOW_POLICY, OverflowPolicy.BLOCK.name());
+    attributes.put(SQSInstance.OVERFLOW_TIMEOUT_MILLIS, "5000");
+    SQSInstance slow = engine.addSQS("slow_queue", attributes);
+    Subscription subscription = engine.subscribeSNS(topic.getArn(), AWSEngine.SQS_PROTOCOL, slow.getArn(), 10);
+    engine.setSNSSubscriptionAttribute(subscription.getArn(), AWSEngine.SNS_RAW_MESSAGE_DELIVERY, "true");
+    Assert.assertTrue(subscription.isAsync());
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 3; i++) {
+      engine.publishSNSMessage(topic.getArn(), "m" + i, null);
+    }
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    for (int i = 0; i < 3; i++) {
+      ReceivedMessage message = slow.getMessages(1, 2000).get(0);
+      Assert.assertEquals(message.getBody(), "m" + i);
+      slow.deleteMessage(message.getReceiptHandle());
+    }
+    Assert.assertEquals(subscription.getFailedCount(), 0);
+  }
+
+  @Test(timeOut = 10000)
+  public void testSNSLambdaSubscriptions() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+    Map<String, AtomicInteger> maxRunning = new ConcurrentHashMap<>();
+    List<String> messages = Collections.synchronizedList(new ArrayList<>());
+    engine.setLambdaBuilder(name -> new BlockingSNSHandler(release, running.computeIfAbsent(name, n -> new AtomicInteger()),
+        maxRunning.computeIfAbsent(name, n -> new AtomicInteger()), messages));
+    SNSTopic topic = engine.createSNSTopic("lambda_topic");
+    engine.subscribeSNS(topic.getArn(), AWSEngine.LAMBDA_PROTOCOL, "capped");
+    engine.subscribeSNS(topic.getArn(), AWSEngine.LAMBDA_PROTOCOL, "arn:aws:lambda:us-east-1:000000000000:function:other");
+    engine.setLambdaConcurrency("capped", 2);
+
+    for (int i = 0; i < 5; i++) {
+      engine.publishSNSMessage(topic.getArn(), "m" + i, null);
+    }
+    while (running.get("capped") == null || running.get("capped").get() < 2
+        || running.get("other") == null || running.get("other").get() < 5) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(messages.isEmpty());
+    release.countDown();
+    while (messages.size() < 10) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(maxRunning.get("capped").get(), 2);
+    Assert.assertEquals(maxRunning.get("other").get(), 5);
+  }
+
+  @Test(timeOut = 10000)
+  public void testFailedSNSLambdaDeadLettered() throws Exception {
+    AtomicInteger invocations = new AtomicInteger();
+    engine.setLambdaBuilder(name -> new FailingSNSHandler(invocations));
+    SNSTopic topic = engine.createSNSTopic("failing_lambda_topic");
+    SQSInstance deadLetterQueue = engine.addSQS("failing_lambda_dlq");
+    Subscription subscription = engine.subscribeSNS(topic.getArn(), AWSEngine.LAMBDA_PROTOCOL, "failing");
+    engine.setSNSSubscriptionAttribute(subscription.getArn(), AWSEngine.SNS_DELIVERY_POLICY,
+        "{\"healthyRetryPolicy\": {\"numRetries\": 2, \"numNoDelayRetries\": 2}}");
+    engine.setSNSSubscriptionAttribute(subscription.getArn(), AWSEngine.SNS_REDRIVE_POLICY,
+        "{\"deadLetterTargetArn\":\"" + deadLetterQueue.getArn() + "\"}");
+
+    engine.publishSNSMessage(topic.getArn(), "hello", null);
+    while (subscription.getDeadLetteredCount() == 0) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(invocations.get(), 3);
+    Assert.assertEquals(deadLetterQueue.getMessages(1, 0).get(0).getBody(), "hello");
+  }
+
+  @Test
+  public void testRedrivePolicy() throws Exception {
+    SQSInstance source = engine.addSQS("source");
+    SQSInstance deadLetterQueue = engine.addSQS("source_dlq");
+    engine.setSQSAttributes(source.getEndpointURL(), Collections.singletonMap("RedrivePolicy",
+        "{\"maxReceiveCount\":\"3\", \"deadLetterTargetArn\":\"" + deadLetterQueue.getArn() + "\"}"));
+    Assert.assertEquals(source.getRedrivePolicy().getMaxReceiveCount(), 3);
+    Assert.assertEquals(engine.getSQSDeadLetterSourceQueues(deadLetterQueue.getEndpointURL()),
+        Collections.singletonList(source.getEndpointURL()));
+  }
+
+  @Test
+  public void testGetSQSMessage() throws Exception {
+    SQSInstance queue = engine.addSQS("attributes");
+    MessageAttributeValue attribute = new MessageAttributeValue().withDataType("String").withStringValue("value");
+    SQSMessage sent = engine.publishSQSMessage(queue.getEndpointURL(), "hello", Collections.singletonMap("name", attribute),
+        null, null, null);
+    Message message = engine.receiveSQSMessages(queue.getEndpointURL(), 1, 0, null).get(0);
+    Assert.assertEquals(message.getMessageId(), sent.getId());
+    Assert.assertEquals(message.getBody(), "hello");
+    Assert.assertEquals(message.getMD5OfBody(), "5d41402abc4b2a76b9719d911017c592");
+    Assert.assertEquals(message.getMessageAttributes().get("name"), attribute);
+    Assert.assertEquals(message.getMD5OfMessageAttributes(), "25ada41cad9d6e55ad5a2b3d2da508a2");
+    Assert.assertEquals(sent.getMd5OfAttributes(), "25ada41cad9d6e55ad5a2b3d2da508a2");
+    Assert.assertEquals(message.getAttributes().get("ApproximateReceiveCount"), "1");
   }
 
   @Test
@@ -73,4 +348,45 @@ public class AWSEngineTest {
     //    engine.runLambda("test_name", ByteBuffer.wrap("Lambda args".getBytes()));
   }
 
-}
\ No newline at end of file
+
+  private static class FailingSNSHandler implements RequestHandler<SNSEvent, String> {
+    private final AtomicInteger invocations;
+
+    private FailingSNSHandler(AtomicInteger invocations) {
+      this.invocations = invocations;
+    }
+
+    @Override
+    public String handleRequest(SNSEvent event, Context context) {
+      invocations.incrementAndGet();
+      throw new IllegalStateException("broken");
+    }
+  }
+
+  private static class BlockingSNSHandler implements RequestHandler<SNSEvent, String> {
+    private final CountDownLatch release;
+    private final AtomicInteger running;
+    private final AtomicInteger maxRunning;
+    private final List<String> messages;
+
+    private BlockingSNSHandler(CountDownLatch release, AtomicInteger running, AtomicInteger maxRunning, List<String> messages) {
+      this.release = release;
+      this.running = running;
+      this.maxRunning = maxRunning;
+      this.messages = messages;
+    }
+
+    @Override
+    public String handleRequest(SNSEvent event, Context context) {
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      messages.add(event.getRecords().get(0).getSns().getMessage());
+      running.decrementAndGet();
+      return "ok";
+    }
+  }
+}
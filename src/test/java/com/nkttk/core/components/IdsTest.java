@@ -0,0 +1,53 @@
+package com.nkttk.core.components;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class IdsTest {
+  @Test
+  public void testFormat() {
+    UUID uuid = UUID.randomUUID();
+    assertEquals(Ids.format(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()), uuid.toString());
+    UUID id = UUID.fromString(Ids.next());
+    assertEquals(id.version(), 4);
+    assertEquals(id.variant(), 2);
+  }
+
+  @Test
+  public void testUniqueAndMonotonicPerThread() throws Exception {
+    Set<String> ids = ConcurrentHashMap.newKeySet();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        futures.add(executor.submit(() -> {
+          String previous = Ids.next();
+          ids.add(previous);
+          for (int j = 0; j < 10000; j++) {
+            String id = Ids.next();
+            assertTrue(id.compareTo(previous) > 0);
+            ids.add(id);
+            previous = id;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(ids.size(), 4 * 10001);
+  }
+}
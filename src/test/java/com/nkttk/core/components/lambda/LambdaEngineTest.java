@@ -1,7 +1,30 @@
 package com.nkttk.core.components.lambda;
 
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.nkttk.core.components.events.SQSEvent;
+import com.nkttk.core.components.sqs.SQSInstance;
+import com.nkttk.core.components.sqs.entities.SQSMessage;
+import com.nkttk.core.engine.timer.VirtualClock;
 import org.testng.annotations.Test;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
 public class LambdaEngineTest {
   @Test
   public void testAddLambda() throws Exception {
@@ -13,4 +36,126 @@ public class LambdaEngineTest {
 
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testEventSourceMapping() throws Exception {
+    SQSInstance queue = new SQSInstance("lambda-source");
+    LambdaBuilder builder = new LambdaBuilder();
+    builder.setProduceFunction(name -> new FailingHandler());
+    LambdaEngine engine = new LambdaEngine(builder);
+    for (int i = 0; i < 5; i++) {
+      queue.putMessage(new SQSMessage(i == 3 ? "bad" : "good"));
+    }
+
+    EventSourceMapping mapping = engine.createEventSourceMapping("consumer", queue, 10, 100, 2);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (mapping.getProcessedCount() + mapping.getFailedCount() < 5 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(mapping.getProcessedCount(), 4);
+    assertEquals(mapping.getFailedCount(), 1);
+    assertTrue(mapping.getInvocationCount() >= 1);
+    assertEquals(queue.getApproximateNumberOfMessages(), 0);
+    assertEquals(queue.getApproximateNumberOfMessagesNotVisible(), 1);
+    assertTrue(engine.deleteEventSourceMapping(mapping.getUUID()).isPresent());
+    assertFalse(mapping.isRunning());
+    assertFalse(engine.getEventSourceMapping(mapping.getUUID()).isPresent());
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    SQSInstance queue = new SQSInstance("lambda-source");
+    LambdaBuilder builder = new LambdaBuilder();
+    builder.setProduceFunction(name -> new FailingHandler());
+    LambdaEngine engine = new LambdaEngine(builder);
+    EventSourceMapping mapping = engine.createEventSourceMapping("consumer", queue, 10, 100, 2);
+    engine.shutdown();
+    assertFalse(mapping.isRunning());
+    assertTrue(engine.getEventSourceMappings().isEmpty());
+    queue.putMessage(new SQSMessage("good"));
+    Thread.sleep(200);
+    assertEquals(queue.getApproximateNumberOfMessages(), 1);
+    assertEquals(mapping.getInvocationCount(), 0);
+
+    CompletableFuture<ByteBuffer> result = engine.invokeAsync("consumer", ByteBuffer.wrap("{}".getBytes()));
+    try {
+      result.get(5, TimeUnit.SECONDS);
+      fail("Invocation should be rejected after shutdown");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    assertEquals(engine.getRunningInvocations("consumer"), 0);
+    assertEquals(engine.getPendingInvocations("consumer"), 0);
+  }
+
+  @Test
+  public void testFunctionTimeout() throws Exception {
+    VirtualClock clock = new VirtualClock();
+    CountDownLatch started = new CountDownLatch(1);
+    LambdaBuilder builder = new LambdaBuilder();
+    builder.setProduceFunction(name -> new BlockingHandler(started));
+    LambdaEngine engine = new LambdaEngine(builder, clock);
+    engine.setFunctionTimeout("blocking", 3000);
+
+    CompletableFuture<ByteBuffer> result = engine.invokeAsync("blocking", ByteBuffer.wrap("{}".getBytes()));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    clock.advance(2999);
+    assertFalse(result.isDone());
+    clock.advance(1);
+    try {
+      result.get(5, TimeUnit.SECONDS);
+      fail("Invocation should time out");
+    } catch (ExecutionException e) {
+      assertEquals(e.getCause().getMessage(), "blocking Task timed out after 3.00 seconds");
+    }
+    engine.shutdown();
+  }
+
+  @Test
+  public void testFunctionTimeoutCancelledOnCompletion() throws Exception {
+    VirtualClock clock = new VirtualClock();
+    LambdaBuilder builder = new LambdaBuilder();
+    builder.setProduceFunction(name -> new FailingHandler());
+    LambdaEngine engine = new LambdaEngine(builder, clock);
+    engine.setFunctionTimeout("quick", 3000);
+    for (int i = 0; i < 3; i++) {
+      engine.runLambda("quick", ByteBuffer.wrap("{\"records\":[]}".getBytes()));
+    }
+    assertEquals(clock.getPendingTimerCount(), 0);
+    engine.shutdown();
+  }
+
+  private static class BlockingHandler implements RequestHandler<SQSEvent, String> {
+    private final CountDownLatch started;
+
+    private BlockingHandler(CountDownLatch started) {
+      this.started = started;
+    }
+
+    @Override
+    public String handleRequest(SQSEvent event, Context context) {
+      started.countDown();
+      try {
+        new CountDownLatch(1).await();
+        return "done";
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupted", e);
+      }
+    }
+  }
+
+  private static class FailingHandler implements RequestHandler<SQSEvent, Map<String, Object>> {
+    @Override
+    public Map<String, Object> handleRequest(SQSEvent event, Context context) {
+      List<Map<String, String>> failures = new ArrayList<>();
+      for (SQSEvent.SQSEventRecord record : event.getRecords()) {
+        if (record.getBody().equals("bad")) {
+          failures.add(Collections.singletonMap("itemIdentifier", record.getMessageId()));
+        }
+      }
+      Map<String, Object> response = new HashMap<>();
+      response.put("batchItemFailures", failures);
+      return response;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package com.nkttk.core.components.sns;
+
+import com.nkttk.core.components.MessageAttribute;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+public class FilterIndexTest {
+    @Test
+    public void testFilterPolicies() throws Exception {
+        SNSTopic topic = new SNSTopic("topic");
+        Map<String, List<String>> received = new HashMap<>();
+        Subscription all = subscribe(topic, "all", received);
+        topic.setFilterPolicy(subscribe(topic, "exact", received), "{\"store\": [\"example_corp\", \"other_corp\"]}");
+        topic.setFilterPolicy(subscribe(topic, "prefix", received), "{\"event\": [{\"prefix\": \"order-\"}]}");
+        topic.setFilterPolicy(subscribe(topic, "numeric", received), "{\"price\": [{\"numeric\": [\">=\", 100, \"<\", 200]}, 500]}");
+        topic.setFilterPolicy(subscribe(topic, "anythingBut", received), "{\"store\": [{\"anything-but\": [\"example_corp\"]}]}");
+        topic.setFilterPolicy(subscribe(topic, "absent", received), "{\"store\": [{\"exists\": false}]}");
+        topic.setFilterPolicy(subscribe(topic, "combined", received),
+            "{\"store\": [{\"exists\": true}], \"event\": [\"order-placed\"], \"price\": [{\"numeric\": [\">\", 0]}]}");
+
+        topic.publishMessage("m1", attributes("store", "String", "example_corp", "event", "String", "order-placed", "price", "Number", "150"));
+        topic.publishMessage("m2", attributes("store", "String", "shop", "price", "Number.float", "500"));
+        topic.publishMessage("m3", attributes("event", "String", "refund", "price", "String", "150"));
+        topic.publishMessage("m4", attributes("store", "String.Array", "[\"shop\", \"other_corp\"]"));
+        topic.publishMessage("m5", null);
+
+        assertEquals(received.get("all").size(), 5);
+        assertEquals(received.get("exact").toString(), "[m1, m4]");
+        assertEquals(received.get("prefix").toString(), "[m1]");
+        assertEquals(received.get("numeric").toString(), "[m1, m2]");
+        assertEquals(received.get("anythingBut").toString(), "[m2, m4]");
+        assertEquals(received.get("absent").toString(), "[m3, m5]");
+        assertEquals(received.get("combined").toString(), "[m1]");
+        assertNull(all.getFilterPolicy());
+
+        Subscription exact = topic.getSubscription(topic.getSubscriptions().get(1).getArn());
+        topic.setFilterPolicy(exact, null);
+        topic.publishMessage("m6", null);
+        assertEquals(received.get("exact").toString(), "[m1, m4, m6]");
+    }
+
+    @Test
+    public void testInvalidPolicy() throws Exception {
+        SNSTopic topic = new SNSTopic("topic");
+        Subscription subscription = topic.addSubscriber(message -> { });
+        topic.setFilterPolicy(subscription, "{\"store\": [\"shop\"]}");
+        for (String invalid : new String[]{"[]", "{\"store\": \"shop\"}", "{\"store\": [{\"suffix\": \"x\"}]}",
+            "{\"price\": [{\"numeric\": [\"~\", 1]}]}", "{\"price\": [{\"numeric\": [\"=\", 1, \"<\", 5]}]}",
+            "{not json"}) {
+            try {
+                topic.setFilterPolicy(subscription, invalid);
+                fail("Accepted " + invalid);
+            } catch (RuntimeException e) {
+                assertEquals(subscription.getFilterPolicy().getJson(), "{\"store\": [\"shop\"]}");
+            }
+        }
+    }
+
+    private static Subscription subscribe(SNSTopic topic, String name, Map<String, List<String>> received) {
+        List<String> messages = new ArrayList<>();
+        received.put(name, messages);
+        return topic.addSubscriber(messages::add);
+    }
+
+    /**
+     * @param values name, type and value of every attribute
+     */
+    private static Map<String, MessageAttribute> attributes(String... values) {
+        Map<String, MessageAttribute> result = new HashMap<>();
+        for (int i = 0; i + 2 < values.length; i += 3) {
+            result.put(values[i], new MessageAttribute(values[i + 1], values[i + 2], null));
+        }
+        return result;
+    }
+}
@@ -1,9 +1,19 @@
 package com.nkttk.core.components.sns;
 
 import com.nkttk.core.components.ComponentIdentifier;
+import com.nkttk.core.components.sns.entities.SNSMessage;
+import com.nkttk.core.components.sqs.SQSInstance;
+import com.nkttk.core.engine.timer.VirtualClock;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 import static org.testng.Assert.*;
 
@@ -11,8 +21,14 @@ public class SNSEngineTest {
     @Test
     public void testGetIdentifiers() throws Exception {
         SNSEngine engine = new SNSEngine();
+        List<ComponentIdentifier> empty = engine.getIdentifiers();
+        SNSTopic topic = engine.addTopic("topic");
         List<ComponentIdentifier> identifierList = engine.getIdentifiers();
-
+        assertTrue(empty.isEmpty());
+        assertEquals(identifierList.size(), 1);
+        assertEquals(identifierList.get(0).getKey(), "topic");
+        assertEquals(identifierList.get(0).getValue(), topic.getUrl());
+        assertSame(engine.getIdentifiers(), identifierList);
     }
 
     @Test
@@ -23,8 +39,222 @@ public class SNSEngineTest {
     public void testPublishMessage() throws Exception {
     }
 
+    @Test(timeOut = 10000)
+    public void testAsyncSubscriber() throws Exception {
+        SNSEngine engine = new SNSEngine();
+        engine.addTopic("topic");
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        Subscription slow = engine.addSubscriber("topic", message -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 2);
+
+        engine.publishMessage("topic", "first");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        engine.publishMessage("topic", "second");
+        engine.publishMessage("topic", "third");
+        engine.publishMessage("topic", "dropped");
+        assertEquals(slow.getPendingCount(), 2);
+        assertEquals(slow.getDroppedCount(), 1);
+
+        release.countDown();
+        while (slow.getDeliveredCount() < 3) {
+            Thread.sleep(10);
+        }
+        assertEquals(slow.getPendingCount(), 0);
+        assertEquals(slow.getLagMillis(), 0);
+    }
+
+    @Test(timeOut = 10000)
+    public void testAsyncSubscriberLag() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        SNSEngine engine = new SNSEngine(clock);
+        engine.addTopic("topic");
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        Subscription slow = engine.addSubscriber("topic", message -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 4);
+
+        engine.publishMessage("topic", "first");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        engine.publishMessage("topic", "second");
+        clock.advance(250);
+        engine.publishMessage("topic", "third");
+        assertEquals(slow.getLagMillis(), 250);
+
+        release.countDown();
+        await(() -> slow.getDeliveredCount() == 3);
+        assertEquals(slow.getLagMillis(), 0);
+    }
+
+    @Test(timeOut = 10000)
+    public void testDeliveryRetries() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        SNSEngine engine = new SNSEngine(clock);
+        engine.addTopic("topic");
+        AtomicInteger attempts = new AtomicInteger();
+        Subscription flaky = engine.addSubscriber("topic", message -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new RuntimeException("unavailable");
+            }
+        });
+        flaky.setDeliveryPolicy(DeliveryPolicy.parse("{\"healthyRetryPolicy\": {\"numRetries\": 3, "
+            + "\"minDelayTarget\": 1, \"maxDelayTarget\": 4, \"backoffFunction\": \"exponential\"}}"));
+        Subscription broken = engine.addSubscriber("topic", message -> {
+            throw new RuntimeException("broken");
+        });
+        broken.setDeliveryPolicy(new DeliveryPolicy(1, 1, 0, 0, DeliveryPolicy.BackoffFunction.LINEAR));
+        SQSInstance deadLetterQueue = new SQSInstance("dlq");
+        broken.setDeadLetterQueue(deadLetterQueue);
+        List<String> received = new ArrayList<>();
+        engine.addSubscriber("topic", received::add);
+
+        engine.publishMessage("topic", "hello");
+        assertEquals(received, Collections.singletonList("hello"));
+        assertEquals(attempts.get(), 1);
+        assertEquals(engine.getRetryScheduler().getPendingCount(), 2);
+
+        clock.advance(1000);
+        await(() -> flaky.getFailedCount() == 2 && broken.getDeadLetteredCount() == 1);
+        assertEquals(deadLetterQueue.getMessages(1, 0).get(0).getBody(), "hello");
+        assertEquals(broken.getFailedCount(), 2);
+
+        clock.advance(1000);
+        assertEquals(engine.getRetryScheduler().getPendingCount(), 1);
+        clock.advance(1000);
+        await(() -> flaky.getDeliveredCount() == 1);
+        assertEquals(attempts.get(), 3);
+        assertEquals(flaky.getRetriedCount(), 2);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testPublishTimestamp() throws Exception {
+        VirtualClock clock = new VirtualClock(1_000_000);
+        SNSEngine engine = new SNSEngine(clock);
+        SNSTopic topic = engine.addTopic("topic");
+        List<SNSMessage> received = new ArrayList<>();
+        engine.subscribe(topic.getArn(), "test", "endpoint", received::add);
+        clock.advance(500);
+
+        engine.publishMessage("topic", "hello");
+        assertEquals(received.get(0).getTimestamp(), 1_000_500);
+        assertTrue(new String(topic.getEnvelope(received.get(0)).getBytes(), StandardCharsets.UTF_8).contains("1970-01-01T00:16:40.500Z"));
+    }
+
+    @Test(timeOut = 10000)
+    public void testUnsubscribeCancelsRetries() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        SNSEngine engine = new SNSEngine(clock);
+        engine.addTopic("topic");
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        Subscription failing = engine.addSubscriber("topic", message -> {
+            if (running.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            attempts.incrementAndGet();
+            running.decrementAndGet();
+            throw new RuntimeException("unavailable");
+        });
+        failing.setDeliveryPolicy(new DeliveryPolicy(5, 0, 0, 4000, DeliveryPolicy.BackoffFunction.GEOMETRIC));
+
+        engine.publishMessage("topic", "first");
+        engine.publishMessage("topic", "second");
+        assertEquals(engine.getRetryScheduler().getPendingCount(), 2);
+        clock.advance(1000);
+        await(() -> attempts.get() == 4);
+        assertEquals(engine.getRetryScheduler().getPendingCount(), 2);
+
+        engine.unsubscribe(failing.getArn());
+        assertEquals(engine.getRetryScheduler().getPendingCount(), 0);
+        clock.advance(10000);
+        assertEquals(attempts.get(), 4);
+        assertEquals(overlaps.get(), 0);
+    }
+
+    @Test
+    public void testGeometricBackoff() throws Exception {
+        DeliveryPolicy policy = new DeliveryPolicy(5, 1, 0, 5000, DeliveryPolicy.BackoffFunction.GEOMETRIC);
+        assertEquals(policy.getDelay(1), 0);
+        assertEquals(policy.getDelay(2), 1000);
+        assertEquals(policy.getDelay(3), 2000);
+        assertEquals(policy.getDelay(4), 4000);
+        assertEquals(policy.getDelay(5), 5000);
+    }
+
+    @Test
+    public void testExponentialBackoffFromZero() throws Exception {
+        DeliveryPolicy policy = new DeliveryPolicy(4, 1, 0, 9000, DeliveryPolicy.BackoffFunction.EXPONENTIAL);
+        assertEquals(policy.getDelay(1), 0);
+        assertEquals(policy.getDelay(2), 1000);
+        assertEquals(policy.getDelay(3), 3000);
+        assertEquals(policy.getDelay(4), 9000);
+        assertEquals(new DeliveryPolicy(3, 0, 0, 500, DeliveryPolicy.BackoffFunction.EXPONENTIAL).getDelay(3), 500);
+    }
+
+    @Test
+    public void testSubscribeEndpoint() throws Exception {
+        SNSEngine engine = new SNSEngine();
+        SNSTopic topic = engine.addTopic("topic");
+        List<String> single = new ArrayList<>();
+        List<String> batched = new ArrayList<>();
+        Subscription subscription = engine.subscribeEndpoint(topic.getArn(), "test", "endpoint",
+            (current, message) -> single.add(current.getArn()),
+            (current, messages) -> messages.forEach(message -> batched.add(current.getArn())));
+
+        engine.publishMessage("topic", "hello");
+        topic.publishMessages(Collections.singletonList(new SNSMessage("batched")));
+        assertEquals(single, Collections.singletonList(subscription.getArn()));
+        assertEquals(batched, Collections.singletonList(subscription.getArn()));
+    }
+
+    @Test
+    public void testNotFound() throws Exception {
+        SNSEngine engine = new SNSEngine();
+        SNSTopic topic = engine.addTopic("topic");
+        try {
+            engine.subscribe(SNSTopic.ARN_PREFIX + "missing", "sqs", "queue", message -> { });
+            fail("Subscribed to a missing topic");
+        } catch (TopicNotFoundException e) {
+            assertEquals(e.getMessage(), "Topic not found : " + SNSTopic.ARN_PREFIX + "missing");
+        }
+        try {
+            engine.unsubscribe(topic.getArn() + ":missing");
+            fail("Unsubscribed a missing subscription");
+        } catch (SubscriptionNotFoundException e) {
+            assertEquals(e.getMessage(), "Subscription not found : " + topic.getArn() + ":missing");
+        }
+        try {
+            engine.getSubscription(SNSTopic.ARN_PREFIX + "missing:id");
+            fail("Found a subscription of a missing topic");
+        } catch (SubscriptionNotFoundException e) {
+            assertEquals(e.getMessage(), "Subscription not found : " + SNSTopic.ARN_PREFIX + "missing:id");
+        }
+    }
+
     @Test
     public void testAddTopic() throws Exception {
+        SNSEngine engine = new SNSEngine();
+        SNSTopic topic = engine.addTopic("topic");
+        assertSame(engine.addTopic("topic"), topic);
     }
 
     @Test
@@ -33,6 +263,10 @@ public class SNSEngineTest {
 
     @Test
     public void testGetTopicName() throws Exception {
+        SNSEngine engine = new SNSEngine();
+        SNSTopic topic = engine.addTopic("topic");
+        assertEquals(engine.getTopicName(topic.getUrl()), "topic");
+        assertEquals(engine.getTopicName(topic.getArn()), "topic");
     }
 
 }
\ No newline at end of file
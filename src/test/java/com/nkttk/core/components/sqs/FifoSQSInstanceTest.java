@@ -0,0 +1,143 @@
+package com.nkttk.core.components.sqs;
+
+import com.nkttk.core.components.sqs.entities.ReceivedMessage;
+import com.nkttk.core.components.sqs.entities.SQSMessage;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class FifoSQSInstanceTest {
+  FifoSQSInstance instance;
+
+  @BeforeMethod
+  public void before_method() {
+    instance = new FifoSQSInstance("queue.fifo");
+  }
+
+  @Test
+  public void test_group_order() {
+    instance.putMessage(new SQSMessage("a1", "a", "1"));
+    instance.putMessage(new SQSMessage("a2", "a", "2"));
+    instance.putMessage(new SQSMessage("b1", "b", "3"));
+    List<ReceivedMessage> received = instance.getMessages(10, 0);
+    assertEquals(received.size(), 3);
+    assertEquals(received.get(0).getBody(), "a1");
+    assertEquals(received.get(1).getBody(), "a2");
+    assertEquals(received.get(2).getBody(), "b1");
+  }
+
+  @Test
+  public void test_in_flight_group_blocks_only_itself() {
+    instance.putMessage(new SQSMessage("a1", "a", "1"));
+    instance.putMessage(new SQSMessage("a2", "a", "2"));
+    ReceivedMessage first = instance.getMessages(1, 0).get(0);
+    assertEquals(first.getBody(), "a1");
+    instance.putMessage(new SQSMessage("b1", "b", "3"));
+    List<ReceivedMessage> received = instance.getMessages(10, 0);
+    assertEquals(received.size(), 1);
+    assertEquals(received.get(0).getBody(), "b1");
+    instance.deleteMessage(first.getReceiptHandle());
+    assertEquals(instance.getMessage().get().getBody(), "a2");
+  }
+
+  @Test
+  public void test_restored_message_keeps_order() throws InterruptedException {
+    instance.putMessage(new SQSMessage("a1", "a", "1"));
+    instance.putMessage(new SQSMessage("a2", "a", "2"));
+    instance.getMessages(1, 0, 50);
+    Thread.sleep(100);
+    List<ReceivedMessage> received = instance.getMessages(10, 0);
+    assertEquals(received.get(0).getBody(), "a1");
+    assertEquals(received.get(1).getBody(), "a2");
+  }
+
+  @Test
+  public void test_deduplication() {
+    String id = instance.putMessage(new SQSMessage("a1", "a", "1"));
+    assertEquals(instance.putMessage(new SQSMessage("a1 again", "a", "1")), id);
+    List<String> ids = instance.putMessages(Arrays.asList(new SQSMessage("a2", "a", "2"), new SQSMessage("a1 batched", "a", "1")));
+    assertEquals(ids.get(1), id);
+    List<ReceivedMessage> received = instance.getMessages(10, 0);
+    assertEquals(received.size(), 2);
+    assertEquals(received.get(0).getId(), id);
+    assertEquals(received.get(1).getId(), ids.get(0));
+  }
+
+  @Test
+  public void test_content_based_deduplication() {
+    instance.setContentBasedDeduplication(true);
+    instance.putMessage(new SQSMessage("same", "a", null));
+    instance.putMessage(new SQSMessage("same", "b", null));
+    instance.putMessage(new SQSMessage("other", "a", null));
+    assertEquals(instance.getMessages(10, 0).size(), 2);
+  }
+
+  @Test
+  public void test_deduplication_id_required() {
+    try {
+      instance.putMessage(new SQSMessage("a1", "a", null));
+    } catch (InvalidMessageException e) {
+      assertFalse(e.isMissingParameter());
+      return;
+    }
+    throw new AssertionError("Message without deduplication id was accepted");
+  }
+
+  @Test
+  public void test_group_id_required() {
+    try {
+      instance.putMessage(new SQSMessage("a1", null, "1"));
+    } catch (InvalidMessageException e) {
+      assertTrue(e.isMissingParameter());
+      return;
+    }
+    throw new AssertionError("Message without group id was accepted");
+  }
+
+  @Test
+  public void test_full_queue_keeps_deduplication() {
+    instance.setMaxMessages(1);
+    instance.putMessage(new SQSMessage("a1", "a", "1"));
+    instance.putMessage(new SQSMessage("a1 again", "a", "1"));
+    try {
+      instance.putMessage(new SQSMessage("a2", "a", "2"));
+      throw new AssertionError("Full queue accepted a message");
+    } catch (QueueFullException e) {
+      // expected
+    }
+    ReceivedMessage received = instance.getMessage().get();
+    instance.deleteMessage(received.getReceiptHandle());
+    instance.putMessage(new SQSMessage("a2", "a", "2"));
+    instance.putMessage(new SQSMessage("a2 again", "a", "2"));
+    assertEquals(instance.getMessage().get().getBody(), "a2");
+    assertEquals(instance.getQueueFullCount(), 1);
+  }
+
+  @Test
+  public void test_deduplication_window() {
+    DeduplicationCache cache = new DeduplicationCache(100);
+    assertNull(cache.register("id", "first", 1000));
+    assertEquals(cache.register("id", "second", 1050), "first");
+    assertEquals(cache.get("id", 1099), "first");
+    assertNull(cache.get("id", 1200));
+    assertNull(cache.register("id", "third", 1200));
+  }
+
+  @Test
+  public void test_purge_releases_groups() {
+    instance.putMessage(new SQSMessage("a1", "a", "1"));
+    instance.putMessage(new SQSMessage("a2", "a", "2"));
+    instance.getMessage();
+    instance.purge();
+    assertFalse(instance.getMessage().isPresent());
+    instance.putMessage(new SQSMessage("a3", "a", "3"));
+    assertEquals(instance.getMessage().get().getBody(), "a3");
+  }
+}
@@ -1,9 +1,12 @@
 package com.nkttk.core.components.sqs;
 
+import com.nkttk.core.components.sqs.entities.ReceivedMessage;
 import com.nkttk.core.components.sqs.entities.SQSMessage;
 import org.testng.annotations.Test;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertTrue;
 
 public class SQSEngineTest {
     @Test
@@ -12,7 +15,7 @@ public class SQSEngineTest {
         engine.addInstance(new SQSInstance("sqs_name"));
         String endpointUrl = engine.getInstanceByName("sqs_name").getEndpointURL();
         engine.sendMessage(endpointUrl, "some_message");
-        SQSMessage message = engine.pullMessage(endpointUrl).get();
+        ReceivedMessage message = engine.pullMessage(endpointUrl).get();
         System.out.println(message.getBody());
         assertEquals("some_message", message.getBody());
     }
@@ -37,4 +40,16 @@ public class SQSEngineTest {
 
     }
 
+    @Test
+    public void testDeleteInstance() throws Exception {
+        SQSEngine engine = new SQSEngine();
+        SQSInstance instance = engine.addInstance(new SQSInstance("deleted"));
+        engine.addInstance(new SQSInstance("kept"));
+        engine.deleteInstance(instance.getEndpointURL());
+        assertTrue(instance.isClosed());
+        assertEquals(engine.getIdentifiers().size(), 1);
+        assertEquals(engine.getInstanceByName("kept").getName(), "kept");
+        assertNotSame(engine.addInstance(new SQSInstance("deleted")), instance);
+    }
+
 }
\ No newline at end of file
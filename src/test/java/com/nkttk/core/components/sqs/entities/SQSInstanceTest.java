@@ -1,12 +1,32 @@
 package com.nkttk.core.components.sqs.entities;
 
+import com.nkttk.core.components.sqs.DelayScheduler;
+import com.nkttk.core.components.sqs.OverflowPolicy;
+import com.nkttk.core.components.sqs.QueueFullException;
+import com.nkttk.core.components.sqs.RedrivePolicy;
 import com.nkttk.core.components.sqs.SQSInstance;
+import com.nkttk.core.engine.timer.VirtualClock;
+import com.nkttk.io.MappedJournal;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
@@ -21,14 +41,14 @@ public class SQSInstanceTest {
   @Test
   public void test_put_get() {
     instance.putMessage(new SQSMessage("message_body"));
-    Optional<SQSMessage> message = instance.getMessage();
+    Optional<ReceivedMessage> message = instance.getMessage();
     assertTrue(message.isPresent());
   }
 
   @Test
   public void test_delete() {
     instance.putMessage(new SQSMessage("test1"));
-    SQSMessage message = instance.getMessage().get();
+    ReceivedMessage message = instance.getMessage().get();
     instance.deleteMessage(message.getReceiptHandle());
     assertEquals(message.getBody(), "test1");
   }
@@ -37,12 +57,435 @@ public class SQSInstanceTest {
   public void test_restore() throws InterruptedException {
     instance.setMessageLockInterval(100);
     instance.putMessage(new SQSMessage("test1"));
-
+    ReceivedMessage message = instance.getMessage().get();
+    Thread.sleep(150);
+    ReceivedMessage restored = instance.getMessage().get();
+    assertEquals(restored.getId(), message.getId());
+    assertEquals(message.getReceiveCount(), 1);
+    assertEquals(restored.getReceiveCount(), 2);
+    assertFalse(restored.getReceiptHandle().equals(message.getReceiptHandle()));
+    assertFalse(instance.deleteMessage(message.getReceiptHandle()));
+    assertTrue(instance.deleteMessage(restored.getReceiptHandle()));
   }
 
   @Test
   public void test_not_yet_restored() throws InterruptedException {
-//    instance.putMessage(new SQSMessage("test1"));
-//    assertNull(message2);
+    instance.putMessage(new SQSMessage("test1"));
+    instance.getMessage();
+    assertFalse(instance.getMessage().isPresent());
+  }
+
+  @Test
+  public void test_deleted_not_restored() throws InterruptedException {
+    instance.setMessageLockInterval(50);
+    instance.putMessage(new SQSMessage("test1"));
+    instance.putMessage(new SQSMessage("test2"));
+    ReceivedMessage first = instance.getMessage().get();
+    ReceivedMessage second = instance.getMessage().get();
+    instance.deleteMessage(first.getReceiptHandle());
+    Thread.sleep(100);
+    assertEquals(instance.getMessage().get().getId(), second.getId());
+    assertFalse(instance.getMessage().isPresent());
+  }
+
+  @Test
+  public void test_empty() {
+    assertFalse(instance.getMessage().isPresent());
+  }
+
+  @Test(timeOut = 60000)
+  public void test_concurrent_producers_consumers() throws Exception {
+    int threads = 16;
+    int messagesPerProducer = 5000;
+    int total = threads * messagesPerProducer;
+    Set<String> received = ConcurrentHashMap.newKeySet();
+    AtomicInteger duplicates = new AtomicInteger();
+    AtomicInteger deliveries = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads * 2);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      futures.add(executor.submit(() -> {
+        for (int j = 0; j < messagesPerProducer; j++) {
+          instance.putMessage(new SQSMessage("body"));
+        }
+      }));
+      futures.add(executor.submit(() -> {
+        while (deliveries.get() < total) {
+          Optional<ReceivedMessage> message = instance.getMessage();
+          if (message.isPresent()) {
+            deliveries.incrementAndGet();
+            if (!received.add(message.get().getId())) {
+              duplicates.incrementAndGet();
+            }
+            instance.deleteMessage(message.get().getReceiptHandle());
+          }
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    assertEquals(duplicates.get(), 0);
+    assertEquals(received.size(), total);
+    assertFalse(instance.getMessage().isPresent());
+  }
+
+  @Test
+  public void test_batch_receive() {
+    for (int i = 0; i < 15; i++) {
+      instance.putMessage(new SQSMessage("message_" + i));
+    }
+    assertEquals(instance.getMessages(10, 0).size(), 10);
+    assertEquals(instance.getMessages(10, 0).size(), 5);
+    assertTrue(instance.getMessages(10, 0).isEmpty());
+  }
+
+  @Test(timeOut = 10000)
+  public void test_long_poll_wakes_on_put() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<List<ReceivedMessage>> received = executor.submit(() -> instance.getMessages(10, 5000));
+    Thread.sleep(100);
+    long putAt = System.currentTimeMillis();
+    instance.putMessage(new SQSMessage("late_message"));
+    List<ReceivedMessage> messages = received.get();
+    executor.shutdown();
+    assertEquals(messages.size(), 1);
+    assertTrue(System.currentTimeMillis() - putAt < 1000);
+  }
+
+  @Test
+  public void test_long_poll_times_out() {
+    long startedAt = System.currentTimeMillis();
+    assertTrue(instance.getMessages(10, 200).isEmpty());
+    assertTrue(System.currentTimeMillis() - startedAt >= 200);
+  }
+
+  @Test(timeOut = 10000)
+  public void test_long_poll_wakes_on_restore() {
+    instance.putMessage(new SQSMessage("test1"));
+    instance.getMessages(1, 0, 100);
+    assertEquals(instance.getMessages(1, 5000).size(), 1);
+  }
+
+  @Test
+  public void test_batch_put_delete() {
+    List<SQSMessage> batch = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      batch.add(new SQSMessage("message_" + i));
+    }
+    instance.putMessages(batch);
+    List<ReceivedMessage> received = instance.getMessages(10, 0);
+    assertEquals(received.get(0).getBody(), "message_0");
+    Map<String, String> handles = new LinkedHashMap<>();
+    for (int i = 0; i < received.size(); i++) {
+      handles.put("entry_" + i, received.get(i).getReceiptHandle());
+    }
+    handles.put("invalid", "unknown_handle");
+    BatchResult result = instance.deleteMessages(handles);
+    assertEquals(result.getSuccessful().size(), 10);
+    assertEquals(result.getFailed().get("invalid"), SQSInstance.RECEIPT_HANDLE_IS_INVALID);
+  }
+
+  @Test
+  public void test_change_visibility() throws InterruptedException {
+    instance.setMessageLockInterval(50);
+    instance.putMessage(new SQSMessage("test1"));
+    ReceivedMessage message = instance.getMessage().get();
+    assertTrue(instance.changeMessageVisibility(message.getReceiptHandle(), 10000));
+    Thread.sleep(100);
+    assertFalse(instance.getMessage().isPresent());
+    assertTrue(instance.changeMessageVisibility(message.getReceiptHandle(), 0));
+    assertEquals(instance.getMessage().get().getId(), message.getId());
+    assertFalse(instance.changeMessageVisibility("unknown_handle", 0));
+  }
+
+  @Test
+  public void test_change_visibility_same_deadline() {
+    VirtualClock clock = new VirtualClock(0);
+    instance.setClock(clock);
+    instance.putMessage(new SQSMessage("test1"));
+    ReceivedMessage message = instance.getMessage().get();
+    assertTrue(instance.changeMessageVisibility(message.getReceiptHandle(), 1000));
+    assertTrue(instance.changeMessageVisibility(message.getReceiptHandle(), 1000));
+    clock.advance(1000);
+    assertFalse(instance.getMessage().isPresent());
+    clock.advance(1);
+    assertEquals(instance.getMessage().get().getId(), message.getId());
+  }
+
+  @Test
+  public void test_dead_letter() throws InterruptedException {
+    SQSInstance deadLetterQueue = new SQSInstance("dlq");
+    instance.setRedrivePolicy(new RedrivePolicy(deadLetterQueue, 2));
+    instance.setMessageLockInterval(20);
+    instance.putMessage(new SQSMessage("poison"));
+    assertEquals(instance.getMessage().get().getReceiveCount(), 1);
+    Thread.sleep(40);
+    assertEquals(instance.getMessage().get().getReceiveCount(), 2);
+    Thread.sleep(40);
+    assertFalse(instance.getMessage().isPresent());
+    ReceivedMessage deadLetter = deadLetterQueue.getMessage().get();
+    assertEquals(deadLetter.getBody(), "poison");
+  }
+
+  @Test
+  public void test_move_messages() {
+    SQSInstance target = new SQSInstance("target");
+    for (int i = 0; i < 5; i++) {
+      instance.putMessage(new SQSMessage("message_" + i));
+    }
+    assertEquals(instance.moveMessagesTo(target, 3), 3);
+    assertEquals(instance.getMessages(10, 0).size(), 2);
+    List<ReceivedMessage> moved = target.getMessages(10, 0);
+    assertEquals(moved.size(), 3);
+    assertEquals(moved.get(0).getBody(), "message_0");
+    assertEquals(moved.get(0).getReceiveCount(), 1);
+  }
+
+  @Test
+  public void test_message_delay() throws InterruptedException {
+    SQSMessage delayed = new SQSMessage("delayed");
+    delayed.setDelay(100L);
+    instance.putMessage(delayed);
+    instance.putMessage(new SQSMessage("immediate"));
+    assertEquals(instance.getMessage().get().getBody(), "immediate");
+    assertFalse(instance.getMessage().isPresent());
+    Thread.sleep(150);
+    assertEquals(instance.getMessage().get().getBody(), "delayed");
+  }
+
+  @Test(timeOut = 10000)
+  public void test_queue_delay_wakes_long_poll() {
+    instance.setDelay(100);
+    instance.putMessage(new SQSMessage("delayed"));
+    assertFalse(instance.getMessage().isPresent());
+    assertEquals(instance.getMessages(10, 5000).size(), 1);
+  }
+
+  @Test
+  public void test_message_counters() throws InterruptedException {
+    SQSMessage delayed = new SQSMessage("delayed");
+    delayed.setDelay(100L);
+    instance.putMessage(delayed);
+    instance.putMessage(new SQSMessage("first"));
+    instance.putMessage(new SQSMessage("second"));
+    assertEquals(instance.getApproximateNumberOfMessages(), 2);
+    assertEquals(instance.getApproximateNumberOfMessagesDelayed(), 1);
+    ReceivedMessage received = instance.getMessage().get();
+    assertEquals(instance.getApproximateNumberOfMessages(), 1);
+    assertEquals(instance.getApproximateNumberOfMessagesNotVisible(), 1);
+    instance.deleteMessage(received.getReceiptHandle());
+    assertEquals(instance.getApproximateNumberOfMessagesNotVisible(), 0);
+    instance.changeMessageVisibility(instance.getMessage().get().getReceiptHandle(), 0);
+    assertEquals(instance.getApproximateNumberOfMessages(), 1);
+    Thread.sleep(150);
+    assertEquals(instance.getMessages(10, 0).size(), 2);
+    assertEquals(instance.getApproximateNumberOfMessages(), 0);
+    assertEquals(instance.getApproximateNumberOfMessagesDelayed(), 0);
+    assertEquals(instance.getApproximateNumberOfMessagesNotVisible(), 2);
+  }
+
+  @Test
+  public void test_purge() throws InterruptedException {
+    SQSMessage delayed = new SQSMessage("delayed");
+    delayed.setDelay(50L);
+    instance.putMessage(delayed);
+    instance.putMessage(new SQSMessage("received"));
+    instance.putMessage(new SQSMessage("visible"));
+    ReceivedMessage received = instance.getMessage().get();
+    instance.purge();
+    assertEquals(instance.getApproximateNumberOfMessages(), 0);
+    assertEquals(instance.getApproximateNumberOfMessagesNotVisible(), 0);
+    assertEquals(instance.getApproximateNumberOfMessagesDelayed(), 0);
+    assertFalse(instance.deleteMessage(received.getReceiptHandle()));
+    Thread.sleep(100);
+    assertFalse(instance.getMessage().isPresent());
+    instance.putMessage(new SQSMessage("after purge"));
+    assertEquals(instance.getMessage().get().getBody(), "after purge");
+  }
+
+  @Test(timeOut = 30000)
+  public void test_purge_concurrent_with_sends() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> senders = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        senders.add(executor.submit(() -> {
+          for (int i = 0; i < 5000; i++) {
+            instance.putMessage(new SQSMessage("m"));
+          }
+        }));
+      }
+      for (int i = 0; i < 200; i++) {
+        instance.purge();
+      }
+      for (Future<?> sender : senders) {
+        sender.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    int visible = instance.getMessages(10, 0).size();
+    while (instance.getApproximateNumberOfMessages() > 0) {
+      visible += instance.getMessages(10, 0).size();
+    }
+    assertEquals(instance.getApproximateNumberOfMessagesNotVisible(), visible);
+    assertFalse(instance.getMessage().isPresent());
+  }
+
+  @Test(timeOut = 10000)
+  public void test_close_wakes_long_poll() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<ReceivedMessage>> poll = executor.submit(() -> instance.getMessages(1, 20000));
+      Thread.sleep(100);
+      instance.close();
+      assertTrue(poll.get().isEmpty());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void test_journaled_bodies() throws Exception {
+    Path directory = Files.createTempDirectory("sqs-journal");
+    MappedJournal journal = new MappedJournal(directory, 1024);
+    instance.setJournal(journal);
+    for (int i = 0; i < 100; i++) {
+      instance.putMessage(new SQSMessage("message body number " + i));
+    }
+    int segments = journal.getSegmentCount();
+    assertTrue(segments > 1);
+    for (int i = 0; i < 100; i++) {
+      ReceivedMessage message = instance.getMessage().get();
+      assertEquals(message.getBody(), "message body number " + i);
+      instance.deleteMessage(message.getReceiptHandle());
+    }
+    assertEquals(journal.getFreeSegmentCount(), 1);
+    assertEquals(journal.getSegmentCount(), 2);
+    for (int i = 0; i < 100; i++) {
+      instance.putMessage(new SQSMessage("message body number " + i));
+    }
+    assertEquals(journal.getSegmentCount(), segments);
+  }
+
+  @Test(timeOut = 10000)
+  public void test_purge_keeps_received_bodies() throws Exception {
+    VirtualClock clock = new VirtualClock(0);
+    instance.setClock(clock);
+    instance.setMessageLockInterval(1000);
+    MappedJournal journal = new MappedJournal(Files.createTempDirectory("sqs-journal"), 64);
+    instance.setJournal(journal);
+    for (int i = 0; i < 20; i++) {
+      instance.putMessage(new SQSMessage("message body number " + i));
+    }
+    ReceivedMessage received = instance.getMessage().get();
+    instance.purge();
+    clock.advance(999);
+    Thread.sleep(100);
+    for (int i = 0; i < 20; i++) {
+      instance.putMessage(new SQSMessage("message body number " + i));
+    }
+    assertEquals(received.getBody(), "message body number 0");
+    clock.advance(1);
+    instance.close();
+    while (journal.getSegmentCount() > 0) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void test_capacity_fail() {
+    instance.setMaxMessages(2);
+    instance.putMessage(new SQSMessage("1"));
+    instance.putMessage(new SQSMessage("2"));
+    assertQueueFull(() -> instance.putMessage(new SQSMessage("3")));
+    ReceivedMessage received = instance.getMessage().get();
+    assertQueueFull(() -> instance.putMessage(new SQSMessage("3")));
+    instance.deleteMessage(received.getReceiptHandle());
+    instance.putMessage(new SQSMessage("3"));
+    assertEquals(instance.getQueueFullCount(), 2);
+    assertEquals(instance.getApproximateNumberOfMessages(), 2);
+  }
+
+  @Test
+  public void test_capacity_drop_oldest() {
+    instance.setMaxBytes(10);
+    instance.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+    instance.putMessage(new SQSMessage("aaaa"));
+    instance.putMessage(new SQSMessage("bbbb"));
+    instance.putMessage(new SQSMessage("cccc"));
+    assertEquals(instance.getQueueFullCount(), 1);
+    assertEquals(instance.getMessage().get().getBody(), "bbbb");
+    assertEquals(instance.getMessage().get().getBody(), "cccc");
+    assertQueueFull(() -> instance.putMessage(new SQSMessage("dddd")));
+    assertQueueFull(() -> instance.putMessage(new SQSMessage("longer than the queue")));
+  }
+
+  @Test(timeOut = 10000)
+  public void test_capacity_block() throws Exception {
+    instance.setMaxMessages(1);
+    instance.setOverflowPolicy(OverflowPolicy.BLOCK);
+    instance.setOverflowTimeout(50);
+    instance.putMessage(new SQSMessage("1"));
+    assertQueueFull(() -> instance.putMessage(new SQSMessage("timed out")));
+    instance.setOverflowTimeout(10000);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> blocked = executor.submit(() -> instance.putMessage(new SQSMessage("2")));
+      Thread.sleep(100);
+      assertFalse(blocked.isDone());
+      ReceivedMessage received = instance.getMessage().get();
+      instance.deleteMessage(received.getReceiptHandle());
+      blocked.get();
+      assertEquals(instance.getMessage().get().getBody(), "2");
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(timeOut = 10000)
+  public void test_virtual_clock() throws Exception {
+    VirtualClock clock = new VirtualClock(0);
+    instance.setClock(clock);
+    instance.setDelayScheduler(new DelayScheduler(clock));
+    instance.setMessageLockInterval(TimeUnit.HOURS.toMillis(12));
+    instance.putMessage(new SQSMessage("locked"));
+    SQSMessage delayed = new SQSMessage("delayed");
+    delayed.setDelay(TimeUnit.HOURS.toMillis(1));
+    instance.putMessage(delayed);
+
+    assertEquals(instance.getMessage().get().getBody(), "locked");
+    clock.advance(TimeUnit.HOURS.toMillis(1));
+    assertEquals(instance.getApproximateNumberOfMessages(), 1);
+    assertEquals(instance.getMessage().get().getBody(), "delayed");
+    clock.advance(TimeUnit.HOURS.toMillis(11));
+    assertFalse(instance.getMessage().isPresent());
+    clock.advance(1);
+    ReceivedMessage redelivered = instance.getMessage().get();
+    assertEquals(redelivered.getBody(), "locked");
+    assertEquals(redelivered.getReceiveCount(), 2);
+    assertEquals(redelivered.getFirstReceiveTimestamp(), 0);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<ReceivedMessage>> poll = executor.submit(() -> instance.getMessages(1, TimeUnit.SECONDS.toMillis(20)));
+      Thread.sleep(50);
+      assertFalse(poll.isDone());
+      clock.advance(TimeUnit.SECONDS.toMillis(20));
+      assertTrue(poll.get().isEmpty());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void assertQueueFull(Runnable send) {
+    try {
+      send.run();
+    } catch (QueueFullException e) {
+      return;
+    }
+    throw new AssertionError("Full queue accepted a message");
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,149 @@
+package com.nkttk.core.components.sqs.persistence;
+
+import com.nkttk.core.components.sqs.SQSEngine;
+import com.nkttk.core.components.sqs.SQSInstance;
+import com.nkttk.core.components.sqs.entities.ReceivedMessage;
+import com.nkttk.core.components.sqs.entities.SQSMessage;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class WriteAheadLogTest {
+  Path directory;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("wal");
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    File[] files = directory.toFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.toFile().delete();
+  }
+
+  @Test
+  public void testRecover() throws Exception {
+    SQSEngine engine = new SQSEngine();
+    SQSInstance queue = engine.addInstance(new SQSInstance("queue"));
+    WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.PER_OP);
+    engine.setMessageLog(log);
+    List<String> sentIds = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      SQSMessage message = new SQSMessage("message " + i);
+      queue.putMessage(message);
+      sentIds.add(message.getId());
+    }
+    List<ReceivedMessage> received = queue.getMessages(2, 0, 60000);
+    queue.deleteMessage(received.get(0).getReceiptHandle());
+    log.close();
+
+    SQSEngine restarted = new SQSEngine();
+    SQSInstance recoveredQueue = restarted.addInstance(new SQSInstance("queue"));
+    WriteAheadLog recoveredLog = new WriteAheadLog(directory, FsyncPolicy.PER_OP);
+    assertEquals(recoveredLog.recover(restarted), 3);
+    assertEquals(recoveredQueue.getApproximateNumberOfMessages(), 2);
+    assertEquals(recoveredQueue.getApproximateNumberOfMessagesNotVisible(), 1);
+    assertEquals(recoveredQueue.getApproximateNumberOfMessagesDelayed(), 0);
+    assertFalse(recoveredQueue.deleteMessage(received.get(1).getReceiptHandle()));
+    ReceivedMessage first = recoveredQueue.getMessage().get();
+    assertEquals(first.getBody(), "message 2");
+    assertEquals(first.getId(), sentIds.get(2));
+    recoveredLog.close();
+  }
+
+  @Test
+  public void testGarbageAfterLastRecord() throws Exception {
+    SQSEngine engine = new SQSEngine();
+    SQSInstance queue = engine.addInstance(new SQSInstance("queue"));
+    WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.PER_OP);
+    engine.setMessageLog(log);
+    queue.putMessage(new SQSMessage("message 0"));
+    queue.putMessage(new SQSMessage("message 1"));
+    log.close();
+    Path segment;
+    try (Stream<Path> files = Files.list(directory)) {
+      segment = files.filter(file -> file.getFileName().toString().endsWith(".log")).max(Path::compareTo).get();
+    }
+    try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(segment, StandardOpenOption.APPEND))) {
+      out.writeInt(Integer.MAX_VALUE - 8);
+      out.writeInt(0xcafebabe);
+      out.write(new byte[]{1, 2, 3});
+    }
+
+    SQSEngine restarted = new SQSEngine();
+    SQSInstance recoveredQueue = restarted.addInstance(new SQSInstance("queue"));
+    WriteAheadLog recoveredLog = new WriteAheadLog(directory, FsyncPolicy.PER_OP);
+    assertEquals(recoveredLog.recover(restarted), 2);
+    assertEquals(recoveredQueue.getApproximateNumberOfMessages(), 2);
+    recoveredLog.close();
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    SQSEngine engine = new SQSEngine();
+    SQSInstance queue = engine.addInstance(new SQSInstance("queue"));
+    SQSInstance other = engine.addInstance(new SQSInstance("other"));
+    WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.BATCHED, 256, 1);
+    engine.setMessageLog(log);
+    for (int i = 0; i < 50; i++) {
+      queue.putMessage(new SQSMessage("message " + i));
+      other.putMessage(new SQSMessage("other " + i));
+    }
+    for (ReceivedMessage message : queue.getMessages(40, 0)) {
+      queue.deleteMessage(message.getReceiptHandle());
+    }
+    other.purge();
+    log.snapshot();
+    log.close();
+
+    SQSEngine restarted = new SQSEngine();
+    SQSInstance recoveredQueue = restarted.addInstance(new SQSInstance("queue"));
+    WriteAheadLog recoveredLog = new WriteAheadLog(directory, FsyncPolicy.NONE);
+    assertEquals(recoveredLog.recover(restarted), 10);
+    assertEquals(recoveredQueue.getMessage().get().getBody(), "message 40");
+    recoveredLog.close();
+  }
+
+  @Test(timeOut = 10000)
+  public void testPeriodicSnapshot() throws Exception {
+    SQSEngine engine = new SQSEngine();
+    SQSInstance queue = engine.addInstance(new SQSInstance("queue"));
+    WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.BATCHED, WriteAheadLog.DEFAULT_SEGMENT_SIZE, 1, 20);
+    engine.setMessageLog(log);
+    for (int i = 0; i < 10; i++) {
+      queue.putMessage(new SQSMessage("message " + i));
+    }
+    queue.getMessages(3, 0, 60000);
+    while (!Files.exists(directory.resolve("snapshot.dat"))) {
+      Thread.sleep(10);
+    }
+    log.close();
+
+    SQSEngine restarted = new SQSEngine();
+    SQSInstance recoveredQueue = restarted.addInstance(new SQSInstance("queue"));
+    WriteAheadLog recoveredLog = new WriteAheadLog(directory, FsyncPolicy.NONE);
+    assertEquals(recoveredLog.recover(restarted), 10);
+    assertEquals(recoveredQueue.getApproximateNumberOfMessages(), 7);
+    assertEquals(recoveredQueue.getApproximateNumberOfMessagesNotVisible(), 3);
+    assertEquals(recoveredQueue.getMessage().get().getBody(), "message 3");
+    recoveredLog.close();
+  }
+}
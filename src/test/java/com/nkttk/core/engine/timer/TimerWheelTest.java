@@ -0,0 +1,51 @@
+package com.nkttk.core.engine.timer;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TimerWheelTest {
+  @Test
+  public void testAdvance() {
+    TimerWheel<String> wheel = new TimerWheel<>(10, 0);
+    wheel.schedule(25, "first");
+    wheel.schedule(30, "second");
+    wheel.schedule(1000, "third");
+    assertTrue(wheel.advance(20).isEmpty());
+    assertEquals(wheel.advance(30), Arrays.asList("first", "second"));
+    assertEquals(wheel.size(), 1);
+    assertTrue(wheel.advance(990).isEmpty());
+    assertEquals(wheel.advance(1000), Arrays.asList("third"));
+    assertEquals(wheel.size(), 0);
+  }
+
+  @Test
+  public void testPastItemDueImmediately() {
+    TimerWheel<String> wheel = new TimerWheel<>(10, 0);
+    wheel.advance(500);
+    wheel.schedule(100, "late");
+    assertEquals(wheel.advance(500), Arrays.asList("late"));
+  }
+
+  @Test
+  public void testCascadeOrder() {
+    TimerWheel<Long> wheel = new TimerWheel<>(1, 0);
+    List<Long> dueTimes = Arrays.asList(5L, 64L, 65L, 4095L, 4096L, 4097L, 262143L, 300000L, 16777216L, 40000000L);
+    for (int i = dueTimes.size() - 1; i >= 0; i--) {
+      wheel.schedule(dueTimes.get(i), dueTimes.get(i));
+    }
+    List<Long> fired = new ArrayList<>();
+    for (Long dueTime : dueTimes) {
+      assertTrue(wheel.advance(dueTime - 1).isEmpty());
+      List<Long> due = wheel.advance(dueTime);
+      assertEquals(due, Arrays.asList(dueTime));
+      fired.addAll(due);
+    }
+    assertEquals(fired, dueTimes);
+  }
+}
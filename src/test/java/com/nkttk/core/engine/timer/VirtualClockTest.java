@@ -0,0 +1,49 @@
+package com.nkttk.core.engine.timer;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+public class VirtualClockTest {
+  @Test
+  public void testAdvanceFiresTimersInOrder() {
+    VirtualClock clock = new VirtualClock(0);
+    List<String> fired = new ArrayList<>();
+    List<Long> firedAt = new ArrayList<>();
+    clock.schedule(300, () -> fired.add("third"));
+    clock.schedule(100, () -> {
+      fired.add("first");
+      firedAt.add(clock.currentTimeMillis());
+      clock.schedule(clock.currentTimeMillis() + 50, () -> fired.add("rescheduled"));
+    });
+    clock.schedule(100, () -> fired.add("second"));
+    clock.schedule(5000, () -> fired.add("later"));
+
+    clock.advance(1000);
+
+    assertEquals(fired, Arrays.asList("first", "second", "rescheduled", "third"));
+    assertEquals(firedAt, Arrays.asList(100L));
+    assertEquals(clock.currentTimeMillis(), 1000);
+    assertEquals(clock.getPendingTimerCount(), 1);
+  }
+
+  @Test
+  public void testCancel() {
+    VirtualClock clock = new VirtualClock(0);
+    List<String> fired = new ArrayList<>();
+    Runnable cancel = clock.schedule(100, () -> fired.add("cancelled"));
+    clock.schedule(100, () -> fired.add("kept"));
+    cancel.run();
+    assertEquals(clock.getPendingTimerCount(), 1);
+
+    clock.advance(100);
+    cancel.run();
+
+    assertEquals(fired, Arrays.asList("kept"));
+    assertEquals(clock.getPendingTimerCount(), 0);
+  }
+}
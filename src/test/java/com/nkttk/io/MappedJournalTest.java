@@ -0,0 +1,69 @@
+package com.nkttk.io;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.testng.Assert.assertEquals;
+
+public class MappedJournalTest {
+  Path directory;
+  MappedJournal journal;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("journal");
+    journal = new MappedJournal(directory, 16);
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    File[] files = directory.toFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.toFile().delete();
+  }
+
+  @Test
+  public void testAppendRead() {
+    MappedJournal.Entry first = journal.append(bytes("0123456789"));
+    MappedJournal.Entry second = journal.append(bytes("abcdefghij"));
+    assertEquals(new String(first.read(), StandardCharsets.UTF_8), "0123456789");
+    assertEquals(new String(second.read(), StandardCharsets.UTF_8), "abcdefghij");
+    assertEquals(journal.getSegmentCount(), 2);
+  }
+
+  @Test
+  public void testSegmentRecycled() {
+    MappedJournal.Entry first = journal.append(bytes("01234567"));
+    MappedJournal.Entry second = journal.append(bytes("89abcdef"));
+    journal.append(bytes("next segment"));
+    first.release();
+    assertEquals(journal.getFreeSegmentCount(), 0);
+    second.release();
+    assertEquals(journal.getFreeSegmentCount(), 1);
+    journal.append(bytes("reused"));
+    assertEquals(journal.getSegmentCount(), 2);
+  }
+
+  @Test(expectedExceptions = RuntimeException.class)
+  public void testReadAfterRecycle() {
+    MappedJournal.Entry entry = journal.append(bytes("0123456789abcdef"));
+    journal.append(bytes("next"));
+    entry.release();
+    journal.append(bytes("0123456789abcdef"));
+    entry.read();
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}